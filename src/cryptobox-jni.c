@@ -13,12 +13,20 @@
 // You should have received a copy of the GNU General Public License
 // along with this program.  If not, see <http://www.gnu.org/licenses/>.
 
+#define _POSIX_C_SOURCE 200809L
+
 #include <jni.h>
 #include <stdint.h>
 #include <stdbool.h>
+#include <stdlib.h>
 #include <string.h>
+#include <time.h>
 #include <cbox.h>
 
+#ifdef _WIN32
+#include <windows.h>
+#endif
+
 // Cache ////////////////////////////////////////////////////////////////////
 
 jclass cboxjni_ex_class;
@@ -34,6 +42,129 @@ jmethodID cboxjni_box_ctor;
 jmethodID cboxjni_sessmsg_ctor;
 jmethodID cboxjni_pkbundle_ctor;
 
+// Statistics ///////////////////////////////////////////////////////////////
+
+// The instrumented entry points. Must be kept in sync with NativeStats.EntryPoint.
+typedef enum {
+    CBOXJNI_STAT_OPEN,
+    CBOXJNI_STAT_OPEN_WITH,
+    CBOXJNI_STAT_CLOSE,
+    CBOXJNI_STAT_IS_PREKEY,
+    CBOXJNI_STAT_NEW_LAST_PREKEY,
+    CBOXJNI_STAT_NEW_PREKEYS,
+    CBOXJNI_STAT_LOCAL_FINGERPRINT,
+    CBOXJNI_STAT_COPY_IDENTITY,
+    CBOXJNI_STAT_INIT_FROM_PREKEY,
+    CBOXJNI_STAT_INIT_FROM_MESSAGE,
+    CBOXJNI_STAT_SESSION_LOAD,
+    CBOXJNI_STAT_SESSION_DELETE,
+    CBOXJNI_STAT_ENCRYPT,
+    CBOXJNI_STAT_DECRYPT,
+    CBOXJNI_STAT_SESSION_SAVE,
+    CBOXJNI_STAT_SESSION_CLOSE,
+    CBOXJNI_STAT_REMOTE_FINGERPRINT,
+    CBOXJNI_STAT_ENCRYPT_FROM_PREKEYS,
+    CBOXJNI_STAT_FINGERPRINT_PREKEY,
+    CBOXJNI_STAT_CHECK_PREKEYS,
+    CBOXJNI_STAT_COUNT
+} cboxjni_stat;
+
+// Per entry point: the number of calls, the total nanoseconds spent in the
+// entry point and the nanoseconds of that spent inside the cbox_* functions.
+// Everything else is JNI marshaling: pinning and copying arrays and strings,
+// allocating the result objects and raising exceptions.
+#define CBOXJNI_STAT_CALLS 0
+#define CBOXJNI_STAT_TOTAL 1
+#define CBOXJNI_STAT_CBOX  2
+#define CBOXJNI_STAT_FIELDS 3
+
+static uint64_t cboxjni_stats[CBOXJNI_STAT_COUNT][CBOXJNI_STAT_FIELDS];
+static int cboxjni_stats_enabled = 0;
+
+typedef struct {
+    cboxjni_stat stat;
+    uint64_t     start;
+    uint64_t     cbox_start;
+    uint64_t     cbox;
+} cboxjni_timer;
+
+static uint64_t cboxjni_now(void) {
+#ifdef _WIN32
+    LARGE_INTEGER freq, now;
+    QueryPerformanceFrequency(&freq);
+    QueryPerformanceCounter(&now);
+    return (uint64_t) (now.QuadPart / freq.QuadPart) * 1000000000u
+         + (uint64_t) (now.QuadPart % freq.QuadPart) * 1000000000u / freq.QuadPart;
+#else
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return (uint64_t) ts.tv_sec * 1000000000u + (uint64_t) ts.tv_nsec;
+#endif
+}
+
+static cboxjni_timer cboxjni_timer_start(cboxjni_stat stat) {
+    cboxjni_timer timer = { stat, 0, 0, 0 };
+    if (__atomic_load_n(&cboxjni_stats_enabled, __ATOMIC_RELAXED)) {
+        timer.start = cboxjni_now();
+    }
+    return timer;
+}
+
+static void cboxjni_timer_stop(cboxjni_timer * timer) {
+    if (timer->start == 0) {
+        return;
+    }
+    uint64_t total = cboxjni_now() - timer->start;
+    __atomic_fetch_add(&cboxjni_stats[timer->stat][CBOXJNI_STAT_CALLS], 1, __ATOMIC_RELAXED);
+    __atomic_fetch_add(&cboxjni_stats[timer->stat][CBOXJNI_STAT_TOTAL], total, __ATOMIC_RELAXED);
+    __atomic_fetch_add(&cboxjni_stats[timer->stat][CBOXJNI_STAT_CBOX], timer->cbox, __ATOMIC_RELAXED);
+}
+
+// Bracket a call into libcryptobox.
+static void cboxjni_timer_enter(cboxjni_timer * timer) {
+    if (timer->start != 0) {
+        timer->cbox_start = cboxjni_now();
+    }
+}
+
+static void cboxjni_timer_leave(cboxjni_timer * timer) {
+    if (timer->start != 0) {
+        timer->cbox += cboxjni_now() - timer->cbox_start;
+    }
+}
+
+// Declares a timer that is stopped on every return from the enclosing function.
+#define CBOXJNI_TIMER(name, stat) \
+    cboxjni_timer name __attribute__((cleanup(cboxjni_timer_stop))) = cboxjni_timer_start(stat)
+
+// Handles //////////////////////////////////////////////////////////////////
+
+// Gauges of the native resources currently held. Unlike the statistics they
+// are always maintained and never reset. Must be kept in sync with NativeStats.
+typedef enum {
+    CBOXJNI_HANDLE_BOXES,
+    CBOXJNI_HANDLE_SESSIONS,
+    CBOXJNI_HANDLE_VEC_BYTES,
+    CBOXJNI_HANDLE_COUNT
+} cboxjni_handle;
+
+static int64_t cboxjni_handles[CBOXJNI_HANDLE_COUNT];
+
+static void cboxjni_handles_add(cboxjni_handle handle, int64_t n) {
+    __atomic_fetch_add(&cboxjni_handles[handle], n, __ATOMIC_RELAXED);
+}
+
+// Account for a vector returned by libcryptobox, until cboxjni_vec_free.
+static CBoxVec * cboxjni_vec_acquired(CBoxVec * v) {
+    cboxjni_handles_add(CBOXJNI_HANDLE_VEC_BYTES, (int64_t) cbox_vec_len(v));
+    return v;
+}
+
+static void cboxjni_vec_free(CBoxVec * v) {
+    cboxjni_handles_add(CBOXJNI_HANDLE_VEC_BYTES, -(int64_t) cbox_vec_len(v));
+    cbox_vec_free(v);
+}
+
 // Utilities ////////////////////////////////////////////////////////////////
 
 void cboxjni_throw(JNIEnv * j_env, CBoxResult code) {
@@ -55,12 +186,12 @@ jbyteArray cboxjni_vec2arr(JNIEnv * j_env, CBoxVec * v) {
     size_t     v_len = cbox_vec_len(v);
     jbyteArray j_arr = (*j_env)->NewByteArray(j_env, v_len);
     if (cboxjni_check_error(j_env, j_arr)) {
-        cbox_vec_free(v);
+        cboxjni_vec_free(v);
         return NULL;
     }
 
     (*j_env)->SetByteArrayRegion(j_env, j_arr, 0, v_len, (jbyte *) cbox_vec_data(v));
-    cbox_vec_free(v);
+    cboxjni_vec_free(v);
     if ((*j_env)->ExceptionCheck(j_env) == JNI_TRUE) {
         return NULL;
     }
@@ -72,22 +203,31 @@ jobject cboxjni_new_session(JNIEnv * j_env, CBox * cbox, CBoxSession * csess, js
     jlong j_box_ptr  = (jlong) (intptr_t) cbox;
     jlong j_sess_ptr = (jlong) (intptr_t) csess;
     jobject j_sess   = (*j_env)->NewObject(j_env, cboxjni_sess_class, cboxjni_sess_ctor, j_box_ptr, j_sess_ptr, j_sid);
-    if (cboxjni_check_error(j_env, j_sess)) {
+    if (j_sess == NULL) {
+        // no CryptoSession owns the session, so it is neither counted nor closed later
+        cbox_session_close(csess);
+        return NULL;
+    }
+
+    cboxjni_handles_add(CBOXJNI_HANDLE_SESSIONS, 1);
+    if ((*j_env)->ExceptionCheck(j_env) == JNI_TRUE) {
         return NULL;
     }
 
     return j_sess;
 }
 
-jobject cboxjni_new_prekey(JNIEnv * j_env, CBox * cbox, uint16_t id) {
+jobject cboxjni_new_prekey(JNIEnv * j_env, CBox * cbox, uint16_t id, cboxjni_timer * timer) {
     CBoxVec * prekey = NULL;
+    cboxjni_timer_enter(timer);
     CBoxResult rc = cbox_new_prekey(cbox, id, &prekey);
+    cboxjni_timer_leave(timer);
     if (rc != CBOX_SUCCESS) {
         cboxjni_throw(j_env, rc);
         return NULL;
     }
 
-    jbyteArray j_prekey = cboxjni_vec2arr(j_env, prekey);
+    jbyteArray j_prekey = cboxjni_vec2arr(j_env, cboxjni_vec_acquired(prekey));
     if (j_prekey == NULL) {
         return NULL;
     }
@@ -104,13 +244,16 @@ jobject cboxjni_new_prekey(JNIEnv * j_env, CBox * cbox, uint16_t id) {
 
 JNIEXPORT jobject JNICALL
 cboxjni_open(JNIEnv * j_env, jclass j_class, jstring j_dir) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_OPEN);
     char const * dir = (*j_env)->GetStringUTFChars(j_env, j_dir, 0);
     if (cboxjni_check_error(j_env, dir)) {
         return NULL;
     }
 
     CBox * cbox = NULL;
+    cboxjni_timer_enter(&timer);
     CBoxResult rc = cbox_file_open(dir, &cbox);
+    cboxjni_timer_leave(&timer);
     (*j_env)->ReleaseStringUTFChars(j_env, j_dir, dir);
 
     if (rc != CBOX_SUCCESS) {
@@ -118,6 +261,7 @@ cboxjni_open(JNIEnv * j_env, jclass j_class, jstring j_dir) {
         return NULL;
     }
 
+    cboxjni_handles_add(CBOXJNI_HANDLE_BOXES, 1);
     jlong   ptr = (jlong) (intptr_t) cbox;
     jobject obj = (*j_env)->NewObject(j_env, j_class, cboxjni_box_ctor, ptr);
     if (cboxjni_check_error(j_env, obj)) {
@@ -129,6 +273,7 @@ cboxjni_open(JNIEnv * j_env, jclass j_class, jstring j_dir) {
 
 JNIEXPORT jobject JNICALL
 cboxjni_open_with(JNIEnv * j_env, jclass j_class, jstring j_dir, jbyteArray j_id, jint j_mode) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_OPEN_WITH);
     char const * dir = (*j_env)->GetStringUTFChars(j_env, j_dir, 0);
     if (cboxjni_check_error(j_env, dir)) {
         return NULL;
@@ -143,7 +288,9 @@ cboxjni_open_with(JNIEnv * j_env, jclass j_class, jstring j_dir, jbyteArray j_id
     }
 
     CBox * cbox = NULL;
+    cboxjni_timer_enter(&timer);
     CBoxResult rc = cbox_file_open_with(dir, (uint8_t *) id, id_len, j_mode, &cbox);
+    cboxjni_timer_leave(&timer);
 
     (*j_env)->ReleaseByteArrayElements(j_env, j_id, id, JNI_ABORT);
     (*j_env)->ReleaseStringUTFChars(j_env, j_dir, dir);
@@ -153,6 +300,7 @@ cboxjni_open_with(JNIEnv * j_env, jclass j_class, jstring j_dir, jbyteArray j_id
         return NULL;
     }
 
+    cboxjni_handles_add(CBOXJNI_HANDLE_BOXES, 1);
     jlong   ptr = (jlong) (intptr_t) cbox;
     jobject obj = (*j_env)->NewObject(j_env, j_class, cboxjni_box_ctor, ptr);
     if (cboxjni_check_error(j_env, obj)) {
@@ -164,17 +312,24 @@ cboxjni_open_with(JNIEnv * j_env, jclass j_class, jstring j_dir, jbyteArray j_id
 
 JNIEXPORT void JNICALL
 cboxjni_close(JNIEnv * j_env, jclass j_class, jlong j_ptr) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_CLOSE);
     CBox * cbox = (CBox *) (intptr_t) j_ptr;
+    cboxjni_timer_enter(&timer);
     cbox_close(cbox);
+    cboxjni_timer_leave(&timer);
+    cboxjni_handles_add(CBOXJNI_HANDLE_BOXES, -1);
 }
 
 JNIEXPORT void JNICALL
 cboxjni_is_prekey(JNIEnv * j_env, jclass j_class, jbyteArray j_prekey, jint j_prekey_id) {
+        CBOXJNI_TIMER(timer, CBOXJNI_STAT_IS_PREKEY);
         size_t prekey_len = (*j_env)->GetArrayLength(j_env, j_prekey);
         jbyte *  prekey   = (*j_env)->GetByteArrayElements(j_env, j_prekey, NULL);
 
         uint16_t id = (uint16_t) j_prekey_id;
+        cboxjni_timer_enter(&timer);
         CBoxResult rc = cbox_is_prekey((uint8_t *) prekey, prekey_len, &id);
+        cboxjni_timer_leave(&timer);
 
         (*j_env)->ReleaseByteArrayElements(j_env, j_prekey, prekey, JNI_ABORT);
 
@@ -183,15 +338,100 @@ cboxjni_is_prekey(JNIEnv * j_env, jclass j_class, jbyteArray j_prekey, jint j_pr
         }
 }
 
+JNIEXPORT jbyteArray JNICALL
+cboxjni_fingerprint_prekey(JNIEnv * j_env, jclass j_class, jbyteArray j_prekey) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_FINGERPRINT_PREKEY);
+    size_t  prekey_len = (*j_env)->GetArrayLength(j_env, j_prekey);
+    jbyte * prekey     = (*j_env)->GetByteArrayElements(j_env, j_prekey, NULL);
+    if (cboxjni_check_error(j_env, prekey)) {
+        return NULL;
+    }
+
+    CBoxVec * fp = NULL;
+    cboxjni_timer_enter(&timer);
+    CBoxResult rc = cbox_fingerprint_prekey((uint8_t *) prekey, prekey_len, &fp);
+    cboxjni_timer_leave(&timer);
+
+    (*j_env)->ReleaseByteArrayElements(j_env, j_prekey, prekey, JNI_ABORT);
+
+    if (rc != CBOX_SUCCESS) {
+        cboxjni_throw(j_env, rc);
+        return NULL;
+    }
+
+    return cboxjni_vec2arr(j_env, cboxjni_vec_acquired(fp));
+}
+
+// The length of the HEX encoded fingerprint of a public key.
+#define CBOXJNI_FINGERPRINT_LEN 64
+
+// Validates and fingerprints the prekeys [from, to). Writes the result code of
+// every prekey to codes and the fingerprints of the valid ones to fingerprints,
+// at CBOXJNI_FINGERPRINT_LEN bytes per prekey. Invalid prekeys are not an error.
+// Calls for disjoint ranges may run concurrently on the same arrays.
+JNIEXPORT void JNICALL
+cboxjni_check_prekeys(JNIEnv * j_env, jclass j_class, jobjectArray j_prekeys, jint j_from, jint j_to, jintArray j_codes, jbyteArray j_fingerprints) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_CHECK_PREKEYS);
+    jint * codes = malloc(sizeof(jint) * (j_to - j_from + 1));
+    if (codes == NULL) {
+        cboxjni_throw(j_env, CBOX_PANIC);
+        return;
+    }
+
+    for (jint i = j_from; i < j_to; ++i) {
+        jbyteArray j_prekey = (jbyteArray) (*j_env)->GetObjectArrayElement(j_env, j_prekeys, i);
+        if (j_prekey == NULL) {
+            codes[i - j_from] = CBOX_DECODE_ERROR;
+            continue;
+        }
+
+        size_t  prekey_len = (*j_env)->GetArrayLength(j_env, j_prekey);
+        jbyte * prekey     = (*j_env)->GetByteArrayElements(j_env, j_prekey, NULL);
+        if (cboxjni_check_error(j_env, prekey)) {
+            free(codes);
+            return;
+        }
+
+        uint16_t  id = 0;
+        CBoxVec * fp = NULL;
+        cboxjni_timer_enter(&timer);
+        CBoxResult rc = cbox_is_prekey((uint8_t *) prekey, prekey_len, &id);
+        if (rc == CBOX_SUCCESS) {
+            rc = cbox_fingerprint_prekey((uint8_t *) prekey, prekey_len, &fp);
+        }
+        cboxjni_timer_leave(&timer);
+
+        (*j_env)->ReleaseByteArrayElements(j_env, j_prekey, prekey, JNI_ABORT);
+        (*j_env)->DeleteLocalRef(j_env, j_prekey);
+
+        if (fp != NULL) {
+            cboxjni_vec_acquired(fp);
+            if (cbox_vec_len(fp) == CBOXJNI_FINGERPRINT_LEN) {
+                (*j_env)->SetByteArrayRegion(j_env, j_fingerprints, i * CBOXJNI_FINGERPRINT_LEN,
+                                             CBOXJNI_FINGERPRINT_LEN, (jbyte *) cbox_vec_data(fp));
+            } else {
+                rc = CBOX_DECODE_ERROR;
+            }
+            cboxjni_vec_free(fp);
+        }
+        codes[i - j_from] = rc;
+    }
+
+    (*j_env)->SetIntArrayRegion(j_env, j_codes, j_from, j_to - j_from, codes);
+    free(codes);
+}
+
 JNIEXPORT jobject JNICALL
 cboxjni_new_last_prekey(JNIEnv * j_env, jclass j_class, jlong j_ptr) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_NEW_LAST_PREKEY);
     CBox * cbox = (CBox *) (intptr_t) j_ptr;
 
-    return cboxjni_new_prekey(j_env, cbox, CBOX_LAST_PREKEY_ID);
+    return cboxjni_new_prekey(j_env, cbox, CBOX_LAST_PREKEY_ID, &timer);
 }
 
 JNIEXPORT jobjectArray JNICALL
 cboxjni_new_prekeys(JNIEnv * j_env, jclass j_class, jlong j_ptr, jint j_start, jint j_num) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_NEW_PREKEYS);
     CBox * cbox = (CBox *) (intptr_t) j_ptr;
 
     jobjectArray bundles = (*j_env)->NewObjectArray(j_env, j_num, cboxjni_pkbundle_class, 0);
@@ -201,7 +441,7 @@ cboxjni_new_prekeys(JNIEnv * j_env, jclass j_class, jlong j_ptr, jint j_start, j
 
     for (int i = 0; i < j_num; ++i) {
         uint16_t id = (j_start + i) % 0xFFFF;
-        jobject j_pkb = cboxjni_new_prekey(j_env, cbox, id);
+        jobject j_pkb = cboxjni_new_prekey(j_env, cbox, id, &timer);
         (*j_env)->SetObjectArrayElement(j_env, bundles, i, j_pkb);
         if ((*j_env)->ExceptionCheck(j_env) == JNI_TRUE) {
             return NULL;
@@ -213,35 +453,42 @@ cboxjni_new_prekeys(JNIEnv * j_env, jclass j_class, jlong j_ptr, jint j_start, j
 
 JNIEXPORT jbyteArray JNICALL
 cboxjni_local_fingerprint(JNIEnv * j_env, jclass j_class, jlong j_ptr) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_LOCAL_FINGERPRINT);
     CBox * cbox = (CBox *) (intptr_t) j_ptr;
 
     CBoxVec * fp = NULL;
+    cboxjni_timer_enter(&timer);
     CBoxResult rc = cbox_fingerprint_local(cbox, &fp);
+    cboxjni_timer_leave(&timer);
     if (rc != CBOX_SUCCESS) {
         cboxjni_throw(j_env, rc);
         return NULL;
     }
 
-    return cboxjni_vec2arr(j_env, fp);
+    return cboxjni_vec2arr(j_env, cboxjni_vec_acquired(fp));
 }
 
 JNIEXPORT jbyteArray JNICALL
 cboxjni_copy_identity(JNIEnv * j_env, jclass j_class, jlong j_ptr) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_COPY_IDENTITY);
     CBox * cbox = (CBox *) (intptr_t) j_ptr;
 
     CBoxVec * id = NULL;
+    cboxjni_timer_enter(&timer);
     CBoxResult rc = cbox_identity_copy(cbox, &id);
+    cboxjni_timer_leave(&timer);
 
     if (rc != CBOX_SUCCESS) {
         cboxjni_throw(j_env, rc);
         return NULL;
     }
 
-    return cboxjni_vec2arr(j_env, id);
+    return cboxjni_vec2arr(j_env, cboxjni_vec_acquired(id));
 }
 
 JNIEXPORT jobject JNICALL
 cboxjni_init_from_prekey(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j_sid, jbyteArray j_prekey) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_INIT_FROM_PREKEY);
     char const * sid = (*j_env)->GetStringUTFChars(j_env, j_sid, 0);
     if (cboxjni_check_error(j_env, sid)) {
         return NULL;
@@ -258,7 +505,9 @@ cboxjni_init_from_prekey(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j_
     }
 
     CBoxSession * sess = NULL;
+    cboxjni_timer_enter(&timer);
     CBoxResult rc = cbox_session_init_from_prekey(cbox, sid, (uint8_t *) prekey, prekey_len, &sess);
+    cboxjni_timer_leave(&timer);
 
     (*j_env)->ReleaseByteArrayElements(j_env, j_prekey, prekey, JNI_ABORT);
     (*j_env)->ReleaseStringUTFChars(j_env, j_sid, sid);
@@ -273,6 +522,7 @@ cboxjni_init_from_prekey(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j_
 
 JNIEXPORT jobject JNICALL
 cboxjni_init_from_message(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j_sid, jbyteArray j_message) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_INIT_FROM_MESSAGE);
     char const * sid = (*j_env)->GetStringUTFChars(j_env, j_sid, 0);
     if (cboxjni_check_error(j_env, sid)) {
         return NULL;
@@ -290,7 +540,9 @@ cboxjni_init_from_message(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j
 
     CBoxSession * sess = NULL;
     CBoxVec * plain = NULL;
+    cboxjni_timer_enter(&timer);
     CBoxResult rc = cbox_session_init_from_message(cbox, sid, (uint8_t *) message, message_len, &sess, &plain);
+    cboxjni_timer_leave(&timer);
 
     (*j_env)->ReleaseByteArrayElements(j_env, j_message, message, JNI_ABORT);
     (*j_env)->ReleaseStringUTFChars(j_env, j_sid, sid);
@@ -300,7 +552,12 @@ cboxjni_init_from_message(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j
         return NULL;
     }
 
+    cboxjni_vec_acquired(plain);
     jobject j_sess = cboxjni_new_session(j_env, cbox, sess, j_sid);
+    if (j_sess == NULL) {
+        cboxjni_vec_free(plain);
+        return NULL;
+    }
 
     jbyteArray j_plaintext = cboxjni_vec2arr(j_env, plain);
     if (j_plaintext == NULL) {
@@ -314,6 +571,7 @@ cboxjni_init_from_message(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j
 
 JNIEXPORT jobject JNICALL
 cboxjni_session_load(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j_sid) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_SESSION_LOAD);
     char const * sid = (*j_env)->GetStringUTFChars(j_env, j_sid, 0);
     if (cboxjni_check_error(j_env, sid)) {
         return NULL;
@@ -322,7 +580,9 @@ cboxjni_session_load(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j_sid)
     CBox * cbox = (CBox *) (intptr_t) j_ptr;
 
     CBoxSession * csess = NULL;
+    cboxjni_timer_enter(&timer);
     CBoxResult rc = cbox_session_load(cbox, sid, &csess);
+    cboxjni_timer_leave(&timer);
 
     (*j_env)->ReleaseStringUTFChars(j_env, j_sid, sid);
 
@@ -336,6 +596,7 @@ cboxjni_session_load(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j_sid)
 
 JNIEXPORT void JNICALL
 cboxjni_session_delete(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j_sid) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_SESSION_DELETE);
     char const * sid = (*j_env)->GetStringUTFChars(j_env, j_sid, 0);
     if (cboxjni_check_error(j_env, sid)) {
         return;
@@ -343,7 +604,9 @@ cboxjni_session_delete(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j_si
 
     CBox * cbox = (CBox *) (intptr_t) j_ptr;
 
+    cboxjni_timer_enter(&timer);
     CBoxResult rc = cbox_session_delete(cbox, sid);
+    cboxjni_timer_leave(&timer);
 
     (*j_env)->ReleaseStringUTFChars(j_env, j_sid, sid);
 
@@ -352,10 +615,112 @@ cboxjni_session_delete(JNIEnv * j_env, jclass j_class, jlong j_ptr, jstring j_si
     }
 }
 
+// Initialises, encrypts for and saves one session per prekey in one pass.
+// All prekeys are validated before the first session is initialised.
+JNIEXPORT jobjectArray JNICALL
+cboxjni_encrypt_from_prekeys(JNIEnv * j_env, jclass j_class, jlong j_ptr, jobjectArray j_sids, jobjectArray j_prekeys, jbyteArray j_plain) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_ENCRYPT_FROM_PREKEYS);
+    CBox * cbox = (CBox *) (intptr_t) j_ptr;
+    jsize  n    = (*j_env)->GetArrayLength(j_env, j_sids);
+
+    for (jsize i = 0; i < n; ++i) {
+        jbyteArray j_prekey   = (jbyteArray) (*j_env)->GetObjectArrayElement(j_env, j_prekeys, i);
+        size_t     prekey_len = (*j_env)->GetArrayLength(j_env, j_prekey);
+        jbyte *    prekey     = (*j_env)->GetByteArrayElements(j_env, j_prekey, NULL);
+        if (cboxjni_check_error(j_env, prekey)) {
+            return NULL;
+        }
+
+        uint16_t id = 0;
+        cboxjni_timer_enter(&timer);
+        CBoxResult rc = cbox_is_prekey((uint8_t *) prekey, prekey_len, &id);
+        cboxjni_timer_leave(&timer);
+
+        (*j_env)->ReleaseByteArrayElements(j_env, j_prekey, prekey, JNI_ABORT);
+        (*j_env)->DeleteLocalRef(j_env, j_prekey);
+
+        if (rc != CBOX_SUCCESS) {
+            cboxjni_throw(j_env, rc);
+            return NULL;
+        }
+    }
+
+    jobjectArray j_ciphers = (*j_env)->NewObjectArray(j_env, n, cboxjni_bytearr_class, NULL);
+    if (cboxjni_check_error(j_env, j_ciphers)) {
+        return NULL;
+    }
+
+    size_t  plain_len = (*j_env)->GetArrayLength(j_env, j_plain);
+    jbyte * plain     = (*j_env)->GetByteArrayElements(j_env, j_plain, NULL);
+    if (cboxjni_check_error(j_env, plain)) {
+        return NULL;
+    }
+
+    for (jsize i = 0; i < n; ++i) {
+        jstring      j_sid = (jstring) (*j_env)->GetObjectArrayElement(j_env, j_sids, i);
+        char const * sid   = (*j_env)->GetStringUTFChars(j_env, j_sid, 0);
+        if (cboxjni_check_error(j_env, sid)) {
+            break;
+        }
+
+        jbyteArray j_prekey   = (jbyteArray) (*j_env)->GetObjectArrayElement(j_env, j_prekeys, i);
+        size_t     prekey_len = (*j_env)->GetArrayLength(j_env, j_prekey);
+        jbyte *    prekey     = (*j_env)->GetByteArrayElements(j_env, j_prekey, NULL);
+        if (cboxjni_check_error(j_env, prekey)) {
+            (*j_env)->ReleaseStringUTFChars(j_env, j_sid, sid);
+            break;
+        }
+
+        CBoxSession * sess   = NULL;
+        CBoxVec     * cipher = NULL;
+        cboxjni_timer_enter(&timer);
+        CBoxResult rc = cbox_session_init_from_prekey(cbox, sid, (uint8_t *) prekey, prekey_len, &sess);
+        if (rc == CBOX_SUCCESS) {
+            rc = cbox_encrypt(sess, (uint8_t *) plain, plain_len, &cipher);
+            if (rc == CBOX_SUCCESS) {
+                rc = cbox_session_save(cbox, sess);
+            }
+            cbox_session_close(sess);
+        }
+        cboxjni_timer_leave(&timer);
+
+        (*j_env)->ReleaseByteArrayElements(j_env, j_prekey, prekey, JNI_ABORT);
+        (*j_env)->ReleaseStringUTFChars(j_env, j_sid, sid);
+        (*j_env)->DeleteLocalRef(j_env, j_prekey);
+        (*j_env)->DeleteLocalRef(j_env, j_sid);
+
+        if (cipher != NULL) {
+            cboxjni_vec_acquired(cipher);
+            if (rc != CBOX_SUCCESS) {
+                cboxjni_vec_free(cipher);
+            }
+        }
+        if (rc != CBOX_SUCCESS) {
+            cboxjni_throw(j_env, rc);
+            break;
+        }
+
+        jbyteArray j_cipher = cboxjni_vec2arr(j_env, cipher);
+        if (j_cipher == NULL) {
+            break;
+        }
+        (*j_env)->SetObjectArrayElement(j_env, j_ciphers, i, j_cipher);
+        (*j_env)->DeleteLocalRef(j_env, j_cipher);
+    }
+
+    (*j_env)->ReleaseByteArrayElements(j_env, j_plain, plain, JNI_ABORT);
+
+    if ((*j_env)->ExceptionCheck(j_env) == JNI_TRUE) {
+        return NULL;
+    }
+    return j_ciphers;
+}
+
 // CryptoSession ////////////////////////////////////////////////////////////
 
 JNIEXPORT jbyteArray JNICALL
 cboxjni_session_encrypt(JNIEnv * j_env, jclass j_class, jlong j_ptr, jbyteArray j_plain) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_ENCRYPT);
     CBoxSession * csess = (CBoxSession *) (intptr_t) j_ptr;
 
     size_t plain_len = (*j_env)->GetArrayLength(j_env, j_plain);
@@ -366,7 +731,9 @@ cboxjni_session_encrypt(JNIEnv * j_env, jclass j_class, jlong j_ptr, jbyteArray
     }
 
     CBoxVec * cipher = NULL;
+    cboxjni_timer_enter(&timer);
     CBoxResult rc = cbox_encrypt(csess, (uint8_t *) plain, plain_len, &cipher);
+    cboxjni_timer_leave(&timer);
 
     (*j_env)->ReleaseByteArrayElements(j_env, j_plain, plain, JNI_ABORT);
 
@@ -375,11 +742,12 @@ cboxjni_session_encrypt(JNIEnv * j_env, jclass j_class, jlong j_ptr, jbyteArray
         return NULL;
     }
 
-    return cboxjni_vec2arr(j_env, cipher);
+    return cboxjni_vec2arr(j_env, cboxjni_vec_acquired(cipher));
 }
 
 JNIEXPORT jbyteArray JNICALL
 cboxjni_session_decrypt(JNIEnv * j_env, jclass j_class, jlong j_ptr, jbyteArray j_cipher) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_DECRYPT);
     CBoxSession * csess = (CBoxSession *) (intptr_t) j_ptr;
 
     size_t cipher_len = (*j_env)->GetArrayLength(j_env, j_cipher);
@@ -390,7 +758,9 @@ cboxjni_session_decrypt(JNIEnv * j_env, jclass j_class, jlong j_ptr, jbyteArray
     }
 
     CBoxVec * plain = NULL;
+    cboxjni_timer_enter(&timer);
     CBoxResult rc = cbox_decrypt(csess, (uint8_t *) cipher, cipher_len, &plain);
+    cboxjni_timer_leave(&timer);
 
     (*j_env)->ReleaseByteArrayElements(j_env, j_cipher, cipher, JNI_ABORT);
 
@@ -399,15 +769,18 @@ cboxjni_session_decrypt(JNIEnv * j_env, jclass j_class, jlong j_ptr, jbyteArray
         return NULL;
     }
 
-    return cboxjni_vec2arr(j_env, plain);
+    return cboxjni_vec2arr(j_env, cboxjni_vec_acquired(plain));
 }
 
 JNIEXPORT void JNICALL
 cboxjni_session_save(JNIEnv * j_env, jclass j_class, jlong j_box_ptr, jlong j_ptr) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_SESSION_SAVE);
     CBox        * cbox  = (CBox *) (intptr_t) j_box_ptr;
     CBoxSession * csess = (CBoxSession *) (intptr_t) j_ptr;
 
+    cboxjni_timer_enter(&timer);
     CBoxResult rc = cbox_session_save(cbox, csess);
+    cboxjni_timer_leave(&timer);
     if (rc != CBOX_SUCCESS) {
         cboxjni_throw(j_env, rc);
     }
@@ -415,23 +788,66 @@ cboxjni_session_save(JNIEnv * j_env, jclass j_class, jlong j_box_ptr, jlong j_pt
 
 JNIEXPORT void JNICALL
 cboxjni_session_close(JNIEnv * j_env, jclass j_class, jlong j_ptr) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_SESSION_CLOSE);
     CBoxSession * csess = (CBoxSession *) (intptr_t) j_ptr;
 
+    cboxjni_timer_enter(&timer);
     cbox_session_close(csess);
+    cboxjni_timer_leave(&timer);
+    cboxjni_handles_add(CBOXJNI_HANDLE_SESSIONS, -1);
 }
 
 JNIEXPORT jbyteArray JNICALL
 cboxjni_remote_fingerprint(JNIEnv * j_env, jclass j_class, jlong j_ptr) {
+    CBOXJNI_TIMER(timer, CBOXJNI_STAT_REMOTE_FINGERPRINT);
     CBoxSession * csess = (CBoxSession *) (intptr_t) j_ptr;
 
     CBoxVec * fp = NULL;
+    cboxjni_timer_enter(&timer);
     CBoxResult rc = cbox_fingerprint_remote(csess, &fp);
+    cboxjni_timer_leave(&timer);
     if (rc != CBOX_SUCCESS) {
         cboxjni_throw(j_env, rc);
         return NULL;
     }
 
-    return cboxjni_vec2arr(j_env, fp);
+    return cboxjni_vec2arr(j_env, cboxjni_vec_acquired(fp));
+}
+
+// NativeStats //////////////////////////////////////////////////////////////
+
+JNIEXPORT void JNICALL
+cboxjni_stats_set_enabled(JNIEnv * j_env, jclass j_class, jboolean j_enabled) {
+    __atomic_store_n(&cboxjni_stats_enabled, j_enabled == JNI_TRUE, __ATOMIC_RELAXED);
+}
+
+JNIEXPORT void JNICALL
+cboxjni_stats_get(JNIEnv * j_env, jclass j_class, jlongArray j_stats) {
+    jlong stats[CBOXJNI_STAT_COUNT * CBOXJNI_STAT_FIELDS];
+    for (int i = 0; i < CBOXJNI_STAT_COUNT; ++i) {
+        for (int f = 0; f < CBOXJNI_STAT_FIELDS; ++f) {
+            stats[i * CBOXJNI_STAT_FIELDS + f] = (jlong) __atomic_load_n(&cboxjni_stats[i][f], __ATOMIC_RELAXED);
+        }
+    }
+    (*j_env)->SetLongArrayRegion(j_env, j_stats, 0, CBOXJNI_STAT_COUNT * CBOXJNI_STAT_FIELDS, stats);
+}
+
+JNIEXPORT void JNICALL
+cboxjni_stats_reset(JNIEnv * j_env, jclass j_class) {
+    for (int i = 0; i < CBOXJNI_STAT_COUNT; ++i) {
+        for (int f = 0; f < CBOXJNI_STAT_FIELDS; ++f) {
+            __atomic_store_n(&cboxjni_stats[i][f], 0, __ATOMIC_RELAXED);
+        }
+    }
+}
+
+JNIEXPORT void JNICALL
+cboxjni_handles_get(JNIEnv * j_env, jclass j_class, jlongArray j_handles) {
+    jlong handles[CBOXJNI_HANDLE_COUNT];
+    for (int i = 0; i < CBOXJNI_HANDLE_COUNT; ++i) {
+        handles[i] = (jlong) __atomic_load_n(&cboxjni_handles[i], __ATOMIC_RELAXED);
+    }
+    (*j_env)->SetLongArrayRegion(j_env, j_handles, 0, CBOXJNI_HANDLE_COUNT, handles);
 }
 
 // Bookkeeping //////////////////////////////////////////////////////////////
@@ -448,7 +864,14 @@ static JNINativeMethod cboxjni_box_methods[] = {
     { "jniInitSessionFromMessage"   , "(JLjava/lang/String;[B)Lcom/wire/bots/cryptobox/SessionMessage;" , (void *) cboxjni_init_from_message },
     { "jniLoadSession"              , "(JLjava/lang/String;)Lcom/wire/bots/cryptobox/CryptoSession;"    , (void *) cboxjni_session_load      },
     { "jniDeleteSession"            , "(JLjava/lang/String;)V"                                          , (void *) cboxjni_session_delete    },
-    { "jniIsPreKey"                 , "([BI)V"                                                          , (void *) cboxjni_is_prekey         }
+    { "jniIsPreKey"                 , "([BI)V"                                                          , (void *) cboxjni_is_prekey         },
+    { "jniEncryptFromPreKeys"       , "(J[Ljava/lang/String;[[B[B)[[B"                                  , (void *) cboxjni_encrypt_from_prekeys },
+    { "jniGetFingerprintFromPrekey" , "([B)[B"                                                          , (void *) cboxjni_fingerprint_prekey },
+    { "jniCheckPreKeys"             , "([[BII[I[B)V"                                                    , (void *) cboxjni_check_prekeys     },
+    { "jniSetStatsEnabled"          , "(Z)V"                                                            , (void *) cboxjni_stats_set_enabled },
+    { "jniGetStats"                 , "([J)V"                                                           , (void *) cboxjni_stats_get         },
+    { "jniResetStats"               , "()V"                                                             , (void *) cboxjni_stats_reset       },
+    { "jniGetHandles"               , "([J)V"                                                           , (void *) cboxjni_handles_get       }
 };
 
 static JNINativeMethod cboxjni_sess_methods[] = {
@@ -516,7 +939,7 @@ jint JNI_OnLoad(JavaVM * vm, void * reserved) {
     if (cboxjni_sessmsg_ctor == NULL) return JNI_ERR;
 
     cboxjni_pkbundle_ctor = cboxjni_find_method(j_env, cboxjni_pkbundle_class, "<init>", "(I[B)V");
-    if (cboxjni_sessmsg_ctor == NULL) return JNI_ERR;
+    if (cboxjni_pkbundle_ctor == NULL) return JNI_ERR;
 
     jint rc = (*j_env)->RegisterNatives(j_env, cboxjni_box_class, cboxjni_box_methods, sizeof(cboxjni_box_methods)/sizeof(cboxjni_box_methods[0]));
     if (rc < 0) return JNI_ERR;
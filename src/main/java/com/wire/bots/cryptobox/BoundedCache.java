@@ -0,0 +1,129 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * A least recently used cache with a maximum size and a time to live per entry.
+ * <p>
+ * Expired entries are dropped when they are looked up or when they reach the
+ * eldest end of the cache. All methods are synchronized, so keep the values
+ * cheap to compute outside of the cache.
+ * </p>
+ */
+final class BoundedCache<K, V> {
+    private final int maxSize;
+    private final long ttl;
+    private final LongSupplier ticker;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    BoundedCache(int maxSize, long ttl, TimeUnit unit) {
+        this(maxSize, ttl, unit, System::nanoTime);
+    }
+
+    BoundedCache(int maxSize, long ttl, TimeUnit unit, LongSupplier ticker) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("maxSize must be positive");
+        }
+        this.maxSize = maxSize;
+        this.ttl = unit.toNanos(ttl);
+        this.ticker = ticker;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    synchronized V get(K key) {
+        final Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (isExpired(entry, ticker.getAsLong())) {
+            entries.remove(key);
+            evictions++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.value;
+    }
+
+    synchronized void put(K key, V value) {
+        final long now = ticker.getAsLong();
+        entries.put(key, new Entry<>(value, now));
+        final Iterator<Entry<V>> it = entries.values().iterator();
+        while (it.hasNext()) {
+            final Entry<V> eldest = it.next();
+            if (entries.size() <= maxSize && !isExpired(eldest, now)) {
+                break;
+            }
+            it.remove();
+            evictions++;
+        }
+    }
+
+    synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    synchronized void removeIf(Predicate<? super K> filter) {
+        entries.keySet().removeIf(filter);
+    }
+
+    synchronized void clear() {
+        entries.clear();
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    synchronized long getHits() {
+        return hits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * The number of entries dropped because the cache was full or they expired.
+     */
+    synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private boolean isExpired(Entry<V> entry, long now) {
+        return now - entry.created >= ttl;
+    }
+
+    private static final class Entry<V> {
+        final V value;
+        final long created;
+
+        Entry(V value, long created) {
+            this.value = value;
+            this.created = created;
+        }
+    }
+}
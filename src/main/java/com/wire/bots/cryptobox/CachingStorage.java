@@ -0,0 +1,323 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>An {@link IStorage} that serves reads from a cache in front of another storage.</p>
+ *
+ * <p>Sessions, identities and prekeys read from the wrapped storage are kept for the
+ * given time, up to the given number of entries of each kind, see {@link BoundedCache}.
+ * Writes go through to the wrapped storage and update the cache: a session persisted
+ * through a cached record is persisted with the record the wrapped storage returned
+ * first, so {@link IRecord#persist} of the wrapped storage must write the data by key
+ * and not depend on being called once per fetch. Records of the wrapped storage that
+ * are {@link IDeltaRecord}s stay delta records: the checkpoint and the deltas are
+ * cached, and deltas are appended to both.</p>
+ *
+ * <p>The cache is only coherent as long as this process is the only writer of a box,
+ * i.e. while it owns the bot. Call {@link #invalidate} when the ownership of a bot
+ * moves to another node, and {@link #invalidateAll} when the ownership of all bots
+ * is given up.</p>
+ *
+ * <p>Create it with {@link #of}, which keeps the {@link ISessionListing} of the wrapped
+ * storage. Session IDs are not cached but always listed by the wrapped storage.</p>
+ */
+public class CachingStorage implements IStorage {
+    private final IStorage storage;
+    private final BoundedCache<SessionKey, CachedSession> sessions;
+    private final BoundedCache<String, byte[]> identities;
+    private final BoundedCache<String, PreKey[]> prekeys;
+
+    /**
+     * @param storage The storage to wrap.
+     * @param maxSize The maximum number of sessions, identities and prekey lists each.
+     * @param ttl     The time an entry is kept after it was read or written.
+     * @param unit    The unit of {@code ttl}.
+     */
+    protected CachingStorage(IStorage storage, int maxSize, long ttl, TimeUnit unit) {
+        this.storage = storage;
+        this.sessions = new BoundedCache<>(maxSize, ttl, unit);
+        this.identities = new BoundedCache<>(maxSize, ttl, unit);
+        this.prekeys = new BoundedCache<>(maxSize, ttl, unit);
+    }
+
+    /**
+     * Wrap a storage, see {@link #CachingStorage}.
+     *
+     * @return A caching storage that is an {@link ISessionListing} if {@code storage} is one.
+     */
+    public static CachingStorage of(IStorage storage, int maxSize, long ttl, TimeUnit unit) {
+        return storage instanceof ISessionListing
+                ? new Listing((ISessionListing) storage, maxSize, ttl, unit)
+                : new CachingStorage(storage, maxSize, ttl, unit);
+    }
+
+    @Override
+    public IRecord fetchSession(String id, String sid) throws StorageException {
+        final SessionKey key = new SessionKey(id, sid);
+        final CachedSession cached = sessions.get(key);
+        if (cached != null) {
+            return record(key, cached, true);
+        }
+        final IRecord record = storage.fetchSession(id, sid);
+        if (record == null) {
+            return null;
+        }
+        final CachedSession session = new CachedSession(record, record.getData(), deltas(record));
+        sessions.put(key, session);
+        return record(key, session, false);
+    }
+
+    /**
+     * Whether a record was served from the cache, without being fetched, and locked, in
+     * the wrapped storage, so that nothing keeps another writer from writing it meanwhile.
+     */
+    static boolean isCached(IRecord record) {
+        return record instanceof Record && ((Record) record).cached;
+    }
+
+    @Override
+    public byte[] fetchIdentity(String id) throws StorageException {
+        byte[] identity = identities.get(id);
+        if (identity == null) {
+            identity = storage.fetchIdentity(id);
+            if (identity != null) {
+                identities.put(id, identity);
+            }
+        }
+        return identity;
+    }
+
+    @Override
+    public void insertIdentity(String id, byte[] data) throws StorageException {
+        storage.insertIdentity(id, data);
+        if (data != null) {
+            identities.put(id, data);
+        } else {
+            identities.remove(id);
+        }
+    }
+
+    @Override
+    public PreKey[] fetchPrekeys(String id) throws StorageException {
+        PreKey[] ret = prekeys.get(id);
+        if (ret == null) {
+            ret = storage.fetchPrekeys(id);
+            if (ret != null) {
+                prekeys.put(id, ret);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public void insertPrekey(String id, int kid, byte[] data) throws StorageException {
+        storage.insertPrekey(id, kid, data);
+        prekeys.remove(id);
+    }
+
+    @Override
+    public void purge(String id) throws StorageException {
+        try {
+            storage.purge(id);
+        } finally {
+            invalidate(id);
+        }
+    }
+
+    /**
+     * Drop everything cached of the given box, so that the next reads go to the wrapped storage.
+     *
+     * @param id The ID of the box, e.g. of a bot this node no longer owns.
+     */
+    public void invalidate(String id) {
+        sessions.removeIf(key -> key.id.equals(id));
+        identities.remove(id);
+        prekeys.remove(id);
+    }
+
+    /**
+     * Drop everything cached.
+     */
+    public void invalidateAll() {
+        sessions.clear();
+        identities.clear();
+        prekeys.clear();
+    }
+
+    /**
+     * The number of reads answered from the cache.
+     */
+    public long getHits() {
+        return sessions.getHits() + identities.getHits() + prekeys.getHits();
+    }
+
+    /**
+     * The number of reads that went to the wrapped storage.
+     */
+    public long getMisses() {
+        return sessions.getMisses() + identities.getMisses() + prekeys.getMisses();
+    }
+
+    /**
+     * The share of reads answered from the cache, 0 before the first read.
+     */
+    public double getHitRatio() {
+        final long hits = getHits();
+        final long total = hits + getMisses();
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    /**
+     * The number of entries dropped because the cache was full or they expired.
+     */
+    public long getEvictions() {
+        return sessions.getEvictions() + identities.getEvictions() + prekeys.getEvictions();
+    }
+
+    /**
+     * The number of sessions cached.
+     */
+    public int getCachedSessions() {
+        return sessions.size();
+    }
+
+    private IRecord record(SessionKey key, CachedSession session, boolean cached) {
+        return session.record instanceof IDeltaRecord
+                ? new DeltaRecord(key, session, cached) : new Record(key, session, cached);
+    }
+
+    private static List<byte[]> deltas(IRecord record) {
+        if (record instanceof IDeltaRecord) {
+            final List<byte[]> deltas = ((IDeltaRecord) record).getDeltas();
+            if (deltas != null) {
+                return Collections.unmodifiableList(new ArrayList<>(deltas));
+            }
+        }
+        return Collections.emptyList();
+    }
+
+    private class Record implements IRecord {
+        final SessionKey key;
+        final CachedSession session;
+        final boolean cached;
+
+        Record(SessionKey key, CachedSession session, boolean cached) {
+            this.key = key;
+            this.session = session;
+            this.cached = cached;
+        }
+
+        @Override
+        public byte[] getData() {
+            return session.data;
+        }
+
+        @Override
+        public void persist(byte[] data) {
+            try {
+                session.record.persist(data);
+            } catch (RuntimeException e) {
+                sessions.remove(key);
+                throw e;
+            }
+            sessions.put(key, new CachedSession(session.record, data, Collections.emptyList()));
+        }
+    }
+
+    private final class DeltaRecord extends Record implements IDeltaRecord {
+        DeltaRecord(SessionKey key, CachedSession session, boolean cached) {
+            super(key, session, cached);
+        }
+
+        @Override
+        public List<byte[]> getDeltas() {
+            return session.deltas;
+        }
+
+        @Override
+        public void persistDelta(byte[] delta) {
+            try {
+                ((IDeltaRecord) session.record).persistDelta(delta);
+            } catch (RuntimeException e) {
+                sessions.remove(key);
+                throw e;
+            }
+            final List<byte[]> deltas = new ArrayList<>(session.deltas);
+            deltas.add(delta);
+            sessions.put(key, new CachedSession(session.record, session.data, Collections.unmodifiableList(deltas)));
+        }
+    }
+
+    private static final class CachedSession {
+        final IRecord record;
+        final byte[] data;
+        final List<byte[]> deltas;
+
+        CachedSession(IRecord record, byte[] data, List<byte[]> deltas) {
+            this.record = record;
+            this.data = data;
+            this.deltas = deltas;
+        }
+    }
+
+    private static final class SessionKey {
+        final String id;
+        final String sid;
+
+        SessionKey(String id, String sid) {
+            this.id = id;
+            this.sid = sid;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SessionKey)) {
+                return false;
+            }
+            final SessionKey other = (SessionKey) o;
+            return id.equals(other.id) && sid.equals(other.sid);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(id, sid);
+        }
+    }
+    private static final class Listing extends CachingStorage implements ISessionListing {
+        private final ISessionListing storage;
+
+        Listing(ISessionListing storage, int maxSize, long ttl, TimeUnit unit) {
+            super(storage, maxSize, ttl, unit);
+            this.storage = storage;
+        }
+
+        @Override
+        public Iterator<String> listSessions(String id, String prefix) throws StorageException {
+            return storage.listSessions(id, prefix);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+/**
+ * A mutation of the state of a box in the storage, as recorded in a {@link ChangeJournal}.
+ */
+public final class Change {
+    private final long sequence;
+    private final Type type;
+    private final String id;
+    private final String key;
+    private final byte[] data;
+    final long end;
+
+    Change(long sequence, Type type, String id, String key, byte[] data, long end) {
+        this.sequence = sequence;
+        this.type = type;
+        this.id = id;
+        this.key = key;
+        this.data = data;
+        this.end = end;
+    }
+
+    /**
+     * The position of the change in the journal, increasing by 1 with every change.
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * The ID of the box.
+     */
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * The session ID for {@link Type#SESSION}, the prekey ID for {@link Type#PREKEY},
+     * {@code local} for {@link Type#IDENTITY} and null for {@link Type#PURGE}.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * The new content, null for {@link Type#PURGE}.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d %s %s/%s (%d bytes)", sequence, type, id, key, data == null ? 0 : data.length);
+    }
+
+    public enum Type {
+        IDENTITY,
+        PREKEY,
+        SESSION,
+        PURGE
+    }
+}
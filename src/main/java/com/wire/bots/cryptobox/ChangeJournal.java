@@ -0,0 +1,35 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.io.IOException;
+
+/**
+ * An ordered log of the mutations {@link CryptoDb} makes to its storage, for replicating
+ * or backing up boxes incrementally, see {@link CryptoDb#setJournal}.
+ */
+public interface ChangeJournal {
+    /**
+     * Append a change after it was written to the storage.
+     *
+     * @param type The kind of change.
+     * @param id   The ID of the box.
+     * @param key  The key of the changed item, see {@link Change#getKey()}.
+     * @param data The new content, null for {@link Change.Type#PURGE}.
+     * @return The sequence number of the change.
+     */
+    long append(Change.Type type, String id, String key, byte[] data) throws IOException;
+}
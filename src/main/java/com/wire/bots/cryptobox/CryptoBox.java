@@ -15,7 +15,31 @@
 
 package com.wire.bots.cryptobox;
 
+import com.wire.bots.cryptobox.CryptoMetrics.Operation;
+import com.wire.bots.cryptobox.CryptoMetrics.Stage;
+
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.IntStream;
 
 /**
  * <p>
@@ -37,6 +61,15 @@ import java.io.File;
  * as an additional safety net for deallocating all native resources.
  * </p>
  *
+ * <p>A {@code CryptoBox} keeps an in-memory index of the IDs of all sessions
+ * stored in its directory, which is built when the box is opened. Checking
+ * whether a session exists and decrypting the first message of a new session
+ * are answered from the index without touching the disk.</p>
+ *
+ * <p>Sessions that are not used for a long time can be moved from the sessions
+ * directory into a compressed archive with {@link #archiveIdleSessions}. They are
+ * restored into the sessions directory when they are loaded again.</p>
+ *
  * <p>A {@code CryptoBox} is thread-safe.</p>
  *
  * @see CryptoSession
@@ -48,15 +81,7 @@ import java.io.File;
 final public class CryptoBox implements ICryptobox {
 
     static {
-        // It's called libsodium.dll on Windows, unfortunately.
-        final String prefix = System
-                .getProperty("os.name")
-                .toLowerCase()
-                .contains("win")
-                ? "lib" : "";
-        System.loadLibrary(prefix + "sodium");
-        System.loadLibrary("cryptobox");
-        System.loadLibrary("cryptobox-jni");
+        NativeLoader.load();
     }
 
     /**
@@ -64,11 +89,27 @@ final public class CryptoBox implements ICryptobox {
      */
     private static final int MAX_PREKEY_ID = 65_534;
     private static final int LAST_RESORT_PREKEY_ID = MAX_PREKEY_ID + 1;
+    private static final int VALIDATION_BATCH = 256;
+    private static final Logger LOG = Logger.getLogger(CryptoBox.class.getName());
 
     private long ptr;
+    private final NavigableSet<String> sessions = new ConcurrentSkipListSet<>();
+    private final ConcurrentHashMap<String, byte[]> remoteFingerprints = new ConcurrentHashMap<>();
+    private volatile byte[] identity;
+    private volatile byte[] localFingerprint;
+    private Path dir;
+    private SessionArchive archive;
+    // shared while sessions are loaded, saved or deleted, exclusive while they are archived
+    private final ReentrantReadWriteLock sessionLock = new ReentrantReadWriteLock();
+    private volatile CryptoMetrics metrics = CryptoMetrics.getDefault();
+    private volatile CryptoObserver observer = CryptoObserver.NOOP;
+    private volatile SavePolicy savePolicy = SavePolicy.IMMEDIATE;
+    private volatile OpenSessions open;
+    private boolean recordTotals = true;
 
     private CryptoBox(long ptr) {
         this.ptr = ptr;
+        HandleTracker.opened(ptr, "CryptoBox", null);
     }
 
     /**
@@ -87,7 +128,9 @@ final public class CryptoBox implements ICryptobox {
         errorOnNull(dir, "dir");
 
         new File(dir).mkdirs();
-        return jniOpen(dir);
+        final CryptoBox box = jniOpen(dir);
+        box.index(dir);
+        return box;
     }
 
     /**
@@ -114,14 +157,42 @@ final public class CryptoBox implements ICryptobox {
         errorOnNull(mode, "mode");
 
         new File(dir).mkdirs();
+        final CryptoBox box;
         switch (mode) {
             case COMPLETE:
-                return jniOpenWith(dir, id, 0);
+                box = jniOpenWith(dir, id, 0);
+                break;
             case PUBLIC:
-                return jniOpenWith(dir, id, 1);
+                box = jniOpenWith(dir, id, 1);
+                break;
             default:
                 throw new IllegalStateException("Unexpected IdentityMode");
         }
+        box.index(dir);
+        return box;
+    }
+
+    /**
+     * Restore a box from a snapshot written by {@link #snapshot} and open it.
+     * <p>
+     * The snapshot is read in one pass into a temporary directory next to {@code dir},
+     * which becomes {@code dir} once the checksum of the snapshot is verified.
+     * </p>
+     *
+     * @param dir The root storage directory of the box, which must not exist or be empty.
+     * @param in  The snapshot, which is read to its end but not closed.
+     * @return opened cryptobox.
+     * @throws CryptoException if the snapshot is corrupt or it cannot be restored.
+     */
+    public static CryptoBox restore(String dir, InputStream in) throws CryptoException {
+        errorOnNull(dir, "dir");
+        errorOnNull(in, "in");
+        try {
+            CryptoSnapshot.extract(in, Paths.get(dir));
+        } catch (IOException e) {
+            throw new CryptoException(e);
+        }
+        return open(dir);
     }
 
     /**
@@ -158,6 +229,46 @@ final public class CryptoBox implements ICryptobox {
         jniIsPreKey(preKey.data, preKey.id);
     }
 
+    /**
+     * <p>Validate a bundle of prekeys and extract their fingerprints.</p>
+     *
+     * <p>Equivalent to calling {@link #isPrekey} and {@link #getFingerprintFromPrekey} for every
+     * prekey, but in one native call per {@value #VALIDATION_BATCH} prekeys. Larger bundles are
+     * split into batches that run in parallel on the {@link ForkJoinPool#commonPool() common pool}.
+     * Invalid prekeys don't fail the call, they are reported in the result.</p>
+     *
+     * @param preKeys prekeys to validate.
+     * @return the validity and the fingerprint of every prekey, by index.
+     */
+    public static PreKeyValidation validatePreKeys(PreKey[] preKeys) {
+        errorOnNull(preKeys, "preKeys");
+
+        final int n = preKeys.length;
+        final byte[][] data = new byte[n][];
+        for (int i = 0; i < n; i++) {
+            data[i] = preKeys[i] == null ? null : preKeys[i].data;
+        }
+        final int[] codes = new int[n];
+        final byte[] fingerprints = new byte[n * PreKeyValidation.FINGERPRINT_LENGTH];
+
+        final int batches = (n + VALIDATION_BATCH - 1) / VALIDATION_BATCH;
+        if (batches <= 1) {
+            jniCheckPreKeys(data, 0, n, codes, fingerprints);
+        } else {
+            IntStream.range(0, batches).parallel().forEach(batch -> {
+                final int from = batch * VALIDATION_BATCH;
+                jniCheckPreKeys(data, from, Math.min(n, from + VALIDATION_BATCH), codes, fingerprints);
+            });
+        }
+
+        for (int i = 0; i < n; i++) {
+            if (preKeys[i] != null && (preKeys[i].id < 0 || preKeys[i].id > LAST_RESORT_PREKEY_ID)) {
+                codes[i] = PreKeyValidation.INVALID_ID;
+            }
+        }
+        return new PreKeyValidation(codes, fingerprints);
+    }
+
     private native static CryptoBox jniOpen(String dir) throws CryptoException;
 
     private native static CryptoBox jniOpenWith(String dir, byte[] id, int mode) throws CryptoException;
@@ -176,6 +287,8 @@ final public class CryptoBox implements ICryptobox {
 
     private native static CryptoSession jniLoadSession(long ptr, String sid) throws CryptoException;
 
+    private native static byte[][] jniEncryptFromPreKeys(long ptr, String[] sids, byte[][] prekeys, byte[] plain) throws CryptoException;
+
     private native static void jniDeleteSession(long ptr, String sid) throws CryptoException;
 
     private native static byte[] jniCopyIdentity(long ptr) throws CryptoException;
@@ -184,27 +297,106 @@ final public class CryptoBox implements ICryptobox {
 
     private native static void jniIsPreKey(byte[] prekey, int prekeyId) throws CryptoException;
 
+    private native static void jniCheckPreKeys(byte[][] prekeys, int from, int to, int[] codes, byte[] fingerprints);
+
+    native static void jniSetStatsEnabled(boolean enabled);
+
+    native static void jniGetStats(long[] stats);
+
+    native static void jniResetStats();
+
+    native static void jniGetHandles(long[] handles);
 
     /**
      * Copy the long-term identity from this {@code CryptoBox}.
      *
      * @return The opaque, serialised identity to be stored in a safe place or
      * transmitted over a safe channel for subsequent use with
-     * {@link CryptoBox#openWith}.
+     * {@link CryptoBox#openWith}. The identity is copied from the native box once and
+     * cached while the box is open.
      */
     @Override
     public byte[] getIdentity() throws CryptoException {
         errorIfClosed();
-        return jniCopyIdentity(ptr);
+        byte[] identity = this.identity;
+        if (identity == null) {
+            identity = jniCopyIdentity(ptr);
+            this.identity = identity;
+        }
+        return identity.clone();
     }
 
     /**
-     * Get the local fingerprint as a hex-encoded byte array.
+     * Get the local fingerprint as a hex-encoded byte array, which is cached
+     * while the box is open.
      */
     @Override
     public byte[] getLocalFingerprint() throws CryptoException {
         errorIfClosed();
-        return jniGetLocalFingerprint(ptr);
+        byte[] fingerprint = this.localFingerprint;
+        if (fingerprint == null) {
+            fingerprint = jniGetLocalFingerprint(ptr);
+            this.localFingerprint = fingerprint;
+        }
+        return fingerprint.clone();
+    }
+
+    /**
+     * <p>Get the fingerprints of the remote identities of several sessions.</p>
+     *
+     * <p>The sessions that are not cached are loaded one after the other in one pass.
+     * The remote identity of a session only changes when the session is initialised
+     * again from a prekey or a message, so the fingerprints stay cached until then or
+     * until the session is deleted or written to the sessions directory from the outside.</p>
+     *
+     * @param sids The IDs of the sessions.
+     * @return The hex-encoded fingerprints by session ID, in the order of {@code sids}.
+     * Sessions that don't exist are left out.
+     */
+    @Override
+    public Map<String, byte[]> getRemoteFingerprints(Collection<String> sids) throws CryptoException {
+        errorIfClosed();
+        errorOnNull(sids, "sids");
+        final Map<String, byte[]> ret = new LinkedHashMap<>();
+        final Lock shared = sessionLock.readLock();
+        shared.lock();
+        try {
+            for (String sid : sids) {
+                errorOnNull(sid, "sid");
+                if (ret.containsKey(sid)) {
+                    continue;
+                }
+                byte[] fingerprint = remoteFingerprints.get(sid);
+                if (fingerprint == null) {
+                    try (final CryptoSession session = tryGetIndexedSession(sid)) {
+                        if (session == null) {
+                            continue;
+                        }
+                        fingerprint = session.getRemoteFingerprint();
+                    }
+                    remoteFingerprints.put(sid, fingerprint);
+                }
+                ret.put(sid, fingerprint.clone());
+            }
+        } finally {
+            shared.unlock();
+        }
+        return ret;
+    }
+
+    /**
+     * The cached fingerprints of the remote identities of the given sessions, see
+     * {@link #getRemoteFingerprints}. Sessions that are not cached are left out.
+     */
+    Map<String, byte[]> getCachedRemoteFingerprints(Collection<String> sids) {
+        final Map<String, byte[]> ret = new LinkedHashMap<>();
+        for (String sid : sids) {
+            final byte[] fingerprint = remoteFingerprints.get(sid);
+            if (fingerprint != null) {
+                ret.put(sid, fingerprint.clone());
+            }
+        }
+        return ret;
     }
 
     /**
@@ -215,7 +407,20 @@ final public class CryptoBox implements ICryptobox {
     @Override
     public PreKey newLastPreKey() throws CryptoException {
         errorIfClosed();
-        return jniNewLastPreKey(ptr);
+        final CryptoEvents.PreKeyGeneration event = CryptoEvents.AVAILABLE ? new CryptoEvents.PreKeyGeneration(1) : null;
+        PreKey preKey = null;
+        Throwable error = null;
+        try {
+            preKey = jniNewLastPreKey(ptr);
+            return preKey;
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            if (event != null) {
+                event.finish(preKey == null ? null : new PreKey[]{preKey}, error);
+            }
+        }
     }
 
     private static void errorOnNull(Object data, String paramName) {
@@ -245,7 +450,20 @@ final public class CryptoBox implements ICryptobox {
         if (num < 1 || num > MAX_PREKEY_ID) {
             throw new IllegalArgumentException("num must be >= 1 and <= " + MAX_PREKEY_ID);
         }
-        return jniNewPreKeys(ptr, start, num);
+        final CryptoEvents.PreKeyGeneration event = CryptoEvents.AVAILABLE ? new CryptoEvents.PreKeyGeneration(num) : null;
+        PreKey[] preKeys = null;
+        Throwable error = null;
+        try {
+            preKeys = jniNewPreKeys(ptr, start, num);
+            return preKeys;
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            if (event != null) {
+                event.finish(preKeys, error);
+            }
+        }
     }
 
     /**
@@ -262,11 +480,92 @@ final public class CryptoBox implements ICryptobox {
         errorOnNull(preKey, "preKey");
         errorOnNull(content, "content");
 
+        final CryptoMetrics metrics = this.metrics;
+        final CryptoObserver observer = started(Operation.ENCRYPT_FROM_PREKEYS, sid, content.length);
+        final long start = System.nanoTime();
+        byte[] cipher = null;
+        Throwable error = null;
+        final Lock shared = sessionLock.readLock();
+        shared.lock();
         try (final CryptoSession cryptoSession = initSessionFromPreKey(sid, preKey)) {
-            return cryptoSession.encrypt(content);
+            metrics.lap(observer, Operation.ENCRYPT_FROM_PREKEYS, Stage.NATIVE_LOAD, sid, start);
+            cipher = cryptoSession.encrypt(content, metrics, observer, Operation.ENCRYPT_FROM_PREKEYS);
+            sessions.add(sid);
+            return cipher;
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            shared.unlock();
+            ended(metrics, observer, Operation.ENCRYPT_FROM_PREKEYS, sid, start, cipher, error);
         }
     }
 
+    /**
+     * <p>Initialise sessions from the prekeys of several peers and encrypt the same content for them.</p>
+     *
+     * <p>All sessions are initialised, encrypted for and saved in one native call. All prekeys are
+     * validated before the first session is initialised, so an invalid prekey fails the whole
+     * call without side effects. If a later step fails, the sessions saved before stay and
+     * are indexed. The call is counted in {@link NativeStats} but not in the
+     * {@link CryptoMetrics} of single operations.</p>
+     *
+     * @param preKeys The prekeys by session ID.
+     * @param content Unencrypted binary content to be encrypted
+     * @return The ciphertexts by session ID, in the iteration order of {@code preKeys}.
+     * @throws CryptoException throws Exception
+     */
+    @Override
+    public Map<String, byte[]> encryptFromPreKeys(Map<String, PreKey> preKeys, byte[] content) throws CryptoException {
+        errorIfClosed();
+        errorOnNull(preKeys, "preKeys");
+        errorOnNull(content, "content");
+
+        final String[] sids = new String[preKeys.size()];
+        final byte[][] data = new byte[sids.length][];
+        int i = 0;
+        for (Map.Entry<String, PreKey> entry : preKeys.entrySet()) {
+            errorOnNull(entry.getKey(), "sid");
+            errorOnNull(entry.getValue(), "preKey");
+            errorOnNull(entry.getValue().data, "preKey.data");
+            sids[i] = entry.getKey();
+            data[i++] = entry.getValue().data;
+        }
+
+        final int[] codes = new int[sids.length];
+        jniCheckPreKeys(data, 0, sids.length, codes, new byte[sids.length * PreKeyValidation.FINGERPRINT_LENGTH]);
+        for (int code : codes) {
+            if (code != PreKeyValidation.VALID) {
+                throw new CryptoException(CryptoException.fromNativeCode(code));
+            }
+        }
+        final byte[][] ciphers;
+        final Lock shared = sessionLock.readLock();
+        shared.lock();
+        try {
+            for (String sid : sids) {
+                retire(sid);
+            }
+            ciphers = jniEncryptFromPreKeys(ptr, sids, data, content);
+        } catch (CryptoException | RuntimeException e) {
+            // the sessions before the failing one were saved
+            for (String sid : sids) {
+                if (Files.isRegularFile(dir.resolve("sessions").resolve(sid))) {
+                    sessions.add(sid);
+                }
+            }
+            throw e;
+        } finally {
+            shared.unlock();
+        }
+        final Map<String, byte[]> ret = new LinkedHashMap<>();
+        for (i = 0; i < sids.length; i++) {
+            sessions.add(sids[i]);
+            ret.put(sids[i], ciphers[i]);
+        }
+        return ret;
+    }
+
     /**
      * Tries to fetch/open a session for the given sid if it exists on the hdd and encrypts the given content
      *
@@ -280,12 +579,26 @@ final public class CryptoBox implements ICryptobox {
         errorOnNull(sid, "sid");
         errorOnNull(content, "content");
 
-        try (final CryptoSession session = tryGetSession(sid)) {
+        final CryptoMetrics metrics = this.metrics;
+        final CryptoObserver observer = started(Operation.ENCRYPT_FROM_SESSION, sid, content.length);
+        final long start = System.nanoTime();
+        byte[] cipher = null;
+        Throwable error = null;
+        final Lock shared = sessionLock.readLock();
+        shared.lock();
+        try (final CryptoSession session = tryGetIndexedSession(sid)) {
+            metrics.lap(observer, Operation.ENCRYPT_FROM_SESSION, Stage.NATIVE_LOAD, sid, start);
             if (session != null) {
-                return session.encrypt(content);
+                cipher = session.encrypt(content, metrics, observer, Operation.ENCRYPT_FROM_SESSION);
             }
+            return cipher;
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            shared.unlock();
+            ended(metrics, observer, Operation.ENCRYPT_FROM_SESSION, sid, start, cipher, error);
         }
-        return null;
     }
 
     /**
@@ -301,14 +614,177 @@ final public class CryptoBox implements ICryptobox {
         errorOnNull(sid, "sid");
         errorOnNull(cipher, "cipher");
 
-        try (final CryptoSession cryptoSession = tryGetSession(sid)) {
-            if (cryptoSession != null) {
-                return cryptoSession.decrypt(cipher);
+        final CryptoMetrics metrics = this.metrics;
+        final CryptoObserver observer = started(Operation.DECRYPT, sid, cipher.length);
+        final long start = System.nanoTime();
+        byte[] plain = null;
+        Throwable error = null;
+        final Lock shared = sessionLock.readLock();
+        shared.lock();
+        try {
+            long t = start;
+            try (final CryptoSession cryptoSession = tryGetIndexedSession(sid)) {
+                t = metrics.lap(observer, Operation.DECRYPT, Stage.NATIVE_LOAD, sid, t);
+                if (cryptoSession != null) {
+                    plain = cryptoSession.decrypt(cipher, metrics, observer, Operation.DECRYPT);
+                    return plain;
+                }
+            }
+
+            try (SessionMessage sessionMessage = initSessionFromMessage(sid, cipher)) {
+                metrics.lap(observer, Operation.DECRYPT, Stage.CRYPTO, sid, t);
+                sessionMessage.save(metrics, observer, Operation.DECRYPT);
+                plain = sessionMessage.getMessage();
             }
+            sessions.add(sid);
+            return plain;
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            shared.unlock();
+            ended(metrics, observer, Operation.DECRYPT, sid, start, plain, error);
         }
+    }
+
+    /**
+     * Get the metrics this box records the latencies of its operations into.
+     */
+    public CryptoMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Record the latencies of the operations of this box into the given metrics
+     * instead of {@link CryptoMetrics#getDefault()}.
+     *
+     * @param metrics The metrics to record into.
+     */
+    public void setMetrics(CryptoMetrics metrics) {
+        errorOnNull(metrics, "metrics");
+        this.metrics = metrics;
+    }
+
+    /**
+     * Get the observer the operations of this box are reported to.
+     */
+    public CryptoObserver getObserver() {
+        return observer;
+    }
+
+    /**
+     * Report the operations of this box and their stages to the given observer.
+     *
+     * @param observer The observer, {@link CryptoObserver#NOOP} to stop reporting.
+     */
+    public void setObserver(CryptoObserver observer) {
+        errorOnNull(observer, "observer");
+        this.observer = observer;
+    }
 
-        try (SessionMessage sessionMessage = initSessionFromMessage(sid, cipher)) {
-            return sessionMessage.getMessage();
+    /**
+     * Get the policy that decides when this box saves its sessions.
+     */
+    public SavePolicy getSavePolicy() {
+        return savePolicy;
+    }
+
+    /**
+     * <p>Set the policy that decides when this box saves its sessions, see {@link SavePolicy}
+     * for the operations that are lost in a crash under a deferred policy.</p>
+     *
+     * <p>The sessions kept open under the previous policy are saved and closed first. Set
+     * the policy before the box is used, or while no operations are in progress.</p>
+     *
+     * @param policy The policy, {@link SavePolicy#IMMEDIATE} by default.
+     */
+    public void setSavePolicy(SavePolicy policy) throws CryptoException {
+        errorIfClosed();
+        errorOnNull(policy, "policy");
+        final OpenSessions previous = this.open;
+        this.savePolicy = policy;
+        this.open = policy.isImmediate() ? null : new OpenSessions(policy);
+        if (previous != null) {
+            final Lock shared = sessionLock.readLock();
+            shared.lock();
+            try {
+                previous.close();
+            } finally {
+                shared.unlock();
+            }
+        }
+    }
+
+    /**
+     * <p>Save all sessions with operations that were not saved yet under a deferred
+     * {@link SavePolicy}, and keep them open.</p>
+     *
+     * <p>Call this before acknowledging the messages decrypted since the last flush, and
+     * periodically with {@link SavePolicy#after} so that sessions of an idle box are
+     * saved as well.</p>
+     *
+     * @throws CryptoException The first error, after all sessions were tried.
+     */
+    public void flush() throws CryptoException {
+        errorIfClosed();
+        final OpenSessions open = this.open;
+        if (open != null) {
+            final Lock shared = sessionLock.readLock();
+            shared.lock();
+            try {
+                open.flush();
+            } finally {
+                shared.unlock();
+            }
+        }
+    }
+
+    /**
+     * Forget what is cached of a session that is about to be initialised again. An open
+     * session is saved and closed, so that nothing is lost if the initialisation fails.
+     */
+    private void retire(String sid) throws CryptoException {
+        remoteFingerprints.remove(sid);
+        final OpenSessions open = this.open;
+        if (open != null) {
+            open.close(sid);
+        }
+    }
+
+    /**
+     * Forget what is cached of a session that is replaced: deleted or written from the
+     * outside. An open session is closed without being saved.
+     */
+    private void replaced(String sid) {
+        remoteFingerprints.remove(sid);
+        final OpenSessions open = this.open;
+        if (open != null) {
+            open.discard(sid);
+        }
+    }
+
+    /**
+     * Stop recording {@link Stage#TOTAL} and reporting the start and end of operations,
+     * for boxes that are wrapped by a {@link CryptoDb}, which does so for the whole
+     * operation including the storage round trip itself.
+     */
+    void disableTotals() {
+        recordTotals = false;
+    }
+
+    private CryptoObserver started(Operation operation, String sid, int size) {
+        final CryptoObserver observer = this.observer;
+        if (recordTotals) {
+            observer.operationStarted(operation, sid, size);
+        }
+        return observer;
+    }
+
+    private void ended(CryptoMetrics metrics, CryptoObserver observer, Operation operation, String sid, long start,
+                       byte[] result, Throwable error) {
+        if (recordTotals) {
+            final long now = metrics.lap(operation, Stage.TOTAL, start);
+            observer.operationEnded(operation, sid, result == null || error != null ? -1 : result.length, now - start, error);
         }
     }
 
@@ -327,7 +803,20 @@ final public class CryptoBox implements ICryptobox {
         errorOnNull(prekey, "prekey");
         errorOnNull(prekey.data, "prekey.data");
 
-        return jniInitSessionFromPreKey(ptr, sid, prekey.data);
+        final CryptoEvents.SessionLoad event = CryptoEvents.AVAILABLE
+                ? new CryptoEvents.SessionLoad(sid, "prekey", prekey.data) : null;
+        Throwable error = null;
+        try {
+            retire(sid);
+            return jniInitSessionFromPreKey(ptr, sid, prekey.data);
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            if (event != null) {
+                event.finish(error);
+            }
+        }
     }
 
     /**
@@ -343,7 +832,20 @@ final public class CryptoBox implements ICryptobox {
         errorOnNull(sid, "sid");
         errorOnNull(message, "message");
 
-        return jniInitSessionFromMessage(ptr, sid, message);
+        final CryptoEvents.SessionLoad event = CryptoEvents.AVAILABLE
+                ? new CryptoEvents.SessionLoad(sid, "message", message) : null;
+        Throwable error = null;
+        try {
+            retire(sid);
+            return jniInitSessionFromMessage(ptr, sid, message);
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            if (event != null) {
+                event.finish(error);
+            }
+        }
     }
 
     /**
@@ -358,7 +860,24 @@ final public class CryptoBox implements ICryptobox {
     private CryptoSession getSession(String sid) throws CryptoException {
         errorIfClosed();
         errorOnNull(sid, "sid");
-        return jniLoadSession(ptr, sid);
+
+        final CryptoEvents.SessionLoad event = CryptoEvents.AVAILABLE
+                ? new CryptoEvents.SessionLoad(sid, "storage", null) : null;
+        Throwable error = null;
+        try {
+            archive.restore(sid);
+            return jniLoadSession(ptr, sid);
+        } catch (IOException e) {
+            error = e;
+            throw new CryptoException(e);
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            if (event != null) {
+                event.finish(error);
+            }
+        }
     }
 
     /**
@@ -369,7 +888,182 @@ final public class CryptoBox implements ICryptobox {
      * @throws CryptoException thrown when there's a problem with native Cryptobox.
      */
     public boolean doesSessionExist(String sid) throws CryptoException {
-        return tryGetSession(sid) != null;
+        errorIfClosed();
+        errorOnNull(sid, "sid");
+        return sessions.contains(sid);
+    }
+
+    /**
+     * List the IDs of the sessions that start with the given prefix from the session
+     * index, which includes archived sessions. The iterator walks the index and sees
+     * sessions created or deleted while it is used, or not.
+     *
+     * @param prefix The prefix of the session IDs, empty for all sessions.
+     * @return The session IDs in ascending order.
+     */
+    @Override
+    public Iterator<String> listSessions(String prefix) {
+        errorIfClosed();
+        errorOnNull(prefix, "prefix");
+
+        final Iterator<String> tail = sessions.tailSet(prefix).iterator();
+        return new Iterator<String>() {
+            private String next = advance();
+
+            private String advance() {
+                if (tail.hasNext()) {
+                    final String sid = tail.next();
+                    if (sid.startsWith(prefix)) {
+                        return sid;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            @Override
+            public String next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                final String ret = next;
+                next = advance();
+                return ret;
+            }
+        };
+    }
+
+    /**
+     * Add a session to the index, for sessions that were written to the
+     * sessions directory of this box from the outside.
+     *
+     * @param sid The ID of the session.
+     */
+    void indexSession(String sid) {
+        replaced(sid);
+        sessions.add(sid);
+    }
+
+    /**
+     * The lock to hold while the sessions directory of this box is read or written from
+     * the outside, so that {@link #archiveIdleSessions} does not pack the files meanwhile.
+     */
+    Lock sessionLock() {
+        return sessionLock.readLock();
+    }
+
+    private void index(String dir) throws CryptoException {
+        final File[] files = new File(dir, "sessions").listFiles(File::isFile);
+        if (files != null) {
+            for (File file : files) {
+                sessions.add(file.getName());
+            }
+        }
+        this.dir = Paths.get(dir);
+        try {
+            archive = new SessionArchive(this.dir);
+        } catch (IOException e) {
+            close();
+            throw new CryptoException(e);
+        }
+        sessions.addAll(archive.getPacked());
+    }
+
+    /**
+     * <p>Move the sessions that were not modified for the given time into the archive.</p>
+     *
+     * <p>The session files are packed into {@code archive/sessions.zip} in the directory
+     * of the box, together with the sessions archived before, and removed from the
+     * sessions directory. The archive is rewritten as a whole, so run this rarely, e.g.
+     * once a day. Archived sessions still exist for {@link #doesSessionExist}; the first
+     * operation on one restores it, at the cost of reading the archive. The sessions
+     * kept open under a deferred {@link SavePolicy} are saved and closed first.
+     * Operations on sessions wait while the archive is written.</p>
+     *
+     * @param idle The time since the last modification of a session.
+     * @param unit The unit of {@code idle}.
+     * @return The sessions per tier afterwards.
+     */
+    public SessionTiers archiveIdleSessions(long idle, TimeUnit unit) throws CryptoException {
+        errorIfClosed();
+        // no session is loaded, saved or deleted while its file may be packed and removed
+        final Lock exclusive = sessionLock.writeLock();
+        exclusive.lock();
+        try {
+            final OpenSessions open = this.open;
+            if (open != null) {
+                open.close();
+            }
+            archive.pack(System.currentTimeMillis() - unit.toMillis(idle));
+            return archive.tiers();
+        } catch (IOException e) {
+            throw new CryptoException(e);
+        } finally {
+            exclusive.unlock();
+        }
+    }
+
+    /**
+     * <p>Write the whole box into one checksummed, compressed stream.</p>
+     *
+     * <p>The snapshot holds the identity, the prekeys, the sessions and the archive of
+     * the box, read file by file; take it while no other thread uses the box to get a
+     * consistent state. Restore it with {@link #restore}.</p>
+     *
+     * @param out The stream to write to, which is not closed.
+     */
+    public void snapshot(OutputStream out) throws CryptoException {
+        errorIfClosed();
+        errorOnNull(out, "out");
+        flush();
+        try {
+            CryptoSnapshot.write(dir, out);
+        } catch (IOException e) {
+            throw new CryptoException(e);
+        }
+    }
+
+    /**
+     * Count the sessions of this box and the bytes they take up on the disk, in the
+     * sessions directory and in the archive.
+     */
+    public SessionTiers getSessionTiers() throws CryptoException {
+        errorIfClosed();
+        try {
+            return archive.tiers();
+        } catch (IOException e) {
+            throw new CryptoException(e);
+        }
+    }
+
+    /**
+     * <p>Try to get an existing session by ID, consulting the session index first.</p>
+     *
+     * <p>Equivalent to {@link #tryGetSession}, except that sessions which are not in
+     * the index are not looked up on the disk.</p>
+     *
+     * @param sid The ID of the session to get.
+     */
+    private CryptoSession tryGetIndexedSession(String sid) throws CryptoException {
+        if (!sessions.contains(sid)) {
+            return null;
+        }
+        final OpenSessions open = this.open;
+        final CryptoSession session;
+        if (open == null) {
+            session = tryGetSession(sid);
+        } else {
+            open.saveDue();
+            session = open.acquire(sid, this::tryGetSession);
+        }
+        if (session == null) {
+            sessions.remove(sid);
+        }
+        return session;
     }
 
     /**
@@ -400,12 +1094,30 @@ final public class CryptoBox implements ICryptobox {
      * an {@link IllegalStateException}.</p>
      *
      * <p>If the box is already closed, this is a no-op.</p>
+     *
+     * <p>The sessions kept open under a deferred {@link SavePolicy} are saved first. If one
+     * of them fails to save, the box is closed anyway and the error is only logged;
+     * {@link #flush} before closing, which throws such errors, to handle them.</p>
      */
     @Override
     public void close() {
         if (ptr == 0) {
             return;
         }
+        final OpenSessions open = this.open;
+        this.open = null;
+        if (open != null) {
+            final Lock shared = sessionLock.readLock();
+            shared.lock();
+            try {
+                open.close();
+            } catch (CryptoException e) {
+                LOG.log(Level.WARNING, "Failed to save the open sessions of " + dir, e);
+            } finally {
+                shared.unlock();
+            }
+        }
+        HandleTracker.closed(ptr);
         jniClose(ptr);
         ptr = 0;
     }
@@ -435,11 +1147,22 @@ final public class CryptoBox implements ICryptobox {
         errorIfClosed();
         errorOnNull(sid, "sid");
 
-        final CryptoSession cryptoSession = getSession(sid);
-        if (cryptoSession != null) {
-            cryptoSession.close();
+        replaced(sid);
+        final Lock shared = sessionLock.readLock();
+        shared.lock();
+        try {
+            final CryptoSession cryptoSession = getSession(sid);
+            if (cryptoSession != null) {
+                cryptoSession.close();
+            }
+            jniDeleteSession(ptr, sid);
+            sessions.remove(sid);
+            archive.remove(sid);
+        } catch (IOException e) {
+            throw new CryptoException(e);
+        } finally {
+            shared.unlock();
         }
-        jniDeleteSession(ptr, sid);
     }
 
     @Override
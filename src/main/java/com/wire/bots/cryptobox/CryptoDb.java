@@ -15,35 +15,187 @@
 
 package com.wire.bots.cryptobox;
 
+import com.wire.bots.cryptobox.CryptoMetrics.Operation;
+import com.wire.bots.cryptobox.CryptoMetrics.Stage;
+
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class CryptoDb implements ICryptobox {
     private static final String DATA = "data";
+    private static final int DEFAULT_CONCURRENCY = 16;
+    private static final byte[] DUPLICATE = new byte[0];
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
     private final String id;
     private final CryptoBox box;
     private final IStorage storage;
     private final String root;
+    private volatile Executor executor = StorageExecutor.INSTANCE;
+    private volatile int concurrency = DEFAULT_CONCURRENCY;
+    private volatile BoundedCache<ByteBuffer, byte[]> replays;
+    private volatile boolean keepPlaintext;
+    private volatile ChangeJournal journal;
+    private volatile int deltaCheckpoint;
+    private final LongAdder persists = new LongAdder();
+    private final LongAdder persistedBytes = new LongAdder();
+    private final LongAdder sessionBytes = new LongAdder();
 
     public CryptoDb(String id, IStorage storage) throws IOException, CryptoException {
         this(id, storage, DATA);
     }
 
     public CryptoDb(String id, IStorage storage, String dir) throws IOException, CryptoException {
+        this(id, storage, dir, null);
+    }
+
+    /**
+     * Open a box and record its mutations of the storage, including the identity
+     * written now, in the given journal, see {@link #setJournal}.
+     */
+    public CryptoDb(String id, IStorage storage, String dir, ChangeJournal journal) throws IOException, CryptoException {
         this.id = id;
         this.storage = storage;
         this.root = String.format("%s/%s", dir, id);
+        this.journal = journal;
 
         writeIdentity(storage.fetchIdentity(id));
         writePrekeys(storage.fetchPrekeys(id));
 
         this.box = CryptoBox.open(root);
-        storage.insertIdentity(id, readIdentity());
+        this.box.disableTotals();
+        final byte[] identity = readIdentity();
+        storage.insertIdentity(id, identity);
+        journal(Change.Type.IDENTITY, "local", identity);
+    }
+
+    /**
+     * <p>Restore a box from a snapshot into the storage and open it.</p>
+     *
+     * <p>The snapshot, written by {@link #snapshot} or {@link CryptoBox#snapshot}, is
+     * extracted into the local directory of the box as by {@link CryptoBox#restore}, and
+     * its identity, prekeys and sessions are then inserted into the storage.</p>
+     *
+     * @param id      The ID of the box.
+     * @param storage The storage to restore the box into.
+     * @param dir     The local directory of all boxes; the one of this box must not exist or be empty.
+     * @param in      The snapshot, which is read to its end but not closed.
+     */
+    public static CryptoDb restore(String id, IStorage storage, String dir, InputStream in)
+            throws IOException, CryptoException {
+        final Path root = Paths.get(String.format("%s/%s", dir, id));
+        CryptoSnapshot.extract(in, root);
+
+        final Path identity = root.resolve("identities").resolve("local");
+        if (Files.exists(identity)) {
+            storage.insertIdentity(id, Files.readAllBytes(identity));
+        }
+        for (Path file : list(root.resolve("prekeys"))) {
+            storage.insertPrekey(id, Integer.parseInt(file.getFileName().toString()), Files.readAllBytes(file));
+        }
+        for (Path file : list(root.resolve("sessions"))) {
+            final IRecord record = storage.fetchSession(id, file.getFileName().toString());
+            if (record != null) {
+                record.persist(Files.readAllBytes(file));
+            }
+        }
+        return new CryptoDb(id, storage, dir);
+    }
+
+    public static CryptoDb restore(String id, IStorage storage, InputStream in) throws IOException, CryptoException {
+        return restore(id, storage, DATA, in);
+    }
+
+    private static List<Path> list(Path dir) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return Collections.emptyList();
+        }
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * <p>Write the state of this box in the storage into one checksummed, compressed stream.</p>
+     *
+     * <p>The snapshot has the format of {@link CryptoBox#snapshot} and holds the identity
+     * and the prekeys of the box in the storage, and the sessions listed by
+     * {@link #listSessions}. Every session record is fetched, and persisted again unchanged to
+     * release it, also if it has no data; sessions the storage has no data for are taken
+     * from the local directory. Restore it with {@link #restore}.</p>
+     *
+     * @param out The stream to write to, which is not closed.
+     */
+    public void snapshot(OutputStream out) throws IOException, CryptoException {
+        final CryptoSnapshot.Writer writer = new CryptoSnapshot.Writer(out);
+        final byte[] identity = storage.fetchIdentity(id);
+        if (identity != null) {
+            writer.add("identities/local", identity);
+        }
+        final PreKey[] preKeys = storage.fetchPrekeys(id);
+        if (preKeys != null) {
+            for (PreKey preKey : preKeys) {
+                writer.add("prekeys/" + preKey.id, preKey.data);
+            }
+        }
+
+        final Iterator<String> sids = listSessions();
+        while (sids.hasNext()) {
+            final String sid = sids.next();
+            final IRecord record = storage.fetchSession(id, sid);
+            final byte[] data = record == null ? null : sessionData(record);
+            if (record != null) {
+                record.persist(data);
+            }
+            if (data != null) {
+                writer.add("sessions/" + sid, data);
+            } else {
+                final byte[] local = readSession(sid);
+                if (local != null) {
+                    writer.add("sessions/" + sid, local);
+                }
+            }
+        }
+        writer.finish();
     }
 
     @Override
@@ -56,6 +208,54 @@ public class CryptoDb implements ICryptobox {
         return box.getLocalFingerprint();
     }
 
+    /**
+     * <p>Get the fingerprints of the remote identities of several sessions.</p>
+     *
+     * <p>The fingerprints cached by the box are returned without going to the storage.
+     * The other sessions are fetched from the storage in parallel as in
+     * {@link #encryptFromSessions}, and persisted again unchanged to release them, also
+     * if they have no data.
+     * A cached fingerprint is dropped when its session is fetched for an operation of
+     * this instance, so sessions initialised again by other instances on the same
+     * storage are only seen after that, see {@link Ownership}.</p>
+     *
+     * @param sids The IDs of the sessions.
+     * @return The hex-encoded fingerprints by session ID, in the order of {@code sids}.
+     * Sessions that don't exist are left out.
+     */
+    @Override
+    public Map<String, byte[]> getRemoteFingerprints(Collection<String> sids) throws CryptoException {
+        final Collection<String> unique = new LinkedHashSet<>(sids);
+        final Map<String, byte[]> cached = box.getCachedRemoteFingerprints(unique);
+        final List<String> missing = unique.stream()
+                .filter(sid -> !cached.containsKey(sid))
+                .collect(Collectors.toList());
+
+        final List<FutureTask<byte[]>> tasks = fork(missing, this::fetchRemoteFingerprint);
+        final Map<String, byte[]> ret = new LinkedHashMap<>();
+        int i = 0;
+        for (String sid : unique) {
+            final byte[] fingerprint = cached.containsKey(sid) ? cached.get(sid) : result(tasks.get(i++));
+            if (fingerprint != null) {
+                ret.put(sid, fingerprint);
+            }
+        }
+        return ret;
+    }
+
+    private byte[] fetchRemoteFingerprint(String sid) throws IOException, CryptoException {
+        final IRecord record = fetchSession(sid);
+        final byte[] data = record == null ? null : sessionData(record);
+        try {
+            writeSession(sid, data);
+            return box.getRemoteFingerprints(Collections.singleton(sid)).get(sid);
+        } finally {
+            if (record != null) {
+                record.persist(data);
+            }
+        }
+    }
+
     @Override
     public PreKey newLastPreKey() throws CryptoException {
         try {
@@ -81,71 +281,662 @@ public class CryptoDb implements ICryptobox {
 
     @Override
     public byte[] encryptFromPreKeys(String sid, PreKey preKey, byte[] content) throws CryptoException {
+        final CryptoObserver observer = started(Operation.ENCRYPT_FROM_PREKEYS, sid, content.length);
+        final long start = System.nanoTime();
+        byte[] cipher = null;
+        Throwable error = null;
         try {
-            IRecord record = begin(sid);
+            IRecord record = begin(Operation.ENCRYPT_FROM_PREKEYS, sid);
             try {
-                return box.encryptFromPreKeys(sid, preKey, content);
+                cipher = box.encryptFromPreKeys(sid, preKey, content);
+                return cipher;
             } finally {
-                end(sid, record);
+                end(Operation.ENCRYPT_FROM_PREKEYS, sid, record);
             }
         } catch (IOException e) {
-            throw new CryptoException(e);
+            error = new CryptoException(e);
+            throw (CryptoException) error;
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            ended(observer, Operation.ENCRYPT_FROM_PREKEYS, sid, start, cipher, error);
         }
     }
 
     @Override
     public byte[] encryptFromSession(String sid, byte[] content) throws CryptoException {
+        final CryptoObserver observer = started(Operation.ENCRYPT_FROM_SESSION, sid, content.length);
+        final long start = System.nanoTime();
+        byte[] cipher = null;
+        Throwable error = null;
         try {
-            IRecord record = begin(sid);
+            IRecord record = begin(Operation.ENCRYPT_FROM_SESSION, sid);
             try {
-                return box.encryptFromSession(sid, content);
+                cipher = box.encryptFromSession(sid, content);
+                return cipher;
             } finally {
-                end(sid, record);
+                end(Operation.ENCRYPT_FROM_SESSION, sid, record);
             }
         } catch (IOException e) {
+            error = new CryptoException(e);
+            throw (CryptoException) error;
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            ended(observer, Operation.ENCRYPT_FROM_SESSION, sid, start, cipher, error);
+        }
+    }
+
+    /**
+     * <p>Encrypt the same content for several sessions in parallel.</p>
+     *
+     * <p>The storage fetch, encryption and persist of every session run as one
+     * task on the {@link #setExecutor executor}, with at most
+     * {@link #setConcurrency concurrency} tasks in flight; the calling thread
+     * blocks until a slot is free. Every session is encrypted only once, even
+     * if it is listed more than once. When some sessions fail, the others are
+     * still completed before the first failure in the order of {@code sids}
+     * is thrown.</p>
+     *
+     * @param sids    The IDs of the sessions.
+     * @param content The content to encrypt.
+     * @return The ciphertexts by session ID, in the order of {@code sids}. Sessions that
+     * don't exist are left out.
+     */
+    @Override
+    public Map<String, byte[]> encryptFromSessions(Collection<String> sids, byte[] content) throws CryptoException {
+        final Collection<String> unique = new LinkedHashSet<>(sids);
+        if (unique.size() <= 1) {
+            return ICryptobox.super.encryptFromSessions(unique, content);
+        }
+
+        final List<FutureTask<byte[]>> tasks = fork(unique, sid -> encryptFromSession(sid, content));
+        final Map<String, byte[]> ret = new LinkedHashMap<>();
+        int i = 0;
+        for (String sid : unique) {
+            final byte[] cipher = result(tasks.get(i++));
+            if (cipher != null) {
+                ret.put(sid, cipher);
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * <p>Initialise sessions from the prekeys of several peers and encrypt the same content for them.</p>
+     *
+     * <p>The sessions are fetched from and persisted to the storage in parallel as in
+     * {@link #encryptFromSessions}, and initialised and encrypted in one native call,
+     * see {@link CryptoBox#encryptFromPreKeys(Map, byte[])}.</p>
+     *
+     * @param preKeys The prekeys by session ID.
+     * @param content The content to encrypt.
+     * @return The ciphertexts by session ID, in the iteration order of {@code preKeys}.
+     */
+    @Override
+    public Map<String, byte[]> encryptFromPreKeys(Map<String, PreKey> preKeys, byte[] content) throws CryptoException {
+        if (preKeys.size() <= 1) {
+            return ICryptobox.super.encryptFromPreKeys(preKeys, content);
+        }
+
+        final long start = System.nanoTime();
+        final Map<String, IRecord> records = new LinkedHashMap<>();
+        try {
+            final List<FutureTask<IRecord>> fetched = fork(preKeys.keySet(), sid -> begin(Operation.ENCRYPT_FROM_PREKEYS, sid));
+            CryptoException error = null;
+            int i = 0;
+            for (String sid : preKeys.keySet()) {
+                try {
+                    records.put(sid, result(fetched.get(i++)));
+                } catch (CryptoException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+            if (error != null) {
+                throw error;
+            }
+            return box.encryptFromPreKeys(preKeys, content);
+        } finally {
+            final List<FutureTask<Void>> persisted = fork(records.keySet(), sid -> {
+                end(Operation.ENCRYPT_FROM_PREKEYS, sid, records.get(sid));
+                return null;
+            });
+            for (FutureTask<Void> task : persisted) {
+                result(task);
+            }
+            box.getMetrics().lap(Operation.ENCRYPT_FROM_PREKEYS, Stage.TOTAL, start);
+        }
+    }
+
+    /**
+     * Run the tasks of {@link #encryptFromSessions} on the given executor instead of
+     * the default one: a cached pool of daemon threads shared by all instances, as the
+     * tasks block on the storage.
+     *
+     * @param executor The executor, e.g. one sized for the storage.
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Limit the number of sessions one call of {@link #encryptFromSessions} works on at
+     * the same time, and thus its concurrent requests to the storage. Concurrent calls
+     * each have their own limit, so bound the total with the {@link #setExecutor executor}.
+     * Defaults to 16.
+     *
+     * @param concurrency The maximum number of tasks in flight per call.
+     */
+    public void setConcurrency(int concurrency) {
+        if (concurrency < 1) {
+            throw new IllegalArgumentException("concurrency must be positive");
+        }
+        this.concurrency = concurrency;
+    }
+
+    /**
+     * Run a task per session on the executor, with at most {@link #setConcurrency concurrency}
+     * of this call in flight, and wait for all of them.
+     */
+    private <T> List<FutureTask<T>> fork(Collection<String> sids, SessionTask<T> body) throws CryptoException {
+        final Executor executor = this.executor;
+        final Semaphore permits = new Semaphore(concurrency);
+        final List<FutureTask<T>> tasks = new ArrayList<>(sids.size());
+        try {
+            for (String sid : sids) {
+                final FutureTask<T> task = new FutureTask<>(() -> {
+                    try {
+                        return body.run(sid);
+                    } finally {
+                        permits.release();
+                    }
+                });
+                permits.acquire();
+                try {
+                    executor.execute(task);
+                } catch (RejectedExecutionException e) {
+                    permits.release();
+                    await(tasks);
+                    throw e;
+                }
+                tasks.add(task);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            await(tasks);
+            throw new CryptoException(e);
+        }
+        await(tasks);
+        return tasks;
+    }
+
+    private static <T> void await(List<FutureTask<T>> tasks) {
+        boolean interrupted = false;
+        for (FutureTask<T> task : tasks) {
+            while (true) {
+                try {
+                    task.get();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                } catch (ExecutionException ignored) {
+                    break;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static <T> T result(FutureTask<T> task) throws CryptoException {
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
             throw new CryptoException(e);
+        } catch (ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof CryptoException) {
+                throw (CryptoException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new CryptoException(cause);
         }
     }
 
     @Override
     public byte[] decrypt(String sid, byte[] decode) throws CryptoException {
+        final BoundedCache<ByteBuffer, byte[]> replays = this.replays;
+        final ByteBuffer key = replays == null ? null : replayKey(sid, decode);
+        if (key != null) {
+            final byte[] plain = replays.get(key);
+            if (plain == DUPLICATE) {
+                throw new CryptoException(CryptoException.Code.DUPLICATE_MESSAGE);
+            }
+            if (plain != null) {
+                return plain.clone();
+            }
+        }
+
+        final CryptoObserver observer = started(Operation.DECRYPT, sid, decode.length);
+        final long start = System.nanoTime();
+        byte[] plain = null;
+        Throwable error = null;
+        try {
+            IRecord record = begin(Operation.DECRYPT, sid);
+            byte[] remembered = null;
+            try {
+                plain = box.decrypt(sid, decode);
+                remembered = keepPlaintext ? plain.clone() : DUPLICATE;
+                return plain;
+            } catch (CryptoException e) {
+                if (e.code == CryptoException.Code.DUPLICATE_MESSAGE) {
+                    remembered = DUPLICATE;
+                }
+                throw e;
+            } finally {
+                end(Operation.DECRYPT, sid, record);
+                // only once the storage has the session that decrypted the message
+                if (key != null && remembered != null) {
+                    replays.put(key, remembered);
+                }
+            }
+        } catch (IOException e) {
+            error = new CryptoException(e);
+            throw (CryptoException) error;
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            ended(observer, Operation.DECRYPT, sid, start, plain, error);
+        }
+    }
+
+    /**
+     * <p>Decrypt several messages of one session in order, with one storage round trip.</p>
+     *
+     * <p>The session is fetched from the storage before the first message and persisted
+     * after the last one, instead of once per message. A message that fails does not
+     * stop the others, its error is returned in its place; when the storage fails, all
+     * messages that were not answered by the replay cache fail with that error. The
+     * batch is reported to the observer as one operation.</p>
+     *
+     * @param sid     The ID of the session.
+     * @param ciphers The messages in the order they were received.
+     * @return The results in the order of {@code ciphers}.
+     */
+    List<DecryptedMessage> decrypt(String sid, List<byte[]> ciphers) {
+        final BoundedCache<ByteBuffer, byte[]> replays = this.replays;
+        final DecryptedMessage[] ret = new DecryptedMessage[ciphers.size()];
+        final ByteBuffer[] keys = new ByteBuffer[ret.length];
+        int size = 0;
+        for (int i = 0; i < ret.length; i++) {
+            final byte[] cipher = ciphers.get(i);
+            keys[i] = replays == null ? null : replayKey(sid, cipher);
+            final byte[] plain = keys[i] == null ? null : replays.get(keys[i]);
+            if (plain == DUPLICATE) {
+                ret[i] = new DecryptedMessage(sid, null, new CryptoException(CryptoException.Code.DUPLICATE_MESSAGE));
+            } else if (plain != null) {
+                ret[i] = new DecryptedMessage(sid, plain.clone(), null);
+            } else {
+                size += cipher.length;
+            }
+        }
+
+        final CryptoObserver observer = started(Operation.DECRYPT, sid, size);
+        final long start = System.nanoTime();
+        final boolean[] decrypted = new boolean[ret.length];
+        final byte[][] remembered = new byte[ret.length][];
+        int plainSize = 0;
+        CryptoException error = null;
         try {
-            IRecord record = begin(sid);
+            IRecord record = begin(Operation.DECRYPT, sid);
             try {
-                return box.decrypt(sid, decode);
+                for (int i = 0; i < ret.length; i++) {
+                    if (ret[i] != null) {
+                        continue;
+                    }
+                    decrypted[i] = true;
+                    try {
+                        final byte[] plain = box.decrypt(sid, ciphers.get(i));
+                        remembered[i] = keepPlaintext ? plain.clone() : DUPLICATE;
+                        ret[i] = new DecryptedMessage(sid, plain, null);
+                        plainSize += plain.length;
+                    } catch (CryptoException e) {
+                        if (e.code == CryptoException.Code.DUPLICATE_MESSAGE) {
+                            remembered[i] = DUPLICATE;
+                        }
+                        ret[i] = new DecryptedMessage(sid, null, e);
+                    }
+                }
             } finally {
-                end(sid, record);
+                end(Operation.DECRYPT, sid, record);
+            }
+            for (int i = 0; i < ret.length; i++) {
+                if (keys[i] != null && remembered[i] != null) {
+                    replays.put(keys[i], remembered[i]);
+                }
             }
         } catch (IOException e) {
+            error = new CryptoException(e);
+            for (int i = 0; i < ret.length; i++) {
+                if (ret[i] == null || decrypted[i]) {
+                    ret[i] = new DecryptedMessage(sid, null, error);
+                }
+            }
+        } finally {
+            final long now = box.getMetrics().lap(Operation.DECRYPT, Stage.TOTAL, start);
+            observer.operationEnded(Operation.DECRYPT, sid, error != null ? -1 : plainSize, now - start, error);
+        }
+        return Arrays.asList(ret);
+    }
+
+    /**
+     * <p>Answer redelivered messages from memory.</p>
+     *
+     * <p>Every message decrypted is remembered by the SHA-256 hash of its session ID and
+     * ciphertext, for the given time and up to the given number of messages, once its session
+     * was persisted; a message whose session failed to persist can be retried. When the same
+     * message is decrypted again, {@link #decrypt} returns the plaintext again, or throws
+     * {@link CryptoException.Code#DUPLICATE_MESSAGE} if {@code keepPlaintext} is false, without
+     * touching the storage or the native session. Messages that failed as duplicates are
+     * remembered as well.</p>
+     *
+     * @param maxSize       The maximum number of messages remembered.
+     * @param ttl           How long a message is remembered.
+     * @param unit          The unit of {@code ttl}.
+     * @param keepPlaintext Whether to keep the plaintexts in memory and return them for
+     *                      redelivered messages.
+     */
+    public void enableReplayCache(int maxSize, long ttl, TimeUnit unit, boolean keepPlaintext) {
+        this.keepPlaintext = keepPlaintext;
+        this.replays = new BoundedCache<>(maxSize, ttl, unit);
+    }
+
+    public void disableReplayCache() {
+        this.replays = null;
+    }
+
+    /**
+     * The number of redelivered messages answered by the replay cache.
+     */
+    public long getReplayCacheHits() {
+        final BoundedCache<ByteBuffer, byte[]> replays = this.replays;
+        return replays == null ? 0 : replays.getHits();
+    }
+
+    private static ByteBuffer replayKey(String sid, byte[] cipher) {
+        final MessageDigest digest = SHA256.get();
+        final byte[] id = sid.getBytes(StandardCharsets.UTF_8);
+        digest.update((byte) (id.length >>> 24));
+        digest.update((byte) (id.length >>> 16));
+        digest.update((byte) (id.length >>> 8));
+        digest.update((byte) id.length);
+        digest.update(id);
+        digest.update(cipher);
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    /**
+     * List the IDs of the sessions of this box in the storage if it is an
+     * {@link ISessionListing}, or else in the local session index, see
+     * {@link CryptoBox#listSessions}.
+     *
+     * @param prefix The prefix of the session IDs, empty for all sessions.
+     * @return The session IDs.
+     */
+    @Override
+    public Iterator<String> listSessions(String prefix) throws CryptoException {
+        if (!(storage instanceof ISessionListing)) {
+            return box.listSessions(prefix);
+        }
+        try {
+            return ((ISessionListing) storage).listSessions(id, prefix);
+        } catch (StorageException e) {
             throw new CryptoException(e);
         }
     }
 
-    private IRecord begin(String sid) throws IOException {
-        IRecord record = storage.fetchSession(id, sid);
+    /**
+     * Move the local copies of the sessions that were not used for the given time into
+     * the archive of the box, see {@link CryptoBox#archiveIdleSessions}. The sessions
+     * in the storage are not affected.
+     *
+     * @param idle The time since the last use of a session.
+     * @param unit The unit of {@code idle}.
+     * @return The local sessions per tier afterwards.
+     */
+    public SessionTiers archiveIdleSessions(long idle, TimeUnit unit) throws CryptoException {
+        return box.archiveIdleSessions(idle, unit);
+    }
+
+    /**
+     * Count the local copies of the sessions per tier, see {@link CryptoBox#getSessionTiers}.
+     */
+    public SessionTiers getSessionTiers() throws CryptoException {
+        return box.getSessionTiers();
+    }
+
+    /**
+     * Get the metrics the latencies of the operations of this box are recorded into.
+     */
+    public CryptoMetrics getMetrics() {
+        return box.getMetrics();
+    }
+
+    /**
+     * Record the latencies of the operations of this box into the given metrics
+     * instead of {@link CryptoMetrics#getDefault()}.
+     *
+     * @param metrics The metrics to record into.
+     */
+    public void setMetrics(CryptoMetrics metrics) {
+        box.setMetrics(metrics);
+    }
+
+    /**
+     * Get the observer the operations of this box are reported to.
+     */
+    public CryptoObserver getObserver() {
+        return box.getObserver();
+    }
+
+    /**
+     * Report the operations of this box and their stages, including the storage
+     * stages, to the given observer. The encryption for several sessions at once
+     * with {@link #encryptFromPreKeys(Map, byte[])} is only reported by its stages.
+     *
+     * @param observer The observer, {@link CryptoObserver#NOOP} to stop reporting.
+     */
+    public void setObserver(CryptoObserver observer) {
+        box.setObserver(observer);
+    }
+
+    private CryptoObserver started(Operation operation, String sid, int size) {
+        final CryptoObserver observer = box.getObserver();
+        observer.operationStarted(operation, sid, size);
+        return observer;
+    }
+
+    private void ended(CryptoObserver observer, Operation operation, String sid, long start, byte[] result,
+                       Throwable error) {
+        final long now = box.getMetrics().lap(operation, Stage.TOTAL, start);
+        observer.operationEnded(operation, sid, result == null || error != null ? -1 : result.length, now - start, error);
+    }
+
+    private IRecord begin(Operation operation, String sid) throws IOException {
+        final CryptoMetrics metrics = box.getMetrics();
+        final CryptoObserver observer = box.getObserver();
+        long t = System.nanoTime();
+        IRecord record = fetchSession(sid);
+        t = metrics.lap(observer, operation, Stage.STORAGE_FETCH, sid, t);
         if (record != null) {
-            writeSession(sid, record.getData());
+            writeSession(sid, sessionData(record));
+            metrics.lap(observer, operation, Stage.STAGING_WRITE, sid, t);
         }
         return record;
     }
 
-    private void end(String sid, IRecord record) throws IOException {
+    private void end(Operation operation, String sid, IRecord record) throws IOException {
+        final CryptoMetrics metrics = box.getMetrics();
+        final CryptoObserver observer = box.getObserver();
+        long t = System.nanoTime();
         byte[] b = readSession(sid);
-        if (record != null)
-            record.persist(b);
+        t = metrics.lap(observer, operation, Stage.READ_BACK, sid, t);
+        if (record != null) {
+            persistSession(sid, record, b);
+            if (b != null) {
+                journal(Change.Type.SESSION, sid, b);
+            }
+            metrics.lap(observer, operation, Stage.PERSIST, sid, t);
+        }
+    }
+
+    /**
+     * <p>Persist sessions as deltas against their previous version, with a full checkpoint
+     * after the given number of deltas.</p>
+     *
+     * <p>Only applies to storages whose session records implement {@link IDeltaRecord}:
+     * a session is then persisted with {@link IDeltaRecord#persistDelta} and reconstructed
+     * from the checkpoint and its deltas when fetched. A session is persisted in full
+     * when it has as many deltas as given, when it has no checkpoint yet, or when the
+     * delta is not smaller than half of the session. See {@link #getPersistedBytes}.</p>
+     *
+     * @param deltas The maximum number of deltas after a checkpoint, 0 to always persist
+     *               in full, which is the default.
+     */
+    public void setDeltaCheckpoint(int deltas) {
+        if (deltas < 0) {
+            throw new IllegalArgumentException("deltas must not be negative");
+        }
+        this.deltaCheckpoint = deltas;
+    }
+
+    /**
+     * The number of sessions persisted to the storage.
+     */
+    public long getPersists() {
+        return persists.sum();
+    }
+
+    /**
+     * The bytes written to the storage by the sessions persisted: the sessions persisted
+     * in full and the deltas, see {@link #setDeltaCheckpoint}.
+     */
+    public long getPersistedBytes() {
+        return persistedBytes.sum();
+    }
+
+    /**
+     * The bytes the sessions persisted would have taken in full.
+     */
+    public long getSessionBytes() {
+        return sessionBytes.sum();
+    }
+
+    private static byte[] sessionData(IRecord record) {
+        if (record instanceof IDeltaRecord) {
+            final List<byte[]> deltas = ((IDeltaRecord) record).getDeltas();
+            if (deltas != null && !deltas.isEmpty()) {
+                return SessionDelta.apply(record.getData(), deltas);
+            }
+        }
+        return record.getData();
+    }
+
+    /**
+     * The delta to persist instead of the given session, or null to persist it in full.
+     */
+    private byte[] delta(IRecord record, byte[] data) {
+        final int checkpoint = this.deltaCheckpoint;
+        if (checkpoint == 0 || data == null || !(record instanceof IDeltaRecord) || record.getData() == null) {
+            return null;
+        }
+        final List<byte[]> deltas = ((IDeltaRecord) record).getDeltas();
+        if (deltas != null && deltas.size() >= checkpoint) {
+            return null;
+        }
+        final byte[] delta = SessionDelta.encode(sessionData(record), data);
+        return delta.length < data.length / 2 ? delta : null;
+    }
+
+    private IRecord fetchSession(String sid) throws StorageException {
+        final CryptoEvents.StorageFetch event = CryptoEvents.AVAILABLE ? new CryptoEvents.StorageFetch(sid) : null;
+        IRecord record = null;
+        Throwable error = null;
+        try {
+            record = storage.fetchSession(id, sid);
+            return record;
+        } catch (StorageException | RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            if (event != null) {
+                event.finish(record, error);
+            }
+        }
+    }
+
+    private void persistSession(String sid, IRecord record, byte[] data) {
+        final byte[] delta = delta(record, data);
+        final byte[] written = delta != null ? delta : data;
+        final CryptoEvents.StoragePersist event = CryptoEvents.AVAILABLE ? new CryptoEvents.StoragePersist(sid, written) : null;
+        Throwable error = null;
+        try {
+            if (delta != null) {
+                ((IDeltaRecord) record).persistDelta(delta);
+            } else {
+                record.persist(data);
+            }
+            if (data != null) {
+                persists.increment();
+                persistedBytes.add(written.length);
+                sessionBytes.add(data.length);
+            }
+        } catch (RuntimeException e) {
+            error = e;
+            throw e;
+        } finally {
+            if (event != null) {
+                event.finish(error);
+            }
+        }
     }
 
     private void writeSession(String sid, byte[] session) throws IOException {
         if (session != null) {
             String file = String.format("%s/sessions/%s", root, sid);
-            Files.write(Paths.get(file), session);
+            Lock lock = box.sessionLock();
+            lock.lock();
+            try {
+                Files.write(Paths.get(file), session);
+                box.indexSession(sid);
+            } finally {
+                lock.unlock();
+            }
         }
     }
 
     private byte[] readSession(String sid) throws IOException {
         String file = String.format("%s/sessions/%s", root, sid);
         Path path = Paths.get(file);
-        return Files.exists(path) ? Files.readAllBytes(path) : null;
+        Lock lock = box.sessionLock();
+        lock.lock();
+        try {
+            return Files.exists(path) ? Files.readAllBytes(path) : null;
+        } finally {
+            lock.unlock();
+        }
     }
 
     private void writeIdentity(byte[] identity) throws IOException {
@@ -183,6 +974,29 @@ public class CryptoDb implements ICryptobox {
     private void persistPreKey(int kid) throws IOException {
         byte[] data = readPrekey(kid);
         storage.insertPrekey(id, kid, data);
+        journal(Change.Type.PREKEY, Integer.toString(kid), data);
+    }
+
+    /**
+     * <p>Record every mutation of the storage by this box in the given journal: sessions
+     * persisted, prekeys and the identity inserted, and {@link #purge}.</p>
+     *
+     * <p>A change is appended after it was written to the storage, in the order of the
+     * writes; the changes of one session are in the order of its operations, as long
+     * as no two threads use the same session at the same time. If the journal fails,
+     * the operation fails after the storage was written.</p>
+     *
+     * @param journal The journal, e.g. a {@link FileJournal}, or null to stop recording.
+     */
+    public void setJournal(ChangeJournal journal) {
+        this.journal = journal;
+    }
+
+    private void journal(Change.Type type, String key, byte[] data) throws IOException {
+        final ChangeJournal journal = this.journal;
+        if (journal != null) {
+            journal.append(type, id, key, data);
+        }
     }
 
     @Override
@@ -198,10 +1012,31 @@ public class CryptoDb implements ICryptobox {
     public void purge() throws IOException {
         box.close();
         storage.purge(id);
+        journal(Change.Type.PURGE, null, null);
         Path rootPath = Paths.get(root);
         Files.walk(rootPath, FileVisitOption.FOLLOW_LINKS)
                 .sorted(Comparator.reverseOrder())
                 .map(Path::toFile)
                 .forEach(File::delete);
     }
+
+    /**
+     * The default executor of the storage tasks, created on first use.
+     */
+    private static final class StorageExecutor {
+        static final ExecutorService INSTANCE = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "cryptobox-storage-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    private interface SessionTask<T> {
+        T run(String sid) throws Exception;
+    }
 }
@@ -0,0 +1,319 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * Java Flight Recorder events of the native calls and the storage round trips.
+ * <p>
+ * All events are disabled by default and have to be enabled explicitly in the
+ * recording settings, e.g. {@code jfr configure com.wire.bots.cryptobox.Decrypt#enabled=true}
+ * or {@code Recording.enable("com.wire.bots.cryptobox.Decrypt")}. A disabled event
+ * costs next to nothing, as the JIT removes its allocation altogether.
+ * </p>
+ * <p>Sessions are identified by the {@link String#hashCode()} of their ID,
+ * so that the recordings do not contain any user or client IDs.</p>
+ * <p>
+ * Note for callers: the event classes must only be touched after checking
+ * {@link #AVAILABLE} and must never be passed around as {@link Event}, so that
+ * the classes using them still load on Java 8 runtimes without JFR.
+ * </p>
+ */
+final class CryptoEvents {
+    /**
+     * Whether the running JVM ships with JFR.
+     */
+    static final boolean AVAILABLE = isAvailable();
+
+    private static final String OK = "OK";
+
+    private CryptoEvents() {
+    }
+
+    private static boolean isAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+
+    static String outcome(Throwable error) {
+        if (error == null) {
+            return OK;
+        }
+        if (error instanceof CryptoException) {
+            return ((CryptoException) error).code.name();
+        }
+        return error.getClass().getSimpleName();
+    }
+
+    static int hash(String sid) {
+        return sid == null ? 0 : sid.hashCode();
+    }
+
+    private static int length(byte[] data) {
+        return data == null ? 0 : data.length;
+    }
+
+    @Name("com.wire.bots.cryptobox.SessionLoad")
+    @Label("Session Load")
+    @Description("A native session was loaded from disk or initialised from a prekey or a message")
+    @Category({"Cryptobox", "Session"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class SessionLoad extends Event {
+        @Label("Session ID Hash")
+        int sidHash;
+
+        @Label("Source")
+        @Description("Where the session came from: storage, prekey or message")
+        String source;
+
+        @Label("Input Size")
+        @Description("The size of the prekey or the message the session was initialised from")
+        @DataAmount
+        int inputSize;
+
+        @Label("Outcome")
+        String outcome;
+
+        SessionLoad(String sid, String source, byte[] input) {
+            this.sidHash = hash(sid);
+            this.source = source;
+            this.inputSize = length(input);
+            begin();
+        }
+
+        void finish(Throwable error) {
+            end();
+            if (shouldCommit()) {
+                outcome = outcome(error);
+                commit();
+            }
+        }
+    }
+
+    @Name("com.wire.bots.cryptobox.PreKeyGeneration")
+    @Label("PreKey Generation")
+    @Category({"Cryptobox", "Box"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class PreKeyGeneration extends Event {
+        @Label("Count")
+        int count;
+
+        @Label("Size")
+        @DataAmount
+        long size;
+
+        @Label("Outcome")
+        String outcome;
+
+        PreKeyGeneration(int count) {
+            this.count = count;
+            begin();
+        }
+
+        void finish(PreKey[] preKeys, Throwable error) {
+            end();
+            if (shouldCommit()) {
+                if (preKeys != null) {
+                    for (PreKey preKey : preKeys) {
+                        size += length(preKey.data);
+                    }
+                }
+                outcome = outcome(error);
+                commit();
+            }
+        }
+    }
+
+    @Name("com.wire.bots.cryptobox.Encrypt")
+    @Label("Encrypt")
+    @Category({"Cryptobox", "Session"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Encrypt extends Event {
+        @Label("Session ID Hash")
+        int sidHash;
+
+        @Label("Plaintext Size")
+        @DataAmount
+        int plaintextSize;
+
+        @Label("Ciphertext Size")
+        @DataAmount
+        int ciphertextSize;
+
+        @Label("Outcome")
+        String outcome;
+
+        Encrypt(String sid, byte[] plaintext) {
+            this.sidHash = hash(sid);
+            this.plaintextSize = length(plaintext);
+            begin();
+        }
+
+        void finish(byte[] ciphertext, Throwable error) {
+            end();
+            if (shouldCommit()) {
+                ciphertextSize = length(ciphertext);
+                outcome = outcome(error);
+                commit();
+            }
+        }
+    }
+
+    @Name("com.wire.bots.cryptobox.Decrypt")
+    @Label("Decrypt")
+    @Category({"Cryptobox", "Session"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class Decrypt extends Event {
+        @Label("Session ID Hash")
+        int sidHash;
+
+        @Label("Ciphertext Size")
+        @DataAmount
+        int ciphertextSize;
+
+        @Label("Plaintext Size")
+        @DataAmount
+        int plaintextSize;
+
+        @Label("Outcome")
+        String outcome;
+
+        Decrypt(String sid, byte[] ciphertext) {
+            this.sidHash = hash(sid);
+            this.ciphertextSize = length(ciphertext);
+            begin();
+        }
+
+        void finish(byte[] plaintext, Throwable error) {
+            end();
+            if (shouldCommit()) {
+                plaintextSize = length(plaintext);
+                outcome = outcome(error);
+                commit();
+            }
+        }
+    }
+
+    @Name("com.wire.bots.cryptobox.SessionSave")
+    @Label("Session Save")
+    @Category({"Cryptobox", "Session"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class SessionSave extends Event {
+        @Label("Session ID Hash")
+        int sidHash;
+
+        @Label("Outcome")
+        String outcome;
+
+        SessionSave(String sid) {
+            this.sidHash = hash(sid);
+            begin();
+        }
+
+        void finish(Throwable error) {
+            end();
+            if (shouldCommit()) {
+                outcome = outcome(error);
+                commit();
+            }
+        }
+    }
+
+    @Name("com.wire.bots.cryptobox.StorageFetch")
+    @Label("Storage Fetch")
+    @Description("A session record was fetched through IStorage.fetchSession")
+    @Category({"Cryptobox", "Storage"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class StorageFetch extends Event {
+        @Label("Session ID Hash")
+        int sidHash;
+
+        @Label("Size")
+        @DataAmount
+        int size;
+
+        @Label("Found")
+        boolean found;
+
+        @Label("Outcome")
+        String outcome;
+
+        StorageFetch(String sid) {
+            this.sidHash = hash(sid);
+            begin();
+        }
+
+        void finish(IRecord record, Throwable error) {
+            end();
+            if (shouldCommit()) {
+                found = record != null && record.getData() != null;
+                size = record == null ? 0 : length(record.getData());
+                outcome = outcome(error);
+                commit();
+            }
+        }
+    }
+
+    @Name("com.wire.bots.cryptobox.StoragePersist")
+    @Label("Storage Persist")
+    @Description("A session was persisted through IRecord.persist")
+    @Category({"Cryptobox", "Storage"})
+    @Enabled(false)
+    @StackTrace(false)
+    static final class StoragePersist extends Event {
+        @Label("Session ID Hash")
+        int sidHash;
+
+        @Label("Size")
+        @DataAmount
+        int size;
+
+        @Label("Outcome")
+        String outcome;
+
+        StoragePersist(String sid, byte[] data) {
+            this.sidHash = hash(sid);
+            this.size = length(data);
+            begin();
+        }
+
+        void finish(Throwable error) {
+            end();
+            if (shouldCommit()) {
+                outcome = outcome(error);
+                commit();
+            }
+        }
+    }
+}
@@ -32,7 +32,7 @@ final public class CryptoException extends Exception {
         code = Code.UNKNOWN_ERROR;
     }
 
-    private static Code fromNativeCode(int code) {
+    static Code fromNativeCode(int code) {
         switch (code) {
             case 1:
                 return Code.STORAGE_ERROR;
@@ -0,0 +1,148 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+/**
+ * Latency histograms of the {@link ICryptobox} operations, broken down by {@link Stage}.
+ * <p>
+ * By default all boxes record into the process-wide {@link #getDefault()} instance.
+ * A box can be given its own instance with {@link CryptoBox#setMetrics} or
+ * {@link CryptoDb#setMetrics} when its latencies should be looked at in isolation.
+ * </p>
+ * <p>{@code CryptoMetrics} are thread-safe.</p>
+ *
+ * @see LatencyHistogram
+ */
+public final class CryptoMetrics {
+    private static final CryptoMetrics DEFAULT = new CryptoMetrics();
+
+    private final LatencyHistogram[][] histograms;
+
+    public CryptoMetrics() {
+        histograms = new LatencyHistogram[Operation.values().length][Stage.values().length];
+        for (LatencyHistogram[] stages : histograms) {
+            for (int i = 0; i < stages.length; i++) {
+                stages[i] = new LatencyHistogram();
+            }
+        }
+    }
+
+    /**
+     * The metrics shared by all boxes that were not given their own.
+     */
+    public static CryptoMetrics getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * Get the histogram of a single stage of an operation.
+     *
+     * @param operation The operation.
+     * @param stage     The stage of the operation.
+     * @return The live histogram, never null.
+     */
+    public LatencyHistogram get(Operation operation, Stage stage) {
+        return histograms[operation.ordinal()][stage.ordinal()];
+    }
+
+    /**
+     * Shortcut for {@code get(operation, stage).snapshot()}.
+     */
+    public LatencyHistogram.Snapshot snapshot(Operation operation, Stage stage) {
+        return get(operation, stage).snapshot();
+    }
+
+    /**
+     * Record the time elapsed since {@code start} and return the current time,
+     * so that consecutive stages can be timed with a single clock read each.
+     *
+     * @param start The {@link System#nanoTime()} at which the stage started.
+     * @return The {@link System#nanoTime()} at which the stage ended.
+     */
+    long lap(Operation operation, Stage stage, long start) {
+        final long now = System.nanoTime();
+        get(operation, stage).record(now - start);
+        return now;
+    }
+
+    /**
+     * Like {@link #lap(Operation, Stage, long)}, and report the stage to the given observer.
+     */
+    long lap(CryptoObserver observer, Operation operation, Stage stage, String sid, long start) {
+        final long now = lap(operation, stage, start);
+        observer.stageEnded(operation, stage, sid, now - start);
+        return now;
+    }
+
+    /**
+     * The timed {@link ICryptobox} operations.
+     */
+    public enum Operation {
+        ENCRYPT_FROM_PREKEYS,
+        ENCRYPT_FROM_SESSION,
+        DECRYPT
+    }
+
+    /**
+     * The stages an operation goes through, in order.
+     * <p>
+     * The storage stages are only passed by a {@link CryptoDb}, an operation on a plain
+     * {@link CryptoBox} starts with {@link #NATIVE_LOAD}.
+     * </p>
+     */
+    public enum Stage {
+        /**
+         * The whole operation, as seen by the caller.
+         */
+        TOTAL,
+
+        /**
+         * Fetching the session record from {@link IStorage}.
+         */
+        STORAGE_FETCH,
+
+        /**
+         * Writing the fetched session to the local staging directory.
+         */
+        STAGING_WRITE,
+
+        /**
+         * Loading or initialising the native session.
+         */
+        NATIVE_LOAD,
+
+        /**
+         * Encrypting or decrypting the message. For a message that initialises
+         * a new session, this includes the session initialisation.
+         */
+        CRYPTO,
+
+        /**
+         * Serialising and saving the native session.
+         */
+        NATIVE_SAVE,
+
+        /**
+         * Reading the saved session back from the local staging directory.
+         */
+        READ_BACK,
+
+        /**
+         * Persisting the session through {@link IRecord#persist}.
+         */
+        PERSIST
+    }
+}
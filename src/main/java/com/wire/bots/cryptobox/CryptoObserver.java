@@ -0,0 +1,77 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import com.wire.bots.cryptobox.CryptoMetrics.Operation;
+import com.wire.bots.cryptobox.CryptoMetrics.Stage;
+
+/**
+ * Hooks into the {@link ICryptobox} operations of a {@link CryptoBox} or {@link CryptoDb},
+ * e.g. to feed them into tracing, see {@link CryptoBox#setObserver}.
+ * <p>
+ * The callbacks run synchronously on the thread of the operation, at the same points
+ * the {@link CryptoMetrics} are recorded, so they must be cheap and must not throw.
+ * The stages of an operation are contiguous: a stage starts when the operation or
+ * the previous stage ended. An operation on a box wrapped by a {@link CryptoDb} is
+ * reported once, by the {@code CryptoDb}, including its storage stages.
+ * </p>
+ * <p>
+ * Nothing is allocated for the callbacks. All methods do nothing by default, and
+ * calls to {@link #NOOP}, the observer of every box until another one is set, are
+ * inlined and eliminated by the JIT.
+ * </p>
+ */
+public interface CryptoObserver {
+    /**
+     * The observer that ignores everything.
+     */
+    CryptoObserver NOOP = new CryptoObserver() {
+    };
+
+    /**
+     * An operation started.
+     *
+     * @param operation The operation.
+     * @param sid       The ID of the session.
+     * @param size      The size of the content to encrypt or of the cipher to decrypt.
+     */
+    default void operationStarted(Operation operation, String sid, int size) {
+    }
+
+    /**
+     * A stage of an operation ended.
+     *
+     * @param operation The operation.
+     * @param stage     The stage, never {@link Stage#TOTAL}.
+     * @param sid       The ID of the session.
+     * @param nanos     The duration of the stage.
+     */
+    default void stageEnded(Operation operation, Stage stage, String sid, long nanos) {
+    }
+
+    /**
+     * An operation ended.
+     *
+     * @param operation The operation.
+     * @param sid       The ID of the session.
+     * @param size      The size of the result, or -1 if there is none because the operation
+     *                  failed or there was no session to encrypt with.
+     * @param nanos     The duration of the whole operation.
+     * @param error     Why the operation failed, or null if it succeeded.
+     */
+    default void operationEnded(Operation operation, String sid, int size, long nanos, Throwable error) {
+    }
+}
@@ -28,11 +28,18 @@ final class CryptoSession implements Closeable {
     private final long boxPtr;
     private final String id;
     private long ptr;
+    private OpenSessions holder;
+    private int users;
+    private boolean released;
+    private boolean discarded;
+    private int unsaved;
+    private long unsavedSince;
 
     private CryptoSession(long boxPtr, long ptr, String id) {
         this.boxPtr = boxPtr;
         this.ptr = ptr;
         this.id = id;
+        HandleTracker.opened(ptr, "CryptoSession", id);
     }
 
     private native static void jniSave(long boxPtr, long ptr) throws CryptoException;
@@ -51,20 +58,134 @@ final class CryptoSession implements Closeable {
         }
     }
 
+    /**
+     * Keep this session open in the given sessions, which decide when it is saved,
+     * see {@link SavePolicy}. {@link #close} then only ends one use of the session.
+     *
+     * @return this session.
+     */
+    CryptoSession hold(OpenSessions holder) {
+        this.holder = holder;
+        return this;
+    }
+
+    /**
+     * Start a use of a held session, which is ended by {@link #close}.
+     */
+    synchronized void acquire() {
+        users++;
+    }
+
     /**
      * Save the session, persisting any changes made to the underlying
      * key material as a result of any {@link #encrypt} and {@link #decrypt}
-     * operations since the last save.
+     * operations since the last save, and close it.
      *
+     * @param metrics   The metrics to record the latency of the save into as a stage of
+     *                  {@code operation}, or null.
+     * @param observer  The observer to report the stage to.
+     * @param operation The operation the session is saved for.
      * @throws CryptoException       from native code.
      * @throws IllegalStateException when session is closed.
      */
-    void save() throws CryptoException {
+    synchronized void save(CryptoMetrics metrics, CryptoObserver observer, CryptoMetrics.Operation operation)
+            throws CryptoException {
+        try {
+            write(metrics, observer, operation);
+        } finally {
+            closeHandle();
+        }
+    }
+
+    /**
+     * Save a held session if it has unsaved operations, and keep it open.
+     */
+    synchronized void flush() throws CryptoException {
+        flush(null, null, null);
+    }
+
+    private void flush(CryptoMetrics metrics, CryptoObserver observer, CryptoMetrics.Operation operation)
+            throws CryptoException {
+        if (unsaved > 0 && !isClosed()) {
+            write(metrics, observer, operation);
+            unsaved = 0;
+        }
+    }
+
+    /**
+     * Save a held session if its oldest unsaved operation is still the one at the given time.
+     */
+    synchronized void flush(long since) throws CryptoException {
+        if (unsaved > 0 && unsavedSince == since) {
+            flush();
+        }
+    }
+
+    /**
+     * Stop holding the session, and close it once it is not used anymore.
+     *
+     * @param save Whether to save the unsaved operations first, or drop them because
+     *             the session was replaced.
+     */
+    synchronized void release(boolean save) throws CryptoException {
+        if (save) {
+            flush();
+        }
+        released = true;
+        discarded = !save;
+        if (users == 0) {
+            closeHandle();
+        }
+    }
+
+    /**
+     * Save and stop holding the session unless it is in use, see {@link #release}.
+     *
+     * @return Whether the session was released.
+     */
+    synchronized boolean releaseIfUnused() throws CryptoException {
+        if (users > 0) {
+            return false;
+        }
+        release(true);
+        return true;
+    }
+
+    private void write(CryptoMetrics metrics, CryptoObserver observer, CryptoMetrics.Operation operation)
+            throws CryptoException {
         errorIfClosed();
+        final CryptoEvents.SessionSave event = CryptoEvents.AVAILABLE ? new CryptoEvents.SessionSave(id) : null;
+        final long start = System.nanoTime();
+        Throwable error = null;
         try {
             jniSave(boxPtr, ptr);
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
         } finally {
-            close();
+            lap(metrics, observer, operation, CryptoMetrics.Stage.NATIVE_SAVE, start);
+            if (event != null) {
+                event.finish(error);
+            }
+        }
+    }
+
+    /**
+     * Save the session after an operation, or defer it as the policy of the holder says.
+     */
+    private void written(CryptoMetrics metrics, CryptoObserver observer, CryptoMetrics.Operation operation)
+            throws CryptoException {
+        if (holder == null) {
+            save(metrics, observer, operation);
+            return;
+        }
+        final long now = System.nanoTime();
+        if (unsaved++ == 0) {
+            unsavedSince = now;
+            holder.unsaved(this, now);
+        }
+        if (released || holder.getPolicy().isDue(unsaved, now - unsavedSince)) {
+            flush(metrics, observer, operation);
         }
     }
 
@@ -72,30 +193,82 @@ final class CryptoSession implements Closeable {
      * Encrypt a byte array containing plaintext.
      *
      * @param plaintext The plaintext to encrypt.
+     * @param metrics   The metrics to record the latencies of the encryption and the save
+     *                  into as stages of {@code operation}, or null.
+     * @param observer  The observer to report the stages to.
+     * @param operation The operation the session is used for.
      * @return A byte array containing the ciphertext.
-     * @throws CryptoException          from native code.
+     * @throws CryptoException          from native code, or {@link CryptoException.Code#STORAGE_ERROR}
+     *                                  when the session was replaced while held.
      * @throws IllegalArgumentException when {@code plaintext} is null.
      * @throws IllegalStateException    when session is closed.
      */
-    byte[] encrypt(byte[] plaintext) throws CryptoException {
+    synchronized byte[] encrypt(byte[] plaintext, CryptoMetrics metrics, CryptoObserver observer,
+                                CryptoMetrics.Operation operation) throws CryptoException {
         errorIfClosed();
+        errorIfDiscarded();
         errorOnNull(plaintext, "plaintext");
+        final CryptoEvents.Encrypt event = CryptoEvents.AVAILABLE ? new CryptoEvents.Encrypt(id, plaintext) : null;
+        final long start = System.nanoTime();
+        byte[] cipher = null;
+        Throwable error = null;
         try {
-            return jniEncrypt(ptr, plaintext);
+            cipher = jniEncrypt(ptr, plaintext);
+            return cipher;
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
         } finally {
-            save();
+            lap(metrics, observer, operation, CryptoMetrics.Stage.CRYPTO, start);
+            if (event != null) {
+                event.finish(cipher, error);
+            }
+            written(metrics, observer, operation);
         }
     }
 
+    /**
+     * Get the fingerprint of the remote identity as a hex-encoded byte array.
+     *
+     * @throws CryptoException       from native code.
+     * @throws IllegalStateException when session is closed.
+     */
+    synchronized byte[] getRemoteFingerprint() throws CryptoException {
+        errorIfClosed();
+        return jniGetRemoteFingerprint(ptr);
+    }
+
+    /**
+     * Close the session, or end one use of a held session, which is closed
+     * once it was released and is not used anymore.
+     */
     @Override
-    public void close() {
+    public synchronized void close() {
+        if (holder != null) {
+            users = Math.max(0, users - 1);
+            if (!released || users > 0) {
+                return;
+            }
+        }
+        closeHandle();
+    }
+
+    private void closeHandle() {
         if (isClosed()) {
             return;
         }
+        HandleTracker.closed(ptr);
         jniClose(ptr);
         ptr = 0;
     }
 
+    private void lap(CryptoMetrics metrics, CryptoObserver observer, CryptoMetrics.Operation operation,
+                     CryptoMetrics.Stage stage, long start) {
+        if (metrics != null) {
+            metrics.lap(observer, operation, stage, id, start);
+        }
+    }
+
     private boolean isClosed() {
         return ptr == 0;
     }
@@ -106,28 +279,57 @@ final class CryptoSession implements Closeable {
         }
     }
 
+    /**
+     * A held session that was replaced is not saved anymore, so an operation on it would
+     * be lost and its message keys used again: fail it, to be retried with the new session.
+     */
+    private void errorIfDiscarded() throws CryptoException {
+        if (discarded) {
+            throw new CryptoException(CryptoException.Code.STORAGE_ERROR);
+        }
+    }
+
     /**
      * Decrypt a byte array containing ciphertext.
      *
-     * @param cipher The ciphertext to decrypt.
+     * @param cipher    The ciphertext to decrypt.
+     * @param metrics   The metrics to record the latencies of the decryption and the save
+     *                  into as stages of {@code operation}, or null.
+     * @param observer  The observer to report the stages to.
+     * @param operation The operation the session is used for.
      * @return A byte array containing the plaintext.
-     * @throws CryptoException          from native code.
+     * @throws CryptoException          from native code, or {@link CryptoException.Code#STORAGE_ERROR}
+     *                                  when the session was replaced while held.
      * @throws IllegalArgumentException when {@code plaintext} is null.
      * @throws IllegalStateException    when session is closed.
      */
-    byte[] decrypt(byte[] cipher) throws CryptoException {
+    synchronized byte[] decrypt(byte[] cipher, CryptoMetrics metrics, CryptoObserver observer,
+                                CryptoMetrics.Operation operation) throws CryptoException {
         errorIfClosed();
+        errorIfDiscarded();
         errorOnNull(cipher, "cipher");
+        final CryptoEvents.Decrypt event = CryptoEvents.AVAILABLE ? new CryptoEvents.Decrypt(id, cipher) : null;
+        final long start = System.nanoTime();
+        byte[] plain = null;
+        Throwable error = null;
         try {
-            return jniDecrypt(ptr, cipher);
+            plain = jniDecrypt(ptr, cipher);
+            return plain;
+        } catch (CryptoException | RuntimeException e) {
+            error = e;
+            throw e;
         } finally {
-            save();
+            lap(metrics, observer, operation, CryptoMetrics.Stage.CRYPTO, start);
+            if (event != null) {
+                event.finish(plain, error);
+            }
+            written(metrics, observer, operation);
         }
     }
 
     @Override
     protected void finalize() {
-        close();
+        closeHandle();
     }
 
     public String getId() {
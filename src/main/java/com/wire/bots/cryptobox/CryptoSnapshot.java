@@ -0,0 +1,210 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The snapshot of a box in one file.
+ * <p>
+ * A snapshot is a GZIP stream of the magic {@code CBX1}, one entry per file of the box
+ * directory, e.g. {@code identities/local}, {@code prekeys/1} and {@code sessions/<sid>},
+ * each with its relative path and length followed by its content, an end marker and the
+ * SHA-256 of everything before. It is written and read in one pass, and a snapshot is
+ * only restored after its checksum was verified.
+ * </p>
+ */
+final class CryptoSnapshot {
+    private static final int MAGIC = 0x43425831;
+    private static final int ENTRY = 1;
+    private static final int END = 0;
+    private static final int BUFFER = 64 * 1024;
+
+    private CryptoSnapshot() {
+    }
+
+    /**
+     * Write all files of the given directory as a snapshot.
+     */
+    static void write(Path dir, OutputStream out) throws IOException {
+        final List<Path> files;
+        try (Stream<Path> walk = Files.walk(dir)) {
+            files = walk.filter(Files::isRegularFile).sorted(Comparator.naturalOrder()).collect(Collectors.toList());
+        }
+        final Writer writer = new Writer(out);
+        for (Path file : files) {
+            writer.add(dir.relativize(file).toString().replace(File.separatorChar, '/'), Files.readAllBytes(file));
+        }
+        writer.finish();
+    }
+
+    /**
+     * Restore a snapshot into the given directory, which must not exist or be empty. The
+     * files are written into a temporary directory next to it, which is moved into place
+     * once the checksum is verified.
+     */
+    static void extract(InputStream in, Path dir) throws IOException {
+        if (Files.isDirectory(dir)) {
+            try (Stream<Path> list = Files.list(dir)) {
+                if (list.findAny().isPresent()) {
+                    throw new IOException(dir + " is not empty");
+                }
+            }
+        }
+        final Path parent = dir.toAbsolutePath().getParent();
+        Files.createDirectories(parent);
+        final Path tmp = Files.createTempDirectory(parent, dir.getFileName() + ".restore");
+        try {
+            read(in, (path, data) -> {
+                final Path file = tmp.resolve(path).normalize();
+                if (!file.startsWith(tmp) || file.equals(tmp)) {
+                    throw new IOException("Invalid path in snapshot: " + path);
+                }
+                Files.createDirectories(file.getParent());
+                Files.write(file, data);
+            });
+            Files.deleteIfExists(dir);
+            Files.move(tmp, dir, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException | RuntimeException e) {
+            try {
+                delete(tmp);
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Read a snapshot entry by entry.
+     *
+     * @throws IOException If the snapshot is truncated, corrupt or its checksum does not
+     *                     match, after the entries read so far were passed to the sink.
+     */
+    static void read(InputStream in, Sink sink) throws IOException {
+        final MessageDigest digest = sha256();
+        final GZIPInputStream gzip = new GZIPInputStream(in, BUFFER);
+        final DigestInputStream digestIn = new DigestInputStream(new BufferedInputStream(gzip, BUFFER), digest);
+        final DataInputStream data = new DataInputStream(digestIn);
+        if (data.readInt() != MAGIC) {
+            throw new IOException("Not a cryptobox snapshot");
+        }
+        while (true) {
+            final int type = data.readByte();
+            if (type == END) {
+                break;
+            }
+            if (type != ENTRY) {
+                throw new IOException("Corrupt snapshot");
+            }
+            final String path = data.readUTF();
+            final int length = data.readInt();
+            if (length < 0) {
+                throw new IOException("Corrupt snapshot");
+            }
+            final byte[] content = new byte[length];
+            data.readFully(content);
+            sink.accept(path, content);
+        }
+        final byte[] expected = digest.digest();
+        digestIn.on(false);
+        final byte[] actual = new byte[expected.length];
+        try {
+            data.readFully(actual);
+        } catch (EOFException e) {
+            throw new IOException("Truncated snapshot", e);
+        }
+        if (!MessageDigest.isEqual(expected, actual)) {
+            throw new IOException("Snapshot checksum mismatch");
+        }
+    }
+
+    static void delete(Path dir) throws IOException {
+        try (Stream<Path> walk = Files.walk(dir)) {
+            for (Path path : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    interface Sink {
+        void accept(String path, byte[] data) throws IOException;
+    }
+
+    /**
+     * Writes a snapshot entry by entry. {@link #finish()} completes the snapshot but does
+     * not close the underlying stream.
+     */
+    static final class Writer {
+        private final MessageDigest digest = sha256();
+        private final GZIPOutputStream gzip;
+        private final DigestOutputStream digestOut;
+        private final DataOutputStream data;
+
+        Writer(OutputStream out) throws IOException {
+            this.gzip = new GZIPOutputStream(out, BUFFER);
+            this.digestOut = new DigestOutputStream(new BufferedOutputStream(gzip, BUFFER), digest);
+            this.data = new DataOutputStream(digestOut);
+            data.writeInt(MAGIC);
+        }
+
+        void add(String path, byte[] content) throws IOException {
+            data.writeByte(ENTRY);
+            data.writeUTF(path);
+            data.writeInt(content.length);
+            data.write(content);
+        }
+
+        void finish() throws IOException {
+            data.writeByte(END);
+            data.flush();
+            final byte[] checksum = digest.digest();
+            digestOut.on(false);
+            data.write(checksum);
+            data.flush();
+            gzip.finish();
+        }
+    }
+}
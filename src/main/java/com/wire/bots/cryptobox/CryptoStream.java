@@ -0,0 +1,323 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Encryption of large payloads, e.g. files, with constant memory.
+ * <p>
+ * The payload is encrypted with a fresh AES-256 key in chunks of
+ * {@link #CHUNK_SIZE} bytes, each one authenticated with GCM. Only the key,
+ * the <em>envelope</em>, is encrypted through the sessions of the recipients,
+ * so the size of the payload does not matter for the sessions.
+ * </p>
+ * <p>
+ * The stream starts with a header of a magic number and the chunk size. Each
+ * chunk is written as a flag whether it is the last one, the length of the
+ * ciphertext and the ciphertext. The flag and the header are authenticated
+ * with every chunk, so that a truncated or reordered stream is detected. The
+ * last chunk may be empty.
+ * </p>
+ * <p>
+ * When decrypting, every chunk is authenticated before it is written to the
+ * output, but the stream as a whole is only authentic once the decryption
+ * returned. Anything written before an exception must be discarded.
+ * </p>
+ * <p>
+ * Decrypting the envelope advances the session, so an envelope can only be
+ * decrypted once. To be able to retry a stream that failed to read, e.g. when
+ * it was truncated by the network, get its key with {@link #openEnvelope},
+ * keep it until the stream was decrypted, and decrypt the stream with
+ * {@link #decrypt(byte[], InputStream, OutputStream)}.
+ * </p>
+ */
+public final class CryptoStream {
+    /**
+     * The size of the plaintext of every chunk but the last one.
+     */
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int MAGIC = 0x43425331; // CBS1
+    private static final int MAX_CHUNK_SIZE = 16 * 1024 * 1024;
+    private static final int HEADER = 8;
+    private static final int FRAME = 5;
+    private static final int KEY = 32;
+    private static final int NONCE = 12;
+    private static final int TAG = 16;
+    private static final byte VERSION = 1;
+    private static final String TRANSFORMATION = "AES/GCM/NoPadding";
+    private static final SecureRandom random = new SecureRandom();
+
+    private CryptoStream() {
+    }
+
+    /**
+     * Encrypt a stream for several sessions.
+     *
+     * @param box  The box the sessions are in.
+     * @param sids The IDs of the sessions.
+     * @param in   The plaintext, read until its end.
+     * @param out  The ciphertext is written to. Not closed.
+     * @return The envelopes by session ID, see {@link ICryptobox#encryptFromSessions}.
+     * @throws CryptoException from the box or the cipher.
+     * @throws IOException     from the streams.
+     */
+    public static Map<String, byte[]> encrypt(ICryptobox box, Collection<String> sids, InputStream in, OutputStream out)
+            throws CryptoException, IOException {
+        final byte[] envelope = new byte[1 + KEY];
+        random.nextBytes(envelope);
+        envelope[0] = VERSION;
+        final byte[] key = Arrays.copyOfRange(envelope, 1, envelope.length);
+        try {
+            final Map<String, byte[]> ret = box.encryptFromSessions(sids, envelope);
+            encrypt(key, in, out, CHUNK_SIZE);
+            return ret;
+        } finally {
+            Arrays.fill(envelope, (byte) 0);
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Encrypt a channel for several sessions.
+     *
+     * @see #encrypt(ICryptobox, Collection, InputStream, OutputStream)
+     */
+    public static Map<String, byte[]> encrypt(ICryptobox box, Collection<String> sids, ReadableByteChannel in,
+                                              WritableByteChannel out) throws CryptoException, IOException {
+        return encrypt(box, sids, Channels.newInputStream(in), Channels.newOutputStream(out));
+    }
+
+    /**
+     * Decrypt the envelope of a stream encrypted by {@link #encrypt} to the key of the stream.
+     * The envelope cannot be decrypted again, so keep the key until the stream was decrypted
+     * with {@link #decrypt(byte[], InputStream, OutputStream)}, and clear it afterwards.
+     *
+     * @param box      The box the session is in.
+     * @param sid      The ID of the session.
+     * @param envelope The envelope for the session.
+     * @return The key of the stream.
+     * @throws CryptoException from the box.
+     */
+    public static byte[] openEnvelope(ICryptobox box, String sid, byte[] envelope) throws CryptoException {
+        final byte[] plain = box.decrypt(sid, envelope);
+        try {
+            if (plain.length != 1 + KEY || plain[0] != VERSION) {
+                throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+            }
+            return Arrays.copyOfRange(plain, 1, plain.length);
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypt a stream encrypted by {@link #encrypt} in one step. The envelope is used up
+     * even if the stream fails, see {@link #openEnvelope} to be able to retry it.
+     *
+     * @param box      The box the session is in.
+     * @param sid      The ID of the session.
+     * @param envelope The envelope for the session.
+     * @param in       The ciphertext, read up to the last chunk.
+     * @param out      The plaintext is written to. Not closed.
+     * @throws CryptoException from the box, or {@link CryptoException.Code#INVALID_SIGNATURE}
+     *                         when the stream has been tampered with or is truncated.
+     * @throws IOException     from the streams.
+     */
+    public static void decrypt(ICryptobox box, String sid, byte[] envelope, InputStream in, OutputStream out)
+            throws CryptoException, IOException {
+        final byte[] key = openEnvelope(box, sid, envelope);
+        try {
+            decrypt(key, in, out);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypt a channel encrypted by {@link #encrypt}.
+     *
+     * @see #decrypt(ICryptobox, String, byte[], InputStream, OutputStream)
+     */
+    public static void decrypt(ICryptobox box, String sid, byte[] envelope, ReadableByteChannel in,
+                               WritableByteChannel out) throws CryptoException, IOException {
+        decrypt(box, sid, envelope, Channels.newInputStream(in), Channels.newOutputStream(out));
+    }
+
+    /**
+     * Decrypt a stream with the key from {@link #openEnvelope}. The key can be used again
+     * if the stream fails.
+     *
+     * @param key The key of the stream.
+     * @param in  The ciphertext, read up to the last chunk.
+     * @param out The plaintext is written to. Not closed.
+     * @throws CryptoException {@link CryptoException.Code#INVALID_SIGNATURE} when the stream
+     *                         has been tampered with or is truncated.
+     * @throws IOException     from the streams.
+     */
+    public static void decrypt(byte[] key, InputStream in, OutputStream out) throws CryptoException, IOException {
+        if (key.length != KEY) {
+            throw new IllegalArgumentException("key must be " + KEY + " bytes");
+        }
+        decryptStream(key, in, out);
+    }
+
+    /**
+     * Decrypt a channel with the key from {@link #openEnvelope}.
+     *
+     * @see #decrypt(byte[], InputStream, OutputStream)
+     */
+    public static void decrypt(byte[] key, ReadableByteChannel in, WritableByteChannel out)
+            throws CryptoException, IOException {
+        decrypt(key, Channels.newInputStream(in), Channels.newOutputStream(out));
+    }
+
+    static void encrypt(byte[] key, InputStream in, OutputStream out, int chunkSize) throws CryptoException, IOException {
+        final byte[] header = new byte[HEADER];
+        putInt(header, 0, MAGIC);
+        putInt(header, 4, chunkSize);
+        out.write(header);
+
+        final Cipher cipher = cipher();
+        final SecretKeySpec spec = new SecretKeySpec(key, "AES");
+        final byte[] plain = new byte[chunkSize];
+        final byte[] frame = new byte[FRAME + chunkSize + TAG];
+        try {
+            for (long counter = 0; ; counter++) {
+                final int n = readFully(in, plain);
+                final boolean last = n < chunkSize;
+                cipher.init(Cipher.ENCRYPT_MODE, spec, nonce(counter));
+                cipher.updateAAD(header);
+                cipher.updateAAD(new byte[]{(byte) (last ? 1 : 0)});
+                final int length = cipher.doFinal(plain, 0, n, frame, FRAME);
+                frame[0] = (byte) (last ? 1 : 0);
+                putInt(frame, 1, length);
+                out.write(frame, 0, FRAME + length);
+                if (last) {
+                    return;
+                }
+            }
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException(e);
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    private static void decryptStream(byte[] key, InputStream in, OutputStream out) throws CryptoException, IOException {
+        final byte[] header = new byte[HEADER];
+        if (readFully(in, header) != HEADER || getInt(header, 0) != MAGIC) {
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+        final int chunkSize = getInt(header, 4);
+        if (chunkSize <= 0 || chunkSize > MAX_CHUNK_SIZE) {
+            throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+        }
+
+        final Cipher cipher = cipher();
+        final SecretKeySpec spec = new SecretKeySpec(key, "AES");
+        final byte[] frame = new byte[FRAME];
+        final byte[] data = new byte[chunkSize + TAG];
+        final byte[] plain = new byte[chunkSize];
+        try {
+            for (long counter = 0; ; counter++) {
+                if (readFully(in, frame) != FRAME) {
+                    throw new CryptoException(CryptoException.Code.INVALID_SIGNATURE);
+                }
+                final boolean last = frame[0] == 1;
+                final int length = getInt(frame, 1);
+                if (frame[0] > 1 || length < TAG || length > data.length) {
+                    throw new CryptoException(CryptoException.Code.DECODE_ERROR);
+                }
+                if (readFully(in, data, length) != length) {
+                    throw new CryptoException(CryptoException.Code.INVALID_SIGNATURE);
+                }
+                cipher.init(Cipher.DECRYPT_MODE, spec, nonce(counter));
+                cipher.updateAAD(header);
+                cipher.updateAAD(new byte[]{frame[0]});
+                final int n = cipher.doFinal(data, 0, length, plain, 0);
+                out.write(plain, 0, n);
+                if (last) {
+                    return;
+                }
+            }
+        } catch (AEADBadTagException e) {
+            throw new CryptoException(CryptoException.Code.INVALID_SIGNATURE);
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException(e);
+        } finally {
+            Arrays.fill(plain, (byte) 0);
+        }
+    }
+
+    private static Cipher cipher() throws CryptoException {
+        try {
+            return Cipher.getInstance(TRANSFORMATION);
+        } catch (GeneralSecurityException e) {
+            throw new CryptoException(e);
+        }
+    }
+
+    private static GCMParameterSpec nonce(long counter) {
+        final byte[] nonce = new byte[NONCE];
+        for (int i = 0; i < 8; i++) {
+            nonce[NONCE - 1 - i] = (byte) (counter >>> (8 * i));
+        }
+        return new GCMParameterSpec(TAG * 8, nonce);
+    }
+
+    private static int readFully(InputStream in, byte[] b) throws IOException {
+        return readFully(in, b, b.length);
+    }
+
+    private static int readFully(InputStream in, byte[] b, int len) throws IOException {
+        int n = 0;
+        while (n < len) {
+            final int read = in.read(b, n, len - n);
+            if (read < 0) {
+                break;
+            }
+            n += read;
+        }
+        return n;
+    }
+
+    private static void putInt(byte[] b, int off, int value) {
+        b[off] = (byte) (value >>> 24);
+        b[off + 1] = (byte) (value >>> 16);
+        b[off + 2] = (byte) (value >>> 8);
+        b[off + 3] = (byte) value;
+    }
+
+    private static int getInt(byte[] b, int off) {
+        return (b[off] & 0xFF) << 24 | (b[off + 1] & 0xFF) << 16 | (b[off + 2] & 0xFF) << 8 | (b[off + 3] & 0xFF);
+    }
+}
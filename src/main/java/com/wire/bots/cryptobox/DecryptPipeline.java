@@ -0,0 +1,197 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Semaphore;
+
+/**
+ * <p>Decrypt a stream of messages from many sessions.</p>
+ *
+ * <p>The messages of one session are decrypted one after the other in the order they
+ * were submitted, and their results complete in that order; different sessions are
+ * decrypted in parallel on the executor. The messages of a session that queue up
+ * while it is busy are decrypted as one batch of up to {@code batchSize} messages,
+ * which for a {@link CryptoDb} fetches and persists the session only once per batch.
+ * At most {@code maxInFlight} messages are submitted and not completed yet; beyond
+ * that {@link #submit} blocks.</p>
+ *
+ * <p>On Java 9 and later, {@code DecryptProcessor} connects a pipeline to a
+ * {@code java.util.concurrent.Flow.Publisher}.</p>
+ */
+public final class DecryptPipeline {
+    static final int DEFAULT_MAX_IN_FLIGHT = 256;
+    static final int DEFAULT_BATCH_SIZE = 64;
+
+    private final ICryptobox box;
+    private final Executor executor;
+    private final Semaphore permits;
+    private final int batchSize;
+    private final Map<String, Lane> lanes = new HashMap<>();
+
+    public DecryptPipeline(ICryptobox box) {
+        this(box, ForkJoinPool.commonPool(), DEFAULT_MAX_IN_FLIGHT, DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param box         The box to decrypt with.
+     * @param executor    The executor the sessions are decrypted on.
+     * @param maxInFlight The maximum number of messages submitted and not completed.
+     * @param batchSize   The maximum number of messages of one session decrypted at once.
+     */
+    public DecryptPipeline(ICryptobox box, Executor executor, int maxInFlight, int batchSize) {
+        if (maxInFlight < 1 || batchSize < 1) {
+            throw new IllegalArgumentException("maxInFlight and batchSize must be positive");
+        }
+        this.box = box;
+        this.executor = executor;
+        this.permits = new Semaphore(maxInFlight);
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Queue a message for decryption, blocking while {@code maxInFlight} messages are
+     * in flight.
+     *
+     * @param message The message.
+     * @return The result, which completes after the results of all messages of the
+     * same session submitted before. It never completes exceptionally: a message that
+     * fails completes with its {@link DecryptedMessage#getError() error}.
+     * @throws InterruptedException If interrupted while waiting for a free slot.
+     */
+    public CompletableFuture<DecryptedMessage> submit(EncryptedMessage message) throws InterruptedException {
+        permits.acquire();
+        final CompletableFuture<DecryptedMessage> future;
+        try {
+            future = enqueue(message);
+        } catch (RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+        return future.whenComplete((result, error) -> permits.release());
+    }
+
+    /**
+     * Queue a message without waiting for a free slot, for callers that bound the
+     * messages in flight themselves.
+     */
+    CompletableFuture<DecryptedMessage> enqueue(EncryptedMessage message) {
+        final Pending pending = new Pending(message);
+        final Lane lane;
+        synchronized (lanes) {
+            lane = lanes.computeIfAbsent(message.getSid(), Lane::new);
+            lane.queue.add(pending);
+            if (lane.scheduled) {
+                return pending.future;
+            }
+            lane.scheduled = true;
+        }
+        schedule(lane);
+        return pending.future;
+    }
+
+    private void schedule(Lane lane) {
+        try {
+            executor.execute(() -> drain(lane));
+        } catch (RuntimeException e) {
+            final List<Pending> batch;
+            synchronized (lanes) {
+                batch = new ArrayList<>(lane.queue);
+                lane.queue.clear();
+                lane.scheduled = false;
+                lanes.remove(lane.sid);
+            }
+            for (Pending pending : batch) {
+                pending.future.complete(new DecryptedMessage(lane.sid, null, new CryptoException(e)));
+            }
+        }
+    }
+
+    private void drain(Lane lane) {
+        final List<Pending> batch = new ArrayList<>();
+        synchronized (lanes) {
+            while (batch.size() < batchSize && !lane.queue.isEmpty()) {
+                batch.add(lane.queue.poll());
+            }
+        }
+
+        final List<DecryptedMessage> results = decrypt(lane.sid, batch);
+        for (int i = 0; i < batch.size(); i++) {
+            batch.get(i).future.complete(results.get(i));
+        }
+
+        synchronized (lanes) {
+            if (lane.queue.isEmpty()) {
+                lane.scheduled = false;
+                lanes.remove(lane.sid);
+                return;
+            }
+        }
+        schedule(lane);
+    }
+
+    private List<DecryptedMessage> decrypt(String sid, List<Pending> batch) {
+        try {
+            if (box instanceof CryptoDb) {
+                final List<byte[]> ciphers = new ArrayList<>(batch.size());
+                for (Pending pending : batch) {
+                    ciphers.add(pending.message.getCipher());
+                }
+                return ((CryptoDb) box).decrypt(sid, ciphers);
+            }
+
+            final List<DecryptedMessage> ret = new ArrayList<>(batch.size());
+            for (Pending pending : batch) {
+                try {
+                    ret.add(new DecryptedMessage(sid, box.decrypt(sid, pending.message.getCipher()), null));
+                } catch (CryptoException e) {
+                    ret.add(new DecryptedMessage(sid, null, e));
+                }
+            }
+            return ret;
+        } catch (RuntimeException e) {
+            final DecryptedMessage failed = new DecryptedMessage(sid, null, new CryptoException(e));
+            return Collections.nCopies(batch.size(), failed);
+        }
+    }
+
+    private static final class Lane {
+        final String sid;
+        final ArrayDeque<Pending> queue = new ArrayDeque<>();
+        boolean scheduled;
+
+        Lane(String sid) {
+            this.sid = sid;
+        }
+    }
+
+    private static final class Pending {
+        final EncryptedMessage message;
+        final CompletableFuture<DecryptedMessage> future = new CompletableFuture<>();
+
+        Pending(EncryptedMessage message) {
+            this.message = message;
+        }
+    }
+}
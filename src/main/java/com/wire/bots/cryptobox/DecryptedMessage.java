@@ -0,0 +1,57 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+/**
+ * The result of decrypting an {@link EncryptedMessage}: either the plaintext or
+ * the error the message failed with.
+ */
+public final class DecryptedMessage {
+    private final String sid;
+    private final byte[] plaintext;
+    private final CryptoException error;
+
+    DecryptedMessage(String sid, byte[] plaintext, CryptoException error) {
+        this.sid = sid;
+        this.plaintext = plaintext;
+        this.error = error;
+    }
+
+    /**
+     * The ID of the session the message was received from.
+     */
+    public String getSid() {
+        return sid;
+    }
+
+    /**
+     * The decrypted message, or null if decryption failed.
+     */
+    public byte[] getPlaintext() {
+        return plaintext;
+    }
+
+    /**
+     * The error decryption failed with, or null if it succeeded.
+     */
+    public CryptoException getError() {
+        return error;
+    }
+
+    public boolean isSuccess() {
+        return error == null;
+    }
+}
@@ -0,0 +1,46 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+/**
+ * A message received from a session, to be decrypted by a {@link DecryptPipeline}.
+ */
+public final class EncryptedMessage {
+    private final String sid;
+    private final byte[] cipher;
+
+    public EncryptedMessage(String sid, byte[] cipher) {
+        if (sid == null || cipher == null) {
+            throw new NullPointerException();
+        }
+        this.sid = sid;
+        this.cipher = cipher;
+    }
+
+    /**
+     * The ID of the session the message was received from.
+     */
+    public String getSid() {
+        return sid;
+    }
+
+    /**
+     * The encrypted message.
+     */
+    public byte[] getCipher() {
+        return cipher;
+    }
+}
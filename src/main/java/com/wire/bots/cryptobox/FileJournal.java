@@ -0,0 +1,244 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * <p>A {@link ChangeJournal} in an append-only file, {@code journal.log} in the given
+ * directory, with named cursors for its consumers.</p>
+ *
+ * <p>Every change is one record of its length, its content and a CRC-32. When the
+ * journal is opened, a record torn by a crash at the end of the file is cut off. With
+ * {@code sync}, every change is forced to the disk before {@link #append} returns, so
+ * a change in the storage is never missing from the journal after a crash, except for
+ * the one in progress.</p>
+ *
+ * <p>A consumer reads the changes after its cursor with {@link #read} and moves the
+ * cursor with {@link #commit} once it has applied them, e.g. with {@link JournalReplay}.
+ * Cursors are stored in {@code <name>.cursor} next to the journal and hold the byte
+ * offset of the next change, so reading costs only as much as the changes after the
+ * cursor. The journal is never truncated; start a new one, e.g. after taking a
+ * {@link CryptoDb#snapshot snapshot}, when it grows too large.</p>
+ */
+public class FileJournal implements ChangeJournal, Closeable {
+    private static final String LOG = "journal.log";
+    private static final Pattern CURSOR = Pattern.compile("[A-Za-z0-9_.-]+");
+    private static final Change.Type[] TYPES = Change.Type.values();
+
+    private final Path dir;
+    private final FileChannel channel;
+    private final boolean sync;
+    private long sequence;
+    private long size;
+
+    /**
+     * @param dir  The directory of the journal, which is created if it does not exist.
+     * @param sync Whether to force every change to the disk.
+     */
+    public FileJournal(Path dir, boolean sync) throws IOException {
+        Files.createDirectories(dir);
+        this.dir = dir;
+        this.sync = sync;
+        this.channel = FileChannel.open(dir.resolve(LOG),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        size = channel.size();
+        long offset = 0;
+        Change change;
+        while ((change = readAt(offset)) != null) {
+            sequence = change.getSequence();
+            offset = change.end;
+        }
+        if (offset < size) {
+            channel.truncate(offset);
+            size = offset;
+        }
+    }
+
+    @Override
+    public synchronized long append(Change.Type type, String id, String key, byte[] data) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 + (data == null ? 0 : data.length));
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeLong(sequence + 1);
+        out.writeByte(type.ordinal());
+        out.writeUTF(id);
+        out.writeBoolean(key != null);
+        if (key != null) {
+            out.writeUTF(key);
+        }
+        out.writeInt(data == null ? -1 : data.length);
+        if (data != null) {
+            out.write(data);
+        }
+        out.writeInt(0);
+
+        final ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        final int length = record.capacity() - 8;
+        final CRC32 crc = new CRC32();
+        crc.update(record.array(), 4, length);
+        record.putInt(0, length);
+        record.putInt(4 + length, (int) crc.getValue());
+
+        long position = size;
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        if (sync) {
+            channel.force(false);
+        }
+        size = position;
+        return ++sequence;
+    }
+
+    /**
+     * The sequence number of the last change appended.
+     */
+    public synchronized long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Read the changes after the given cursor, without moving it.
+     *
+     * @param cursor The name of the cursor, a new cursor starts at the beginning.
+     * @param max    The maximum number of changes.
+     * @return The changes, in order; empty if there are none.
+     */
+    public List<Change> read(String cursor, int max) throws IOException {
+        long offset = position(cursor)[1];
+        final List<Change> ret = new ArrayList<>();
+        Change change;
+        while (ret.size() < max && (change = readAt(offset)) != null) {
+            ret.add(change);
+            offset = change.end;
+        }
+        return ret;
+    }
+
+    /**
+     * Move the cursor after the given change. The cursor file is replaced atomically.
+     *
+     * @param cursor The name of the cursor.
+     * @param last   The last change the consumer has applied.
+     */
+    public void commit(String cursor, Change last) throws IOException {
+        final Path file = cursorFile(cursor);
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(tmp, String.format("%d %d%n", last.getSequence(), last.end).getBytes(StandardCharsets.US_ASCII));
+        if (sync) {
+            try (FileChannel tmpChannel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                tmpChannel.force(true);
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * The sequence number of the last change committed for the given cursor, 0 if none.
+     */
+    public long getPosition(String cursor) throws IOException {
+        return position(cursor)[0];
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private long[] position(String cursor) throws IOException {
+        final Path file = cursorFile(cursor);
+        if (!Files.exists(file)) {
+            return new long[]{0, 0};
+        }
+        final String[] fields = new String(Files.readAllBytes(file), StandardCharsets.US_ASCII).trim().split(" ");
+        return new long[]{Long.parseLong(fields[0]), Long.parseLong(fields[1])};
+    }
+
+    private Path cursorFile(String cursor) {
+        if (!CURSOR.matcher(cursor).matches()) {
+            throw new IllegalArgumentException("Invalid cursor name: " + cursor);
+        }
+        return dir.resolve(cursor + ".cursor");
+    }
+
+    /**
+     * Read the change at the given offset.
+     *
+     * @return The change, or null at the end of the journal or at a torn record.
+     */
+    private Change readAt(long offset) throws IOException {
+        final long size;
+        synchronized (this) {
+            size = this.size;
+        }
+        if (offset + 4 > size) {
+            return null;
+        }
+        final ByteBuffer header = ByteBuffer.allocate(4);
+        readFully(header, offset);
+        final int length = header.getInt(0);
+        if (length < 0 || offset + 8 + length > size) {
+            return null;
+        }
+        final ByteBuffer body = ByteBuffer.allocate(length + 4);
+        readFully(body, offset + 4);
+        final CRC32 crc = new CRC32();
+        crc.update(body.array(), 0, length);
+        if ((int) crc.getValue() != body.getInt(length)) {
+            return null;
+        }
+
+        final DataInputStream in = new DataInputStream(new ByteArrayInputStream(body.array(), 0, length));
+        final long sequence = in.readLong();
+        final Change.Type type = TYPES[in.readByte()];
+        final String id = in.readUTF();
+        final String key = in.readBoolean() ? in.readUTF() : null;
+        final int dataLength = in.readInt();
+        byte[] data = null;
+        if (dataLength >= 0) {
+            data = new byte[dataLength];
+            in.readFully(data);
+        }
+        return new Change(sequence, type, id, key, data, offset + 8 + length);
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            final int n = channel.read(buffer, position);
+            if (n < 0) {
+                throw new IOException("Unexpected end of journal");
+            }
+            position += n;
+        }
+    }
+}
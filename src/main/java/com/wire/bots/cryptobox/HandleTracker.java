@@ -0,0 +1,136 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Debug mode that records where the native boxes and sessions that are
+ * currently open were allocated, to track down leaked handles.
+ * <p>
+ * Disabled by default, as it captures a stack trace for every handle. Enable
+ * it with {@link #setEnabled} or the system property
+ * {@code -Dcryptobox.trackHandles=true}. Only handles opened while enabled
+ * are tracked.
+ * </p>
+ */
+public final class HandleTracker {
+    private static final ConcurrentHashMap<Long, Handle> handles = new ConcurrentHashMap<>();
+    private static volatile boolean enabled = Boolean.getBoolean("cryptobox.trackHandles");
+
+    private HandleTracker() {
+    }
+
+    public static void setEnabled(boolean enabled) {
+        HandleTracker.enabled = enabled;
+        if (!enabled) {
+            handles.clear();
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    static void opened(long ptr, String kind, String id) {
+        if (enabled) {
+            handles.put(ptr, new Handle(kind, id));
+        }
+    }
+
+    static void closed(long ptr) {
+        if (enabled) {
+            handles.remove(ptr);
+        }
+    }
+
+    /**
+     * The tracked handles that have been open for at least the given time, oldest first.
+     */
+    public static List<Handle> getOpenHandles(long age, TimeUnit unit) {
+        final long opened = System.nanoTime() - unit.toNanos(age);
+        final List<Handle> ret = new ArrayList<>();
+        for (Handle handle : handles.values()) {
+            if (handle.opened - opened <= 0) {
+                ret.add(handle);
+            }
+        }
+        ret.sort(Comparator.comparingLong(h -> h.opened));
+        return ret;
+    }
+
+    /**
+     * Print the tracked handles that have been open for at least the given
+     * time, with the stack traces of their allocation.
+     */
+    public static void dump(long age, TimeUnit unit, PrintStream out) {
+        final List<Handle> open = getOpenHandles(age, unit);
+        out.printf("%d handles open for more than %d %s%n", open.size(), age, unit);
+        for (Handle handle : open) {
+            out.println(handle);
+            for (StackTraceElement element : handle.getStackTrace()) {
+                out.println("\tat " + element);
+            }
+        }
+    }
+
+    public static final class Handle {
+        private final String kind;
+        private final String id;
+        private final long opened = System.nanoTime();
+        private final Throwable site = new Throwable();
+
+        private Handle(String kind, String id) {
+            this.kind = kind;
+            this.id = id;
+        }
+
+        /**
+         * {@code CryptoBox} or {@code CryptoSession}.
+         */
+        public String getKind() {
+            return kind;
+        }
+
+        /**
+         * The ID of the session, or null for boxes.
+         */
+        public String getId() {
+            return id;
+        }
+
+        public long getAge(TimeUnit unit) {
+            return unit.convert(System.nanoTime() - opened, TimeUnit.NANOSECONDS);
+        }
+
+        /**
+         * The stack trace of the allocation.
+         */
+        public StackTraceElement[] getStackTrace() {
+            return site.getStackTrace();
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s%s open for %d ms", kind, id == null ? "" : " " + id, getAge(TimeUnit.MILLISECONDS));
+        }
+    }
+}
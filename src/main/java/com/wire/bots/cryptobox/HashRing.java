@@ -0,0 +1,87 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * <p>Assigns IDs to nodes by consistent hashing.</p>
+ *
+ * <p>Every node is placed on a ring of 64-bit hashes at {@code replicas} points, and an ID
+ * belongs to the node at the first point at or after the hash of the ID. When a node is
+ * added or removed, only the IDs between its points and their predecessors move. Rings
+ * built from the same nodes assign the same IDs to the same nodes on every node.</p>
+ */
+public final class HashRing {
+    static final int DEFAULT_REPLICAS = 128;
+
+    private final NavigableMap<Long, String> ring = new TreeMap<>();
+    private final Set<String> nodes;
+
+    public HashRing(Collection<String> nodes) {
+        this(nodes, DEFAULT_REPLICAS);
+    }
+
+    /**
+     * @param nodes    The IDs of the nodes.
+     * @param replicas The number of points per node, more spread the IDs more evenly.
+     */
+    public HashRing(Collection<String> nodes, int replicas) {
+        if (nodes.isEmpty() || replicas < 1) {
+            throw new IllegalArgumentException("nodes must not be empty and replicas must be positive");
+        }
+        this.nodes = Collections.unmodifiableSet(new TreeSet<>(nodes));
+        for (String node : this.nodes) {
+            for (int i = 0; i < replicas; i++) {
+                ring.put(hash(node + "#" + i), node);
+            }
+        }
+    }
+
+    /**
+     * The node the given ID belongs to.
+     */
+    public String nodeFor(String id) {
+        final Map.Entry<Long, String> entry = ring.ceilingEntry(hash(id));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    public Set<String> getNodes() {
+        return nodes;
+    }
+
+    private static long hash(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-256").digest(key.getBytes(StandardCharsets.UTF_8));
+            long ret = 0;
+            for (int i = 0; i < 8; i++) {
+                ret = ret << 8 | (digest[i] & 0xff);
+            }
+            return ret;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
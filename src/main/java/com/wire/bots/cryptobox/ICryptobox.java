@@ -16,6 +16,11 @@
 package com.wire.bots.cryptobox;
 
 import java.io.Closeable;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public interface ICryptobox extends Closeable {
     byte[] getIdentity() throws CryptoException;
@@ -28,10 +33,76 @@ public interface ICryptobox extends Closeable {
 
     byte[] encryptFromPreKeys(String sid, PreKey preKey, byte[] content) throws CryptoException;
 
+    /**
+     * Initialise sessions from the prekeys of several peers and encrypt the same content for them.
+     *
+     * @param preKeys The prekeys by session ID.
+     * @param content The content to encrypt.
+     * @return The ciphertexts by session ID, in the iteration order of {@code preKeys}.
+     */
+    default Map<String, byte[]> encryptFromPreKeys(Map<String, PreKey> preKeys, byte[] content) throws CryptoException {
+        final Map<String, byte[]> ret = new LinkedHashMap<>();
+        for (Map.Entry<String, PreKey> entry : preKeys.entrySet()) {
+            ret.put(entry.getKey(), encryptFromPreKeys(entry.getKey(), entry.getValue(), content));
+        }
+        return ret;
+    }
+
     byte[] encryptFromSession(String sid, byte[] content) throws CryptoException;
 
+    /**
+     * Encrypt the same content for several sessions.
+     *
+     * @param sids    The IDs of the sessions.
+     * @param content The content to encrypt.
+     * @return The ciphertexts by session ID, in the order of {@code sids}. Sessions that
+     * don't exist are left out.
+     */
+    default Map<String, byte[]> encryptFromSessions(Collection<String> sids, byte[] content) throws CryptoException {
+        final Map<String, byte[]> ret = new LinkedHashMap<>();
+        for (String sid : sids) {
+            final byte[] cipher = encryptFromSession(sid, content);
+            if (cipher != null) {
+                ret.put(sid, cipher);
+            }
+        }
+        return ret;
+    }
+
     byte[] decrypt(String sid, byte[] decode) throws CryptoException;
 
+    /**
+     * List the IDs of the sessions that start with the given prefix, e.g. all
+     * sessions with the clients of one user.
+     *
+     * @param prefix The prefix of the session IDs, empty for all sessions.
+     * @return The session IDs in ascending order, read lazily from an index.
+     */
+    Iterator<String> listSessions(String prefix) throws CryptoException;
+
+    default Iterator<String> listSessions() throws CryptoException {
+        return listSessions("");
+    }
+
+    /**
+     * Get the fingerprints of the remote identities of several sessions. The
+     * fingerprints are cached until the session is initialised again or deleted.
+     *
+     * @param sids The IDs of the sessions.
+     * @return The hex-encoded fingerprints by session ID, in the order of {@code sids}.
+     * Sessions that don't exist are left out.
+     */
+    Map<String, byte[]> getRemoteFingerprints(Collection<String> sids) throws CryptoException;
+
+    /**
+     * Get the fingerprint of the remote identity of a session, see {@link #getRemoteFingerprints}.
+     *
+     * @return The hex-encoded fingerprint, or null if the session does not exist.
+     */
+    default byte[] getRemoteFingerprint(String sid) throws CryptoException {
+        return getRemoteFingerprints(Collections.singleton(sid)).get(sid);
+    }
+
     void close();
 
     boolean isClosed();
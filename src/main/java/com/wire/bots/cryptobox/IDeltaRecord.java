@@ -0,0 +1,46 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.util.List;
+
+/**
+ * An {@link IRecord} that can store a session as a full checkpoint followed by deltas,
+ * see {@link CryptoDb#setDeltaCheckpoint}.
+ */
+public interface IDeltaRecord extends IRecord {
+    /**
+     * The checkpoint, i.e. the data of the last {@link #persist}.
+     */
+    @Override
+    byte[] getData();
+
+    /**
+     * The deltas appended since the checkpoint, oldest first.
+     */
+    List<byte[]> getDeltas();
+
+    /**
+     * Replace the checkpoint and drop all deltas.
+     */
+    @Override
+    void persist(byte[] data);
+
+    /**
+     * Append a delta to the checkpoint and the deltas before.
+     */
+    void persistDelta(byte[] delta);
+}
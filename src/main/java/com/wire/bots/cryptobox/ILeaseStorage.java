@@ -0,0 +1,46 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+/**
+ * An {@link IStorage} that records leases on boxes, see {@link Ownership}.
+ */
+public interface ILeaseStorage extends IStorage {
+    /**
+     * Take or renew the lease on a box for a node.
+     * <p>
+     * Must atomically grant the lease if the box has no lease, if its lease expired at
+     * {@code now} or if it is held by the same node, and then record {@code node} and
+     * {@code expires}, e.g. with a conditional update of a lease row. A storage with a
+     * clock of its own may use it instead of {@code now}.
+     * </p>
+     *
+     * @param id      The ID of the box.
+     * @param node    The ID of the node.
+     * @param now     The current time of the node in milliseconds since the epoch.
+     * @param expires The time the lease expires unless renewed.
+     * @return Whether the node holds the lease now.
+     */
+    boolean acquireLease(String id, String node, long now, long expires) throws StorageException;
+
+    /**
+     * Drop the lease on a box if it is held by the given node.
+     *
+     * @param id   The ID of the box.
+     * @param node The ID of the node.
+     */
+    void releaseLease(String id, String node) throws StorageException;
+}
@@ -0,0 +1,42 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.util.Iterator;
+
+/**
+ * An {@link IStorage} that can list the sessions of a box, see {@link CryptoDb#listSessions}.
+ */
+public interface ISessionListing extends IStorage {
+    /**
+     * List the IDs of the sessions of a box that start with the given prefix, e.g.
+     * all sessions with the clients of one user.
+     * <p>
+     * The IDs should come from an index kept next to the sessions, e.g. a database index
+     * on the box and session ID, in ascending order. Storages with many sessions per box
+     * should read them lazily, e.g. page by page, as the iterator advances.
+     * </p>
+     *
+     * @param id     The ID of the box.
+     * @param prefix The prefix of the session IDs, empty for all sessions.
+     * @return The session IDs.
+     */
+    Iterator<String> listSessions(String id, String prefix) throws StorageException;
+
+    default Iterator<String> listSessions(String id) throws StorageException {
+        return listSessions(id, "");
+    }
+}
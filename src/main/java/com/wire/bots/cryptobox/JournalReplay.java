@@ -0,0 +1,140 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * <p>Apply the changes of a {@link FileJournal} to a replica.</p>
+ *
+ * <p>The changes after a cursor are applied in batches, and the cursor is committed
+ * after every batch, so an interrupted replay resumes after the last batch; a change
+ * may be applied twice, which is harmless since every change carries the full new
+ * content. Start a replica from a {@link CryptoDb#snapshot snapshot} taken after the
+ * journal was set, or replay the journal from its beginning.</p>
+ *
+ * <p>{@code java com.wire.bots.cryptobox.JournalReplay <journal dir> <cursor> <target dir>}
+ * replays a journal into a directory with the layout of {@link CryptoBox} directories,
+ * one per box ID.</p>
+ */
+public final class JournalReplay {
+    private static final int BATCH = 1000;
+
+    private JournalReplay() {
+    }
+
+    /**
+     * Apply the changes after the cursor to another storage.
+     *
+     * @return The number of changes applied.
+     */
+    public static long replay(FileJournal journal, String cursor, IStorage target) throws IOException {
+        return replay(journal, cursor, change -> {
+            switch (change.getType()) {
+                case IDENTITY:
+                    target.insertIdentity(change.getId(), change.getData());
+                    break;
+                case PREKEY:
+                    target.insertPrekey(change.getId(), Integer.parseInt(change.getKey()), change.getData());
+                    break;
+                case SESSION:
+                    final IRecord record = target.fetchSession(change.getId(), change.getKey());
+                    if (record != null) {
+                        record.persist(change.getData());
+                    }
+                    break;
+                case PURGE:
+                    target.purge(change.getId());
+                    break;
+            }
+        });
+    }
+
+    /**
+     * Apply the changes after the cursor to the box directories {@code <dir>/<id>}.
+     *
+     * @return The number of changes applied.
+     */
+    public static long replay(FileJournal journal, String cursor, Path dir) throws IOException {
+        return replay(journal, cursor, change -> {
+            final Path box = resolve(dir, change.getId());
+            switch (change.getType()) {
+                case IDENTITY:
+                    write(resolve(box.resolve("identities"), "local"), change.getData());
+                    break;
+                case PREKEY:
+                    write(resolve(box.resolve("prekeys"), change.getKey()), change.getData());
+                    break;
+                case SESSION:
+                    write(resolve(box.resolve("sessions"), change.getKey()), change.getData());
+                    break;
+                case PURGE:
+                    if (Files.exists(box)) {
+                        CryptoSnapshot.delete(box);
+                    }
+                    break;
+            }
+        });
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 3) {
+            System.err.println("Usage: JournalReplay <journal dir> <cursor> <target dir>");
+            System.exit(2);
+        }
+        try (FileJournal journal = new FileJournal(Paths.get(args[0]), true)) {
+            final long applied = replay(journal, args[1], Paths.get(args[2]));
+            System.out.printf("Applied %d changes, %s is at %d of %d%n",
+                    applied, args[1], journal.getPosition(args[1]), journal.getSequence());
+        }
+    }
+
+    private static long replay(FileJournal journal, String cursor, Target target) throws IOException {
+        long applied = 0;
+        while (true) {
+            final List<Change> changes = journal.read(cursor, BATCH);
+            if (changes.isEmpty()) {
+                return applied;
+            }
+            for (Change change : changes) {
+                target.apply(change);
+            }
+            journal.commit(cursor, changes.get(changes.size() - 1));
+            applied += changes.size();
+        }
+    }
+
+    private static Path resolve(Path dir, String name) throws IOException {
+        final Path ret = dir.resolve(name).normalize();
+        if (!dir.normalize().equals(ret.getParent())) {
+            throw new IOException("Invalid name in journal: " + name);
+        }
+        return ret;
+    }
+
+    private static void write(Path file, byte[] data) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, data);
+    }
+
+    private interface Target {
+        void apply(Change change) throws IOException;
+    }
+}
@@ -0,0 +1,196 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds.
+ * <p>
+ * Values are counted in logarithmic buckets with 16 linear sub-buckets each,
+ * which bounds the relative error of any reported value to about 6%.
+ * The recording threads are spread over a fixed number of stripes of counters,
+ * created on first use, so recording rarely contends with other threads and the
+ * memory does not grow with the number of threads; the stripes are merged when a
+ * {@link Snapshot} is taken.
+ * </p>
+ * <p>A {@code LatencyHistogram} is thread-safe.</p>
+ */
+public final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /**
+     * Values of 2^38 ns (about 4.5 minutes) and more all end up in the last bucket.
+     */
+    private static final int MAX_SHIFT = 38 - SUB_BUCKET_BITS - 1;
+    private static final int BUCKETS = (MAX_SHIFT + 2) * SUB_BUCKETS;
+
+    // layout of a stripe: the bucket counts followed by the sum and the max of all values
+    private static final int SUM = BUCKETS;
+    private static final int MAX = BUCKETS + 1;
+
+    private static final int STRIPES = Integer.highestOneBit(Math.min(Runtime.getRuntime().availableProcessors(), 8) * 2 - 1);
+
+    private final AtomicReferenceArray<AtomicLongArray> stripes = new AtomicReferenceArray<>(STRIPES);
+
+    /**
+     * Record a single latency.
+     *
+     * @param nanos The latency in nanoseconds, negative values are counted as 0.
+     */
+    public void record(long nanos) {
+        final long value = Math.max(nanos, 0);
+        final AtomicLongArray counts = stripe();
+
+        counts.incrementAndGet(bucketOf(value));
+        counts.addAndGet(SUM, value);
+        for (long max = counts.get(MAX); value > max; max = counts.get(MAX)) {
+            if (counts.compareAndSet(MAX, max, value)) {
+                break;
+            }
+        }
+    }
+
+    private AtomicLongArray stripe() {
+        final long id = Thread.currentThread().getId() * 0x9E3779B97F4A7C15L;
+        final int i = (int) (id >>> 32) & (STRIPES - 1);
+        AtomicLongArray counts = stripes.get(i);
+        if (counts == null) {
+            stripes.compareAndSet(i, null, new AtomicLongArray(BUCKETS + 2));
+            counts = stripes.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * Merge the counters of all threads into a consistent, immutable view.
+     */
+    public Snapshot snapshot() {
+        final long[] counts = new long[BUCKETS];
+        long sum = 0;
+        long max = 0;
+        for (int s = 0; s < STRIPES; s++) {
+            final AtomicLongArray stripe = stripes.get(s);
+            if (stripe == null) {
+                continue;
+            }
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] += stripe.get(i);
+            }
+            sum += stripe.get(SUM);
+            max = Math.max(max, stripe.get(MAX));
+        }
+        return new Snapshot(counts, sum, max);
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        if (shift > MAX_SHIFT) {
+            return BUCKETS - 1;
+        }
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * The largest value that is counted in the given bucket.
+     */
+    static long highestValueIn(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        final int shift = bucket / SUB_BUCKETS - 1;
+        final long subBucket = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+
+    /**
+     * A point-in-time view of a {@link LatencyHistogram}.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long sum, long max) {
+            long count = 0;
+            for (long c : counts) {
+                count += c;
+            }
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * The number of recorded values.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * The largest recorded value in nanoseconds.
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * The arithmetic mean of all recorded values in nanoseconds, 0 if nothing was recorded.
+         */
+        public double getMean() {
+            return count == 0 ? 0 : (double) sum / count;
+        }
+
+        /**
+         * Get the value at the given percentile.
+         *
+         * @param percentile The percentile, {@literal >}= 0 and {@literal <}= 100, e.g. 99.9
+         * @return The value in nanoseconds that is larger than or equal to the given
+         * percentage of all recorded values, 0 if nothing was recorded.
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be >= 0 and <= 100");
+            }
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueIn(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("count=%d, mean=%.0fns, p50=%dns, p99=%dns, p999=%dns, max=%dns",
+                    count, getMean(), getValueAtPercentile(50), getValueAtPercentile(99),
+                    getValueAtPercentile(99.9), max);
+        }
+    }
+}
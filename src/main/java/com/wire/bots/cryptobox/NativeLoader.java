@@ -0,0 +1,307 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads the native libraries {@code sodium}, {@code cryptobox} and {@code cryptobox-jni}.
+ * <p>
+ * If the jar contains the libraries for the running platform under
+ * {@code native/<os>-<arch>/}, they are extracted once into a directory named
+ * after the hash of their content, {@code <java.io.tmpdir>/cryptobox4j-<user>/<hash>}
+ * by default, and loaded from there. Later starts with the same libraries reuse
+ * the directory without extracting again. The hash is read from the
+ * {@code SHA256} file the build puts next to the libraries, or else computed.
+ * </p>
+ * <p>
+ * The files are hashed again before every load, a directory that does not match
+ * is extracted anew. The cache directory is created readable by its owner only,
+ * and one that belongs to another user or is writable by others is refused.
+ * </p>
+ * <p>
+ * Otherwise, or with {@code -Dcryptobox.native.bundled=false}, the libraries
+ * are loaded from the {@code java.library.path} as before. The cache directory
+ * can be set with {@code -Dcryptobox.native.cache=<dir>}.
+ * </p>
+ */
+public final class NativeLoader {
+    static final String[] LIBRARIES = {"sodium", "cryptobox", "cryptobox-jni"};
+
+    private static long loadNanos;
+    private static Path directory;
+
+    private NativeLoader() {
+    }
+
+    /**
+     * The time it took to extract and load the native libraries.
+     */
+    public static long getLoadTime(TimeUnit unit) {
+        return unit.convert(loadNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * The directory the bundled native libraries were loaded from, or null if
+     * they were loaded from the {@code java.library.path}.
+     */
+    public static Path getDirectory() {
+        return directory;
+    }
+
+    static synchronized void load() {
+        final long start = System.nanoTime();
+        final ClassLoader loader = NativeLoader.class.getClassLoader();
+        final String resources = "native/" + platform() + "/";
+        if (!"false".equals(System.getProperty("cryptobox.native.bundled"))
+                && loader.getResource(resources + fileName("cryptobox-jni")) != null) {
+            try {
+                final Path cache = Paths.get(System.getProperty("cryptobox.native.cache",
+                        System.getProperty("java.io.tmpdir") + File.separator + "cryptobox4j-" + System.getProperty("user.name")));
+                directory = extract(loader, resources, cache);
+                for (String library : LIBRARIES) {
+                    System.load(directory.resolve(fileName(library)).toAbsolutePath().toString());
+                }
+                loadNanos = System.nanoTime() - start;
+                return;
+            } catch (IOException e) {
+                throw new UnsatisfiedLinkError("Could not extract the native libraries: " + e);
+            }
+        }
+
+        for (String library : LIBRARIES) {
+            System.loadLibrary(libraryName(library));
+        }
+        loadNanos = System.nanoTime() - start;
+    }
+
+    /**
+     * Extract the libraries under the given resource path into a directory named after
+     * their hash, unless it exists already with the same content.
+     *
+     * @return The directory.
+     */
+    static Path extract(ClassLoader loader, String resources, Path cache) throws IOException {
+        final String hash = hash(loader, resources);
+        final Path target = cache.resolve(hash);
+        checkCache(cache);
+        if (Files.isDirectory(target)) {
+            if (hash.equals(digest(target))) {
+                return target;
+            }
+            // incomplete or modified, never load it
+            delete(target);
+        }
+
+        final Path tmp = Files.createTempDirectory(cache, target.getFileName() + ".tmp");
+        try {
+            for (String library : LIBRARIES) {
+                try (InputStream in = open(loader, resources + fileName(library))) {
+                    Files.copy(in, tmp.resolve(fileName(library)));
+                }
+            }
+            if (!hash.equals(digest(tmp))) {
+                throw new IOException("The native libraries under " + resources + " do not match their SHA256");
+            }
+            try {
+                Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                // another process extracted the same libraries in the meantime
+                if (!hash.equals(digest(target))) {
+                    throw e;
+                }
+            }
+        } finally {
+            delete(tmp);
+        }
+        return target;
+    }
+
+    /**
+     * Create the cache directory for the current user only, or check that an existing one
+     * belongs to them and nobody else can write to it.
+     */
+    private static void checkCache(Path cache) throws IOException {
+        final boolean posix = cache.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (!Files.isDirectory(cache)) {
+            if (cache.getParent() != null) {
+                Files.createDirectories(cache.getParent());
+            }
+            try {
+                if (posix) {
+                    Files.createDirectory(cache, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+                } else {
+                    Files.createDirectory(cache);
+                }
+            } catch (FileAlreadyExistsException e) {
+                // created by another process, checked below
+            }
+        }
+        if (!posix) {
+            return;
+        }
+
+        final UserPrincipal user = cache.getFileSystem().getUserPrincipalLookupService()
+                .lookupPrincipalByName(System.getProperty("user.name"));
+        if (!user.equals(Files.getOwner(cache, LinkOption.NOFOLLOW_LINKS))) {
+            throw new IOException(cache + " does not belong to " + user.getName());
+        }
+        final Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(cache, LinkOption.NOFOLLOW_LINKS);
+        if (permissions.contains(PosixFilePermission.GROUP_WRITE) || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+            throw new IOException(cache + " is writable by other users");
+        }
+    }
+
+    private static String hash(ClassLoader loader, String resources) throws IOException {
+        if (loader.getResource(resources + "SHA256") != null) {
+            try (InputStream in = open(loader, resources + "SHA256")) {
+                final String hash = new String(readAll(in), StandardCharsets.US_ASCII).trim();
+                if (hash.matches("[0-9a-f]{64}")) {
+                    return hash;
+                }
+            }
+        }
+
+        final InputStream[] in = new InputStream[LIBRARIES.length];
+        for (int i = 0; i < LIBRARIES.length; i++) {
+            in[i] = open(loader, resources + fileName(LIBRARIES[i]));
+        }
+        return sha256(in);
+    }
+
+    /**
+     * The hash of the libraries in the given directory, as the build computes it, or null
+     * if one of them is missing.
+     */
+    private static String digest(Path directory) throws IOException {
+        final InputStream[] in = new InputStream[LIBRARIES.length];
+        for (int i = 0; i < LIBRARIES.length; i++) {
+            final Path file = directory.resolve(fileName(LIBRARIES[i]));
+            if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+                close(in);
+                return null;
+            }
+            in[i] = Files.newInputStream(file);
+        }
+        return sha256(in);
+    }
+
+    // The streams are concatenated like the Makefile does, and closed.
+    private static String sha256(InputStream[] streams) throws IOException {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            final byte[] buffer = new byte[64 * 1024];
+            for (InputStream stream : streams) {
+                try (InputStream in = new DigestInputStream(stream, digest)) {
+                    while (in.read(buffer) >= 0) {
+                        // digest only
+                    }
+                }
+            }
+            final StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            close(streams);
+        }
+    }
+
+    private static void close(InputStream[] streams) throws IOException {
+        for (InputStream in : streams) {
+            if (in != null) {
+                in.close();
+            }
+        }
+    }
+
+    private static InputStream open(ClassLoader loader, String resource) throws IOException {
+        final InputStream in = loader.getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Missing resource " + resource);
+        }
+        return in;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        final byte[] buffer = new byte[256];
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int n; (n = in.read(buffer)) >= 0; ) {
+            out.write(buffer, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    private static void delete(Path directory) throws IOException {
+        if (!Files.exists(directory)) {
+            return;
+        }
+        final File[] files = directory.toFile().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+        Files.deleteIfExists(directory);
+    }
+
+    private static String fileName(String library) {
+        return System.mapLibraryName(libraryName(library));
+    }
+
+    // It's called libsodium.dll on Windows, unfortunately.
+    private static String libraryName(String library) {
+        return library.equals("sodium") && isWindows() ? "libsodium" : library;
+    }
+
+    private static boolean isWindows() {
+        return System.getProperty("os.name").toLowerCase(Locale.ROOT).contains("win");
+    }
+
+    /**
+     * The platform the libraries are bundled for, as in the Makefile: {@code linux-x86_64},
+     * {@code darwin-aarch64}, {@code win32-x86_64} and so on.
+     */
+    static String platform() {
+        final String os = System.getProperty("os.name").toLowerCase(Locale.ROOT);
+        final String arch = System.getProperty("os.arch").toLowerCase(Locale.ROOT);
+        return (isWindows() ? "win32" : os.contains("mac") ? "darwin" : os.replaceAll("\\s", ""))
+                + "-"
+                + (arch.equals("amd64") ? "x86_64" : arch.equals("arm64") ? "aarch64" : arch);
+    }
+}
@@ -0,0 +1,182 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+/**
+ * Call counts and timings collected by the native JNI bindings.
+ * <p>
+ * For every native entry point the bindings count the calls and measure the
+ * total time spent in the entry point with a monotonic clock, of which the
+ * time spent inside the {@code cbox_*} functions of libcryptobox is measured
+ * separately. The rest is the overhead of the JNI bridge: pinning and copying
+ * arrays and strings, allocating the result objects and raising exceptions.
+ * </p>
+ * <p>The collection is disabled by default, see {@link #setEnabled}.</p>
+ * <p>
+ * In addition the bindings always keep gauges of the native resources held:
+ * open boxes, open sessions and the bytes of the vectors returned by
+ * libcryptobox that were not freed yet. These are not affected by
+ * {@link #reset()}. A growing number of open sessions means that sessions
+ * are not closed and only released by finalization, if at all; see
+ * {@link HandleTracker} to find out where they come from.
+ * </p>
+ */
+public final class NativeStats {
+    private static final int FIELDS = 3;
+    private static final int CALLS = 0;
+    private static final int TOTAL = 1;
+    private static final int CBOX = 2;
+
+    private static final int BOXES = 0;
+    private static final int SESSIONS = 1;
+    private static final int VEC_BYTES = 2;
+    private static final int HANDLES = 3;
+
+    private static volatile boolean enabled;
+
+    private final long[] stats;
+    private final long[] handles;
+
+    private NativeStats(long[] stats, long[] handles) {
+        this.stats = stats;
+        this.handles = handles;
+    }
+
+    /**
+     * Enable or disable the collection in the native bindings. When disabled,
+     * the bindings do not read the clock at all.
+     */
+    public static void setEnabled(boolean enabled) {
+        CryptoBox.jniSetStatsEnabled(enabled);
+        NativeStats.enabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Read the current counters of all entry points.
+     */
+    public static NativeStats snapshot() {
+        final long[] stats = new long[EntryPoint.values().length * FIELDS];
+        final long[] handles = new long[HANDLES];
+        CryptoBox.jniGetStats(stats);
+        CryptoBox.jniGetHandles(handles);
+        return new NativeStats(stats, handles);
+    }
+
+    /**
+     * Reset all counters to 0. The gauges of open handles are not reset.
+     */
+    public static void reset() {
+        CryptoBox.jniResetStats();
+    }
+
+    /**
+     * The number of calls of the given entry point.
+     */
+    public long getCalls(EntryPoint entryPoint) {
+        return get(entryPoint, CALLS);
+    }
+
+    /**
+     * The total nanoseconds spent in the given entry point.
+     */
+    public long getTotalNanos(EntryPoint entryPoint) {
+        return get(entryPoint, TOTAL);
+    }
+
+    /**
+     * The nanoseconds spent in the {@code cbox_*} functions called by the given entry point.
+     */
+    public long getCboxNanos(EntryPoint entryPoint) {
+        return get(entryPoint, CBOX);
+    }
+
+    /**
+     * The nanoseconds spent in the given entry point outside of libcryptobox.
+     */
+    public long getMarshalingNanos(EntryPoint entryPoint) {
+        return getTotalNanos(entryPoint) - getCboxNanos(entryPoint);
+    }
+
+    /**
+     * The number of native boxes that are open.
+     */
+    public long getOpenBoxes() {
+        return handles[BOXES];
+    }
+
+    /**
+     * The number of native sessions that are open.
+     */
+    public long getOpenSessions() {
+        return handles[SESSIONS];
+    }
+
+    /**
+     * The bytes held in vectors returned by libcryptobox that were not freed yet.
+     */
+    public long getVecBytes() {
+        return handles[VEC_BYTES];
+    }
+
+    private long get(EntryPoint entryPoint, int field) {
+        return stats[entryPoint.ordinal() * FIELDS + field];
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(String.format("boxes=%d, sessions=%d, vecBytes=%d%n",
+                getOpenBoxes(), getOpenSessions(), getVecBytes()));
+        for (EntryPoint entryPoint : EntryPoint.values()) {
+            final long calls = getCalls(entryPoint);
+            if (calls == 0) {
+                continue;
+            }
+            sb.append(String.format("%-18s calls=%d, cbox=%dns/call, marshaling=%dns/call%n",
+                    entryPoint, calls, getCboxNanos(entryPoint) / calls, getMarshalingNanos(entryPoint) / calls));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * The native entry points, in the order of {@code cboxjni_stat} in {@code cryptobox-jni.c}.
+     */
+    public enum EntryPoint {
+        OPEN,
+        OPEN_WITH,
+        CLOSE,
+        IS_PREKEY,
+        NEW_LAST_PREKEY,
+        NEW_PREKEYS,
+        LOCAL_FINGERPRINT,
+        COPY_IDENTITY,
+        INIT_FROM_PREKEY,
+        INIT_FROM_MESSAGE,
+        SESSION_LOAD,
+        SESSION_DELETE,
+        ENCRYPT,
+        DECRYPT,
+        SESSION_SAVE,
+        SESSION_CLOSE,
+        REMOTE_FINGERPRINT,
+        ENCRYPT_FROM_PREKEYS,
+        FINGERPRINT_PREKEY,
+        CHECK_PREKEYS
+    }
+}
@@ -0,0 +1,275 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * The sessions a {@link CryptoBox} keeps open under a deferred {@link SavePolicy}.
+ * <p>
+ * A session is loaded from its file without the lock of this object, but only while
+ * it is not open: a placeholder for its ID makes other threads wait for the load, and
+ * sessions are only saved and removed, when evicted or closed, with the lock held.
+ * Sessions in use are not evicted, so there may be more open sessions than the policy
+ * allows for a while. The operations on a session only hold the lock of the session,
+ * which must never call back into this object while locked, apart from {@link #unsaved}.
+ * </p>
+ */
+final class OpenSessions {
+    private final SavePolicy policy;
+    private final LinkedHashMap<String, CryptoSession> open = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Loading> loading = new HashMap<>();
+    private final ConcurrentLinkedQueue<Unsaved> unsaved = new ConcurrentLinkedQueue<>();
+
+    OpenSessions(SavePolicy policy) {
+        this.policy = policy;
+    }
+
+    SavePolicy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Get an open session, or load and hold it. The session must be closed after use.
+     * A session that was replaced while it loaded is handed out discarded, and fails
+     * its operations with {@link CryptoException.Code#STORAGE_ERROR}, to be retried.
+     *
+     * @return The session, or null if the loader found none.
+     */
+    CryptoSession acquire(String sid, SessionLoader loader) throws CryptoException {
+        Loading load;
+        while (true) {
+            synchronized (this) {
+                final CryptoSession session = open.get(sid);
+                if (session != null) {
+                    session.acquire();
+                    return session;
+                }
+                load = loading.get(sid);
+                if (load == null) {
+                    load = new Loading();
+                    loading.put(sid, load);
+                    break;
+                }
+            }
+            // another thread loads the session
+            load.await();
+        }
+
+        try {
+            final CryptoSession session = loader.load(sid);
+            synchronized (this) {
+                if (session == null) {
+                    return null;
+                }
+                session.hold(this).acquire();
+                if (load.replaced) {
+                    // the file was replaced while loading, as by close(sid)
+                    session.release(false);
+                } else {
+                    open.put(sid, session);
+                    try {
+                        evict();
+                    } catch (CryptoException | RuntimeException e) {
+                        session.close();
+                        throw e;
+                    }
+                }
+                return session;
+            }
+        } finally {
+            synchronized (this) {
+                loading.remove(sid);
+            }
+            load.done.countDown();
+        }
+    }
+
+    /**
+     * Drop an open session without saving it, because its file is replaced.
+     */
+    synchronized void discard(String sid) {
+        replaced(sid);
+        final CryptoSession session = open.remove(sid);
+        if (session != null) {
+            try {
+                session.release(false);
+            } catch (CryptoException ignored) {
+                // not saved
+            }
+        }
+    }
+
+    /**
+     * Save and close an open session, because its file is about to be replaced. Operations
+     * still in progress on it are not saved anymore.
+     */
+    synchronized void close(String sid) throws CryptoException {
+        replaced(sid);
+        final CryptoSession session = open.get(sid);
+        if (session != null) {
+            synchronized (session) {
+                session.flush();
+                session.release(false);
+            }
+            open.remove(sid);
+        }
+    }
+
+    /**
+     * Record that a session has unsaved operations since the given time, for {@link #saveDue}.
+     */
+    void unsaved(CryptoSession session, long since) {
+        if (policy.hasDelay()) {
+            unsaved.add(new Unsaved(session, since));
+        }
+    }
+
+    /**
+     * Save the sessions whose oldest unsaved operation is older than the delay of the policy.
+     */
+    void saveDue() throws CryptoException {
+        final long now = System.nanoTime();
+        Unsaved head;
+        while ((head = unsaved.peek()) != null && policy.isDue(1, now - head.since)) {
+            if (unsaved.remove(head)) {
+                head.session.flush(head.since);
+            }
+        }
+    }
+
+    /**
+     * Save all open sessions that have unsaved operations.
+     *
+     * @throws CryptoException The first error, after all sessions were tried.
+     */
+    void flush() throws CryptoException {
+        final List<CryptoSession> sessions;
+        synchronized (this) {
+            sessions = new ArrayList<>(open.values());
+        }
+        CryptoException error = null;
+        for (CryptoSession session : sessions) {
+            try {
+                session.flush();
+            } catch (CryptoException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Save and close all open sessions. Sessions that fail to save are closed anyway.
+     *
+     * @throws CryptoException The first error, after all sessions were closed.
+     */
+    synchronized void close() throws CryptoException {
+        CryptoException error = null;
+        for (CryptoSession session : open.values()) {
+            try {
+                session.release(true);
+            } catch (CryptoException e) {
+                if (error == null) {
+                    error = e;
+                }
+                session.release(false);
+            }
+        }
+        open.clear();
+        unsaved.clear();
+        for (Loading load : loading.values()) {
+            load.replaced = true;
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    synchronized int size() {
+        return open.size();
+    }
+
+    private void replaced(String sid) {
+        final Loading load = loading.get(sid);
+        if (load != null) {
+            load.replaced = true;
+        }
+    }
+
+    /**
+     * Save and close the least recently used sessions beyond the maximum that are not in
+     * use. A session that fails to save stays open.
+     */
+    private void evict() throws CryptoException {
+        final Iterator<Map.Entry<String, CryptoSession>> it = open.entrySet().iterator();
+        while (open.size() > policy.getMaxOpenSessions() && it.hasNext()) {
+            final CryptoSession session = it.next().getValue();
+            if (session.releaseIfUnused()) {
+                it.remove();
+            }
+        }
+    }
+
+    interface SessionLoader {
+        CryptoSession load(String sid) throws CryptoException;
+    }
+
+    /**
+     * The placeholder of a session that is being loaded.
+     */
+    private static final class Loading {
+        final CountDownLatch done = new CountDownLatch(1);
+        // guarded by the lock of OpenSessions
+        boolean replaced;
+
+        void await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    done.await();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static final class Unsaved {
+        final CryptoSession session;
+        final long since;
+
+        Unsaved(CryptoSession session, long since) {
+            this.session = session;
+            this.since = since;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * <p>Ownership of boxes by the nodes of a cluster that share one {@link IStorage}.</p>
+ *
+ * <p>Every box ID is assigned to one node by a {@link HashRing} built from the same nodes
+ * on every node. A node takes a box with {@link #acquire}, which records a lease for the
+ * node in the storage, see {@link ILeaseStorage#acquireLease}, and must {@link #renew} its
+ * leases well before they expire, e.g. every third of the lease time. While a node holds
+ * the lease on a box, no other node can acquire it, so the storage returned by
+ * {@link #getStorage} serves the reads of that box from a {@link CachingStorage} instead
+ * of fetching, and locking, the records in the shared storage. The boxes of all other
+ * IDs go straight to the shared storage. A session served from the cache, which is not
+ * locked in the shared storage, is only persisted if the lease is still held at that
+ * point: once it expired, {@link IRecord#persist} throws an {@link IllegalStateException}
+ * without writing, as another node may have written the box since. Renewing well before
+ * the expiry keeps the time between that check and the write short.</p>
+ *
+ * <p>When the nodes change, {@link #setRing} releases the boxes that belong to another
+ * node now. Before a lease is released, the {@link Listener listeners} are asked to flush
+ * what they hold of the box, and its cache entries are dropped; the new owner can only
+ * acquire the box afterwards. A node that fails to renew a lease in time loses the box
+ * without a flush, and the cache entries are dropped as well. Stop using a box, e.g.
+ * close its {@link CryptoDb}, before it is released.</p>
+ */
+public class Ownership implements Closeable {
+    private static final int DEFAULT_CACHE_SIZE = 10_000;
+
+    private final String node;
+    private final ILeaseStorage storage;
+    private final CachingStorage cache;
+    private final long lease;
+    private final LongSupplier clock;
+    private final Map<String, Long> leases = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final IStorage view;
+    private volatile HashRing ring;
+
+    /**
+     * @param node    The ID of this node.
+     * @param ring    The ring of all nodes, including this one.
+     * @param storage The storage shared by all nodes, which holds the leases.
+     * @param lease   The time a lease is valid unless renewed.
+     * @param unit    The unit of {@code lease}.
+     */
+    public Ownership(String node, HashRing ring, ILeaseStorage storage, long lease, TimeUnit unit) {
+        this(node, ring, storage, CachingStorage.of(storage, DEFAULT_CACHE_SIZE, 1, TimeUnit.HOURS), lease, unit,
+                System::currentTimeMillis);
+    }
+
+    Ownership(String node, HashRing ring, ILeaseStorage storage, CachingStorage cache, long lease, TimeUnit unit,
+              LongSupplier clock) {
+        this.node = node;
+        this.ring = ring;
+        this.storage = storage;
+        this.cache = cache;
+        this.lease = unit.toMillis(lease);
+        this.clock = clock;
+        this.view = storage instanceof ISessionListing ? new ListingView((ISessionListing) storage) : new View();
+    }
+
+    public String getNode() {
+        return node;
+    }
+
+    public HashRing getRing() {
+        return ring;
+    }
+
+    /**
+     * The storage to open the {@link CryptoDb}s of this node with: cached for the boxes
+     * this node owns, the shared storage for all others. It is an {@link ISessionListing}
+     * if the shared storage is one, and always lists the sessions of the shared storage.
+     */
+    public IStorage getStorage() {
+        return view;
+    }
+
+    /**
+     * The cache of the boxes this node owns, e.g. for its hit ratio.
+     */
+    public CachingStorage getCache() {
+        return cache;
+    }
+
+    public void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Take the lease on a box that belongs to this node.
+     *
+     * @param id The ID of the box.
+     * @return Whether this node owns the box now; false if it belongs to another node
+     * or another node still holds the lease.
+     */
+    public boolean acquire(String id) throws StorageException {
+        if (!node.equals(ring.nodeFor(id))) {
+            return false;
+        }
+        final long now = clock.getAsLong();
+        if (!storage.acquireLease(id, node, now, now + lease)) {
+            return false;
+        }
+        final Long previous = leases.put(id, now + lease);
+        if (previous == null || previous <= now) {
+            // another node may have written the box since
+            cache.invalidate(id);
+            for (Listener listener : listeners) {
+                listener.acquired(id);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Whether this node holds an unexpired lease on the given box.
+     */
+    public boolean isOwner(String id) {
+        final Long expires = leases.get(id);
+        return expires != null && clock.getAsLong() < expires;
+    }
+
+    /**
+     * The IDs of the boxes this node holds leases on.
+     */
+    public Collection<String> getOwned() {
+        return new ArrayList<>(leases.keySet());
+    }
+
+    /**
+     * Renew all leases of this node. Boxes that belong to another node now are released,
+     * boxes whose lease could not be renewed are lost.
+     *
+     * @throws IOException The first error, after all leases were tried.
+     */
+    public void renew() throws IOException {
+        IOException error = null;
+        for (String id : getOwned()) {
+            try {
+                if (!node.equals(ring.nodeFor(id))) {
+                    release(id);
+                } else if (!acquire(id)) {
+                    lost(id);
+                }
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    /**
+     * Flush and release a box.
+     *
+     * @param id The ID of the box.
+     * @throws IOException If a listener failed to flush, in which case the lease is kept,
+     *                     or the lease could not be released in the storage, in which case
+     *                     it expires.
+     */
+    public void release(String id) throws IOException {
+        if (!leases.containsKey(id)) {
+            return;
+        }
+        for (Listener listener : listeners) {
+            listener.releasing(id);
+        }
+        leases.remove(id);
+        cache.invalidate(id);
+        storage.releaseLease(id, node);
+    }
+
+    /**
+     * Replace the nodes of the cluster and release the boxes that belong to another node now.
+     *
+     * @param ring The ring of all nodes, including this one if it stays.
+     * @throws IOException The first error, after all boxes were tried.
+     */
+    public void setRing(HashRing ring) throws IOException {
+        this.ring = ring;
+        renew();
+    }
+
+    /**
+     * Release all boxes, e.g. when this node shuts down.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException error = null;
+        for (String id : getOwned()) {
+            try {
+                release(id);
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    private void lost(String id) {
+        leases.remove(id);
+        cache.invalidate(id);
+        for (Listener listener : listeners) {
+            listener.lost(id);
+        }
+    }
+
+    /**
+     * Notified when this node acquires or releases a box.
+     */
+    public interface Listener {
+        default void acquired(String id) {
+        }
+
+        /**
+         * Called before the lease on a box is released: write everything of the box that
+         * was not written to the storage yet.
+         *
+         * @throws IOException To keep the lease.
+         */
+        default void releasing(String id) throws IOException {
+        }
+
+        /**
+         * Called when a lease could not be renewed. Another node may own the box already,
+         * so drop everything of it without writing it.
+         */
+        default void lost(String id) {
+        }
+    }
+
+    private class View implements IStorage {
+        private IStorage target(String id) {
+            return isOwner(id) ? cache : storage;
+        }
+
+        @Override
+        public IRecord fetchSession(String id, String sid) throws StorageException {
+            if (!isOwner(id)) {
+                return storage.fetchSession(id, sid);
+            }
+            final IRecord record = cache.fetchSession(id, sid);
+            if (record == null || !CachingStorage.isCached(record)) {
+                return record;
+            }
+            return record instanceof IDeltaRecord
+                    ? new FencedDeltaRecord(id, (IDeltaRecord) record) : new FencedRecord(id, record);
+        }
+
+        @Override
+        public byte[] fetchIdentity(String id) throws StorageException {
+            return target(id).fetchIdentity(id);
+        }
+
+        @Override
+        public void insertIdentity(String id, byte[] data) throws StorageException {
+            target(id).insertIdentity(id, data);
+        }
+
+        @Override
+        public PreKey[] fetchPrekeys(String id) throws StorageException {
+            return target(id).fetchPrekeys(id);
+        }
+
+        @Override
+        public void insertPrekey(String id, int kid, byte[] data) throws StorageException {
+            target(id).insertPrekey(id, kid, data);
+        }
+
+        @Override
+        public void purge(String id) throws StorageException {
+            target(id).purge(id);
+        }
+    }
+
+    /**
+     * A record served from the cache that is only persisted while this node still owns the box.
+     */
+    private class FencedRecord implements IRecord {
+        final String id;
+        final IRecord record;
+
+        FencedRecord(String id, IRecord record) {
+            this.id = id;
+            this.record = record;
+        }
+
+        @Override
+        public byte[] getData() {
+            return record.getData();
+        }
+
+        @Override
+        public void persist(byte[] data) {
+            fence();
+            record.persist(data);
+        }
+
+        void fence() {
+            if (!isOwner(id)) {
+                cache.invalidate(id);
+                throw new IllegalStateException("The lease of " + node + " on " + id + " expired");
+            }
+        }
+    }
+
+    private final class FencedDeltaRecord extends FencedRecord implements IDeltaRecord {
+        FencedDeltaRecord(String id, IDeltaRecord record) {
+            super(id, record);
+        }
+
+        @Override
+        public List<byte[]> getDeltas() {
+            return ((IDeltaRecord) record).getDeltas();
+        }
+
+        @Override
+        public void persistDelta(byte[] delta) {
+            fence();
+            ((IDeltaRecord) record).persistDelta(delta);
+        }
+    }
+
+    private final class ListingView extends View implements ISessionListing {
+        private final ISessionListing listing;
+
+        ListingView(ISessionListing listing) {
+            this.listing = listing;
+        }
+
+        @Override
+        public Iterator<String> listSessions(String id, String prefix) throws StorageException {
+            return listing.listSessions(id, prefix);
+        }
+    }
+}
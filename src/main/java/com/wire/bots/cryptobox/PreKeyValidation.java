@@ -0,0 +1,90 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.util.Arrays;
+
+/**
+ * The result of {@link CryptoBox#validatePreKeys}: whether each prekey of a
+ * bundle is valid and the fingerprints of the valid ones.
+ * <p>
+ * The results are packed: one array of result codes and one array holding
+ * the fingerprints of all prekeys, {@link #FINGERPRINT_LENGTH} bytes each.
+ * </p>
+ */
+public final class PreKeyValidation {
+    /**
+     * The length of a HEX encoded fingerprint.
+     */
+    public static final int FINGERPRINT_LENGTH = 64;
+
+    static final int VALID = 0;
+    static final int INVALID_ID = -1;
+
+    private final int[] codes;
+    private final byte[] fingerprints;
+
+    PreKeyValidation(int[] codes, byte[] fingerprints) {
+        this.codes = codes;
+        this.fingerprints = fingerprints;
+    }
+
+    /**
+     * The number of prekeys validated.
+     */
+    public int size() {
+        return codes.length;
+    }
+
+    /**
+     * Whether all prekeys are valid.
+     */
+    public boolean isAllValid() {
+        for (int code : codes) {
+            if (code != VALID) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public boolean isValid(int index) {
+        return codes[index] == VALID;
+    }
+
+    /**
+     * Why the prekey at the given index is invalid, or null if it is valid. Invalid
+     * IDs are reported as {@link CryptoException.Code#DECODE_ERROR}, like invalid data.
+     */
+    public CryptoException.Code getError(int index) {
+        final int code = codes[index];
+        if (code == VALID) {
+            return null;
+        }
+        return code == INVALID_ID ? CryptoException.Code.DECODE_ERROR : CryptoException.fromNativeCode(code);
+    }
+
+    /**
+     * The HEX encoded fingerprint of the prekey at the given index, or null if it is invalid.
+     */
+    public byte[] getFingerprint(int index) {
+        if (!isValid(index)) {
+            return null;
+        }
+        final int offset = index * FINGERPRINT_LENGTH;
+        return Arrays.copyOfRange(fingerprints, offset, offset + FINGERPRINT_LENGTH);
+    }
+}
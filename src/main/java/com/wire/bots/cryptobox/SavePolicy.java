@@ -0,0 +1,152 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * When a {@link CryptoBox} saves the sessions it encrypts and decrypts with, see
+ * {@link CryptoBox#setSavePolicy}.
+ * <p>
+ * Saving a session serializes it completely and writes its file. With
+ * {@link #IMMEDIATE}, the default, a session is loaded, used and saved for every
+ * single message. With the other policies the box keeps up to
+ * {@link #getMaxOpenSessions} sessions open and saves them once per burst of
+ * messages: every given number of operations, once the oldest unsaved operation is
+ * older than the given delay, or only when the session is evicted because more
+ * sessions are open, on {@link CryptoBox#flush} and on {@link CryptoBox#close}.
+ * </p>
+ * <p>
+ * Crash safety: the operations since the last save of a session are lost when the
+ * process dies, and the session is loaded in its previous state afterwards. Messages
+ * decrypted in that window can be decrypted once more, so deduplicate them upstream
+ * or acknowledge them only after a {@link CryptoBox#flush}. Messages encrypted in that
+ * window were sent with message keys the session will use again, and the peer rejects
+ * the later messages as duplicates until the session moved past them. A policy bounds
+ * how many operations (or how much time) can be lost per session; use
+ * {@link #IMMEDIATE} where nothing may be lost. New sessions are always saved
+ * immediately, which also removes the prekey they were initialised from.
+ * </p>
+ * <p>
+ * The box of a {@link CryptoDb} always saves immediately, as the session is read back
+ * and persisted to the storage after every operation.
+ * </p>
+ */
+public final class SavePolicy {
+    /**
+     * The default number of sessions kept open by the deferred policies.
+     */
+    public static final int DEFAULT_MAX_OPEN_SESSIONS = 1024;
+
+    /**
+     * Load and save the session for every operation.
+     */
+    public static final SavePolicy IMMEDIATE = new SavePolicy(1, 0, DEFAULT_MAX_OPEN_SESSIONS);
+
+    private final int operations;
+    private final long delay;
+    private final int maxOpenSessions;
+
+    private SavePolicy(int operations, long delay, int maxOpenSessions) {
+        this.operations = operations;
+        this.delay = delay;
+        this.maxOpenSessions = maxOpenSessions;
+    }
+
+    /**
+     * Save a session after every given number of operations on it.
+     */
+    public static SavePolicy everyOperations(int operations) {
+        if (operations < 1) {
+            throw new IllegalArgumentException("operations must be positive");
+        }
+        return new SavePolicy(operations, 0, DEFAULT_MAX_OPEN_SESSIONS);
+    }
+
+    /**
+     * Save a session once its oldest unsaved operation is older than the given delay.
+     * The delay is checked on every operation of the box, so call {@link CryptoBox#flush}
+     * periodically to save the sessions of a box that is idle.
+     */
+    public static SavePolicy after(long delay, TimeUnit unit) {
+        if (delay <= 0) {
+            throw new IllegalArgumentException("delay must be positive");
+        }
+        return new SavePolicy(0, unit.toNanos(delay), DEFAULT_MAX_OPEN_SESSIONS);
+    }
+
+    /**
+     * Save a session only when it is evicted, on {@link CryptoBox#flush} and on
+     * {@link CryptoBox#close}.
+     */
+    public static SavePolicy onEviction() {
+        return new SavePolicy(0, 0, DEFAULT_MAX_OPEN_SESSIONS);
+    }
+
+    /**
+     * This policy with the given number of sessions kept open; the least recently
+     * used session is saved and closed when another one is opened.
+     */
+    public SavePolicy withMaxOpenSessions(int maxOpenSessions) {
+        if (maxOpenSessions < 1) {
+            throw new IllegalArgumentException("maxOpenSessions must be positive");
+        }
+        return new SavePolicy(operations, delay, maxOpenSessions);
+    }
+
+    /**
+     * The number of operations after which a session is saved, 0 if not saved by count.
+     */
+    public int getOperations() {
+        return operations;
+    }
+
+    /**
+     * The delay after which a session is saved, 0 if not saved by time.
+     */
+    public long getDelay(TimeUnit unit) {
+        return unit.convert(delay, TimeUnit.NANOSECONDS);
+    }
+
+    public int getMaxOpenSessions() {
+        return maxOpenSessions;
+    }
+
+    boolean isImmediate() {
+        return operations == 1;
+    }
+
+    boolean hasDelay() {
+        return delay > 0;
+    }
+
+    /**
+     * Whether a session with the given number of unsaved operations, the oldest of
+     * which is the given nanoseconds old, is due to be saved.
+     */
+    boolean isDue(int unsaved, long age) {
+        return unsaved > 0 && (operations > 0 && unsaved >= operations || delay > 0 && age >= delay);
+    }
+
+    @Override
+    public String toString() {
+        if (isImmediate()) {
+            return "immediate";
+        }
+        return String.format("operations=%d, delay=%dms, maxOpenSessions=%d",
+                operations, TimeUnit.NANOSECONDS.toMillis(delay), maxOpenSessions);
+    }
+}
@@ -0,0 +1,234 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * The archive tier of the sessions of a box.
+ * <p>
+ * Idle session files are packed into one compressed file, {@code archive/sessions.zip}
+ * in the directory of the box, and removed from the sessions directory. A session
+ * that is loaded again is extracted back into the sessions directory; from then on
+ * the file in the sessions directory is the current one and the copy in the archive
+ * is garbage, which is dropped the next time the archive is written. Sessions that
+ * are deleted while archived are recorded in {@code archive/deleted} until then.
+ * </p>
+ */
+final class SessionArchive {
+    private final Path sessions;
+    private final Path file;
+    private final Path deleted;
+    private volatile Set<String> packed;
+
+    /**
+     * Open the archive of the box in the given directory, if it has one.
+     */
+    SessionArchive(Path dir) throws IOException {
+        this.sessions = dir.resolve("sessions");
+        this.file = dir.resolve("archive").resolve("sessions.zip");
+        this.deleted = dir.resolve("archive").resolve("deleted");
+
+        final Set<String> packed = new HashSet<>();
+        if (Files.exists(file)) {
+            try (ZipFile zip = new ZipFile(file.toFile())) {
+                final Enumeration<? extends ZipEntry> entries = zip.entries();
+                while (entries.hasMoreElements()) {
+                    packed.add(entries.nextElement().getName());
+                }
+            }
+            if (Files.exists(deleted)) {
+                packed.removeAll(Files.readAllLines(deleted, StandardCharsets.UTF_8));
+            }
+        }
+        this.packed = Collections.synchronizedSet(packed);
+    }
+
+    /**
+     * The IDs of the sessions in the archive, some of which may have been restored.
+     */
+    Set<String> getPacked() {
+        return packed;
+    }
+
+    /**
+     * Extract a session into the sessions directory, unless it is not archived or
+     * was restored already.
+     *
+     * @return Whether the session was extracted.
+     */
+    boolean restore(String sid) throws IOException {
+        if (!packed.contains(sid)) {
+            return false;
+        }
+        synchronized (this) {
+            final Path session = sessions.resolve(sid);
+            if (!packed.contains(sid) || Files.exists(session)) {
+                return false;
+            }
+            try (ZipFile zip = new ZipFile(file.toFile())) {
+                final ZipEntry entry = zip.getEntry(sid);
+                if (entry == null) {
+                    return false;
+                }
+                final Path tmp = file.resolveSibling(sid + ".restore");
+                try (InputStream in = zip.getInputStream(entry)) {
+                    Files.copy(in, tmp, StandardCopyOption.REPLACE_EXISTING);
+                }
+                Files.move(tmp, session, StandardCopyOption.ATOMIC_MOVE);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Forget a deleted session, so that it is not restored again.
+     */
+    synchronized void remove(String sid) throws IOException {
+        if (packed.remove(sid)) {
+            Files.write(deleted, Collections.singletonList(sid), StandardCharsets.UTF_8,
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        }
+    }
+
+    /**
+     * Write a new archive with the sessions still archived and the session files that
+     * were not modified since the given time, and remove these files. The caller keeps
+     * the sessions from being loaded, saved or deleted meanwhile; a file that was
+     * written all the same stays, as it no longer has the content that was archived.
+     *
+     * @param before The time in milliseconds since the epoch.
+     */
+    synchronized void pack(long before) throws IOException {
+        final Set<String> kept = new HashSet<>();
+        final Map<Path, byte[]> moved = new LinkedHashMap<>();
+        Files.createDirectories(file.getParent());
+        final Path tmp = file.resolveSibling("sessions.zip.tmp");
+        try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(tmp))) {
+            out.setLevel(Deflater.BEST_COMPRESSION);
+            if (Files.exists(file)) {
+                try (ZipFile zip = new ZipFile(file.toFile())) {
+                    final Enumeration<? extends ZipEntry> entries = zip.entries();
+                    while (entries.hasMoreElements()) {
+                        final ZipEntry entry = entries.nextElement();
+                        final String sid = entry.getName();
+                        if (!packed.contains(sid) || Files.exists(sessions.resolve(sid))) {
+                            continue;
+                        }
+                        final ZipEntry copy = new ZipEntry(sid);
+                        copy.setTime(entry.getTime());
+                        out.putNextEntry(copy);
+                        try (InputStream in = zip.getInputStream(entry)) {
+                            copy(in, out);
+                        }
+                        out.closeEntry();
+                        kept.add(sid);
+                    }
+                }
+            }
+            if (Files.isDirectory(sessions)) {
+                try (DirectoryStream<Path> files = Files.newDirectoryStream(sessions, Files::isRegularFile)) {
+                    for (Path session : files) {
+                        final long modified = Files.getLastModifiedTime(session).toMillis();
+                        if (modified >= before) {
+                            continue;
+                        }
+                        final byte[] data = Files.readAllBytes(session);
+                        final ZipEntry entry = new ZipEntry(session.getFileName().toString());
+                        entry.setTime(modified);
+                        out.putNextEntry(entry);
+                        out.write(data);
+                        out.closeEntry();
+                        moved.put(session, sha256(data));
+                    }
+                }
+            }
+        }
+        Files.move(tmp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        Files.deleteIfExists(deleted);
+
+        for (Map.Entry<Path, byte[]> session : moved.entrySet()) {
+            kept.add(session.getKey().getFileName().toString());
+            // a session written in the meantime stays, the file wins over the archive
+            if (Files.exists(session.getKey())
+                    && MessageDigest.isEqual(sha256(Files.readAllBytes(session.getKey())), session.getValue())) {
+                Files.delete(session.getKey());
+            }
+        }
+        packed = Collections.synchronizedSet(kept);
+    }
+
+    /**
+     * Count the sessions and their bytes per tier.
+     */
+    SessionTiers tiers() throws IOException {
+        int live = 0;
+        long liveBytes = 0;
+        if (Files.isDirectory(sessions)) {
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(sessions, Files::isRegularFile)) {
+                for (Path session : files) {
+                    live++;
+                    liveBytes += Files.size(session);
+                }
+            }
+        }
+        int archived = 0;
+        synchronized (packed) {
+            for (String sid : packed) {
+                if (!Files.exists(sessions.resolve(sid))) {
+                    archived++;
+                }
+            }
+        }
+        return new SessionTiers(live, liveBytes, archived, Files.exists(file) ? Files.size(file) : 0);
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
+        final byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) != -1) {
+            out.write(buffer, 0, n);
+        }
+    }
+}
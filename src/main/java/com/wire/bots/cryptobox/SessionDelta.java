@@ -0,0 +1,134 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.io.ByteArrayOutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>A binary delta between two versions of a serialised session.</p>
+ *
+ * <p>A delta is the length of the new version followed by operations, each starting
+ * with a varint of {@code length << 1 | copy}: a copy of {@code length} bytes from the
+ * varint offset that follows in the old version, or {@code length} literal bytes. The
+ * old version is indexed by every 8 bytes it contains, and the new version is matched
+ * greedily against that index, so unchanged parts anywhere in a session cost a few
+ * bytes each.</p>
+ */
+final class SessionDelta {
+    private static final int BLOCK = 8;
+
+    private SessionDelta() {
+    }
+
+    static byte[] encode(byte[] old, byte[] data) {
+        final Map<Long, Integer> index = new HashMap<>(Math.max(16, old.length * 2));
+        for (int i = 0; i + BLOCK <= old.length; i++) {
+            index.putIfAbsent(block(old, i), i);
+        }
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(64);
+        writeVarint(out, data.length);
+        int literal = 0;
+        int i = 0;
+        while (i + BLOCK <= data.length) {
+            final Integer from = index.get(block(data, i));
+            if (from == null) {
+                i++;
+                continue;
+            }
+            int length = BLOCK;
+            while (i + length < data.length && from + length < old.length && data[i + length] == old[from + length]) {
+                length++;
+            }
+            writeLiteral(out, data, literal, i);
+            writeVarint(out, (long) length << 1 | 1);
+            writeVarint(out, from);
+            i += length;
+            literal = i;
+        }
+        writeLiteral(out, data, literal, data.length);
+        return out.toByteArray();
+    }
+
+    static byte[] apply(byte[] old, byte[] delta) {
+        final int[] pos = {0};
+        final byte[] ret = new byte[(int) readVarint(delta, pos)];
+        int i = 0;
+        while (pos[0] < delta.length) {
+            final long op = readVarint(delta, pos);
+            final int length = (int) (op >>> 1);
+            if ((op & 1) == 1) {
+                System.arraycopy(old, (int) readVarint(delta, pos), ret, i, length);
+            } else {
+                System.arraycopy(delta, pos[0], ret, i, length);
+                pos[0] += length;
+            }
+            i += length;
+        }
+        if (i != ret.length) {
+            throw new IllegalArgumentException("Corrupt session delta");
+        }
+        return ret;
+    }
+
+    /**
+     * Reconstruct the current version from a checkpoint and the deltas after it.
+     */
+    static byte[] apply(byte[] checkpoint, List<byte[]> deltas) {
+        byte[] ret = checkpoint;
+        for (byte[] delta : deltas) {
+            ret = apply(ret, delta);
+        }
+        return ret;
+    }
+
+    private static long block(byte[] b, int i) {
+        long ret = 0;
+        for (int j = 0; j < BLOCK; j++) {
+            ret = ret << 8 | (b[i + j] & 0xff);
+        }
+        return ret;
+    }
+
+    private static void writeLiteral(ByteArrayOutputStream out, byte[] data, int from, int to) {
+        if (to > from) {
+            writeVarint(out, (long) (to - from) << 1);
+            out.write(data, from, to - from);
+        }
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    private static long readVarint(byte[] b, int[] pos) {
+        long ret = 0;
+        for (int shift = 0; ; shift += 7) {
+            final byte next = b[pos[0]++];
+            ret |= (long) (next & 0x7f) << shift;
+            if ((next & 0x80) == 0) {
+                return ret;
+            }
+        }
+    }
+}
@@ -32,8 +32,18 @@ final class SessionMessage implements AutoCloseable {
         return this.message;
     }
 
+    /**
+     * Save the new session, see {@link CryptoSession#save}.
+     */
+    void save(CryptoMetrics metrics, CryptoObserver observer, CryptoMetrics.Operation operation) throws CryptoException {
+        session.save(metrics, observer, operation);
+    }
+
+    /**
+     * Close the new session, without saving it unless {@link #save} was called.
+     */
     @Override
-    public void close() throws CryptoException {
-        session.save();
+    public void close() {
+        session.close();
     }
 }
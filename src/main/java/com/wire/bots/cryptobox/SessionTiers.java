@@ -0,0 +1,69 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+/**
+ * The sessions of a box and the bytes they take up on the disk, per tier, see
+ * {@link CryptoBox#archiveIdleSessions}.
+ */
+public final class SessionTiers {
+    private final int liveSessions;
+    private final long liveBytes;
+    private final int archivedSessions;
+    private final long archivedBytes;
+
+    SessionTiers(int liveSessions, long liveBytes, int archivedSessions, long archivedBytes) {
+        this.liveSessions = liveSessions;
+        this.liveBytes = liveBytes;
+        this.archivedSessions = archivedSessions;
+        this.archivedBytes = archivedBytes;
+    }
+
+    /**
+     * The number of sessions stored as files in the sessions directory.
+     */
+    public int getLiveSessions() {
+        return liveSessions;
+    }
+
+    /**
+     * The bytes of the session files in the sessions directory.
+     */
+    public long getLiveBytes() {
+        return liveBytes;
+    }
+
+    /**
+     * The number of sessions only stored in the archive.
+     */
+    public int getArchivedSessions() {
+        return archivedSessions;
+    }
+
+    /**
+     * The size of the compressed archive, including sessions that were restored
+     * or deleted since it was written.
+     */
+    public long getArchivedBytes() {
+        return archivedBytes;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("live=%d (%d bytes), archived=%d (%d bytes)",
+                liveSessions, liveBytes, archivedSessions, archivedBytes);
+    }
+}
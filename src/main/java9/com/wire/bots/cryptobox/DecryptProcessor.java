@@ -0,0 +1,224 @@
+// Copyright (C) 2022 Wire Swiss GmbH <support@wire.com>
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.wire.bots.cryptobox;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>A {@link Flow.Processor} that decrypts the messages of an upstream publisher
+ * with a {@link DecryptPipeline} and publishes the results.</p>
+ *
+ * <p>The results of one session are published in the order the messages were
+ * received, different sessions are decrypted in parallel. At most {@code window}
+ * messages are requested from the upstream that were not published downstream yet.
+ * Results are published without blocking the executor, and the upstream is only asked
+ * for more while no subscriber lags behind by more than the buffer can take, so a slow
+ * subscriber slows down the upstream. A message that fails to decrypt is published with
+ * its {@link DecryptedMessage#getError() error} and does not end the stream. When the
+ * upstream completes or fails, this processor does the same after the messages in flight
+ * are published. Should the pipeline itself fail, the processor cancels the upstream
+ * and closes exceptionally.</p>
+ *
+ * <p>Like any {@link SubmissionPublisher}, results published while there is no
+ * subscriber are dropped: subscribe to the processor before subscribing it to the
+ * upstream.</p>
+ */
+public final class DecryptProcessor extends SubmissionPublisher<DecryptedMessage>
+        implements Flow.Processor<EncryptedMessage, DecryptedMessage> {
+    private final DecryptPipeline pipeline;
+    private final int window;
+    private final int maxLag;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // published results the upstream was not asked to replace yet
+    private final AtomicInteger deferred = new AtomicInteger();
+    private final AtomicBoolean finished = new AtomicBoolean();
+    private volatile Flow.Subscription upstream;
+    private volatile boolean completed;
+    private volatile Throwable failure;
+
+    public DecryptProcessor(ICryptobox box) {
+        this(box, ForkJoinPool.commonPool(), DecryptPipeline.DEFAULT_MAX_IN_FLIGHT, DecryptPipeline.DEFAULT_BATCH_SIZE);
+    }
+
+    /**
+     * @param box       The box to decrypt with.
+     * @param executor  The executor the sessions are decrypted and the results published on.
+     * @param window    The maximum number of messages requested from the upstream and not published yet.
+     * @param batchSize The maximum number of messages of one session decrypted at once.
+     */
+    public DecryptProcessor(ICryptobox box, Executor executor, int window, int batchSize) {
+        super(executor, (int) Math.min(1 << 30, Math.max(Flow.defaultBufferSize(), 2L * window)));
+        this.pipeline = new DecryptPipeline(box, executor, window, batchSize);
+        this.window = window;
+        // with window messages on their way at most, a subscriber never lags by more than the buffer
+        this.maxLag = getMaxBufferCapacity() - window;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super DecryptedMessage> subscriber) {
+        super.subscribe(new Consumer(subscriber));
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        if (upstream != null) {
+            subscription.cancel();
+            return;
+        }
+        upstream = subscription;
+        subscription.request(window);
+    }
+
+    @Override
+    public void onNext(EncryptedMessage message) {
+        inFlight.incrementAndGet();
+        pipeline.enqueue(message).whenComplete((result, error) -> {
+            if (error != null) {
+                fail(error);
+                return;
+            }
+            try {
+                if (offer(result, (subscriber, item) -> false) < 0) {
+                    fail(new IllegalStateException("A subscriber lags behind by more than " + getMaxBufferCapacity() + " messages"));
+                    return;
+                }
+            } catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+            if (inFlight.decrementAndGet() == 0 && completed) {
+                finish();
+            } else {
+                deferred.incrementAndGet();
+                resume();
+            }
+        });
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        failure = throwable;
+        onComplete();
+    }
+
+    @Override
+    public void onComplete() {
+        completed = true;
+        if (inFlight.get() == 0) {
+            finish();
+        }
+    }
+
+    @Override
+    public void close() {
+        final Flow.Subscription upstream = this.upstream;
+        if (upstream != null) {
+            upstream.cancel();
+        }
+        super.close();
+    }
+
+    private void finish() {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        final Throwable failure = this.failure;
+        if (failure != null) {
+            closeExceptionally(failure);
+        } else {
+            super.close();
+        }
+    }
+
+    private void fail(Throwable error) {
+        if (!finished.compareAndSet(false, true)) {
+            return;
+        }
+        final Flow.Subscription upstream = this.upstream;
+        if (upstream != null) {
+            upstream.cancel();
+        }
+        closeExceptionally(error);
+    }
+
+    /**
+     * Ask the upstream to replace the deferred results, once the subscribers lag behind
+     * little enough. Called whenever a result is published, consumed or no longer awaited.
+     */
+    private void resume() {
+        final Flow.Subscription upstream = this.upstream;
+        if (upstream == null) {
+            return;
+        }
+        int n;
+        while ((n = deferred.get()) > 0 && estimateMaximumLag() < maxLag) {
+            if (deferred.compareAndSet(n, 0)) {
+                upstream.request(n);
+            }
+        }
+    }
+
+    /**
+     * Resumes the upstream after each result a subscriber consumed, or when it cancels.
+     */
+    private final class Consumer implements Flow.Subscriber<DecryptedMessage> {
+        private final Flow.Subscriber<? super DecryptedMessage> subscriber;
+
+        Consumer(Flow.Subscriber<? super DecryptedMessage> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    subscription.request(n);
+                }
+
+                @Override
+                public void cancel() {
+                    subscription.cancel();
+                    resume();
+                }
+            });
+        }
+
+        @Override
+        public void onNext(DecryptedMessage item) {
+            try {
+                subscriber.onNext(item);
+            } finally {
+                resume();
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            subscriber.onError(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            subscriber.onComplete();
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.wire.bots.cryptobox;
+
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class BoundedCacheTest {
+    private final AtomicLong now = new AtomicLong();
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() {
+        BoundedCache<String, String> cache = new BoundedCache<>(2, 1, TimeUnit.MINUTES, now::get);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        Assertions.assertEquals("1", cache.get("a"));
+        cache.put("c", "3");
+
+        Assertions.assertEquals(2, cache.size());
+        Assertions.assertNull(cache.get("b"));
+        Assertions.assertEquals("1", cache.get("a"));
+        Assertions.assertEquals("3", cache.get("c"));
+        Assertions.assertEquals(1, cache.getEvictions());
+        Assertions.assertEquals(3, cache.getHits());
+        Assertions.assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void testExpires() {
+        BoundedCache<String, String> cache = new BoundedCache<>(10, 1, TimeUnit.SECONDS, now::get);
+        cache.put("a", "1");
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        cache.put("b", "2");
+        Assertions.assertEquals("1", cache.get("a"));
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        Assertions.assertNull(cache.get("a"));
+        Assertions.assertEquals("2", cache.get("b"));
+
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(500));
+        cache.put("c", "3");
+        Assertions.assertEquals(1, cache.size());
+        Assertions.assertEquals(2, cache.getEvictions());
+    }
+}
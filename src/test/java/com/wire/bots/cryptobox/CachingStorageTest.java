@@ -0,0 +1,83 @@
+package com.wire.bots.cryptobox;
+
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class CachingStorageTest {
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final MemStorage storage = new MemStorage() {
+        @Override
+        public IRecord fetchSession(String id, String sid) {
+            fetches.incrementAndGet();
+            return super.fetchSession(id, sid);
+        }
+
+        @Override
+        public byte[] fetchIdentity(String id) {
+            fetches.incrementAndGet();
+            return super.fetchIdentity(id);
+        }
+    };
+
+    @Test
+    public void testReadThrough() throws Exception {
+        CachingStorage cache = CachingStorage.of(storage, 10, 1, TimeUnit.MINUTES);
+        IRecord record = cache.fetchSession("bot", "peer");
+        Assertions.assertNull(record.getData());
+        record.persist(new byte[]{1, 2});
+
+        record = cache.fetchSession("bot", "peer");
+        Assertions.assertArrayEquals(new byte[]{1, 2}, record.getData());
+        Assertions.assertEquals(1, fetches.get());
+
+        cache.insertIdentity("bot", new byte[]{3});
+        Assertions.assertArrayEquals(new byte[]{3}, cache.fetchIdentity("bot"));
+        Assertions.assertEquals(1, fetches.get());
+
+        cache.invalidate("bot");
+        Assertions.assertEquals(0, cache.getCachedSessions());
+        cache.fetchSession("bot", "peer");
+        Assertions.assertArrayEquals(new byte[]{3}, cache.fetchIdentity("bot"));
+        Assertions.assertEquals(3, fetches.get());
+        Assertions.assertEquals(2, cache.getHits());
+        Assertions.assertEquals(3, cache.getMisses());
+        Assertions.assertEquals(0.4, cache.getHitRatio(), 0.001);
+    }
+
+    @Test
+    public void testCryptoDb() throws Exception {
+        CachingStorage cache = CachingStorage.of(storage, 10, 1, TimeUnit.MINUTES);
+        String aliceId = UUID.randomUUID().toString();
+        String bobId = UUID.randomUUID().toString();
+        CryptoDb alice = new CryptoDb(aliceId, cache);
+        CryptoDb bob = new CryptoDb(bobId, new MemStorage());
+        try {
+            PreKey[] keys = alice.newPreKeys(0, 1);
+            Assertions.assertEquals(keys.length, cache.fetchPrekeys(aliceId).length);
+
+            Util.assertDecrypted(alice.decrypt(bobId, bob.encryptFromPreKeys(aliceId, keys[0], "Hello Alice!".getBytes())), "Hello Alice!");
+            int before = fetches.get();
+            for (int i = 0; i < 5; i++) {
+                String text = "Hello " + i;
+                Util.assertDecrypted(alice.decrypt(bobId, bob.encryptFromSession(aliceId, text.getBytes())), text);
+            }
+            Assertions.assertEquals(before, fetches.get());
+            Assertions.assertEquals(1, cache.getCachedSessions());
+
+            // the session IDs are listed by the wrapped storage
+            Assertions.assertTrue(cache instanceof ISessionListing);
+            Assertions.assertEquals(bobId, alice.listSessions().next());
+
+            alice.purge();
+            Assertions.assertEquals(0, cache.getCachedSessions());
+            Assertions.assertNull(cache.fetchPrekeys(aliceId));
+        } finally {
+            bob.close();
+        }
+    }
+}
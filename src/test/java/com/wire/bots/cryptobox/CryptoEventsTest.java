@@ -0,0 +1,97 @@
+package com.wire.bots.cryptobox;
+
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+public class CryptoEventsTest {
+    private static final List<String> EVENTS = Arrays.asList(
+            "com.wire.bots.cryptobox.SessionLoad",
+            "com.wire.bots.cryptobox.PreKeyGeneration",
+            "com.wire.bots.cryptobox.Encrypt",
+            "com.wire.bots.cryptobox.Decrypt",
+            "com.wire.bots.cryptobox.SessionSave",
+            "com.wire.bots.cryptobox.StorageFetch",
+            "com.wire.bots.cryptobox.StoragePersist");
+
+    private Path dump;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        dump = Files.createTempFile("cryptobox-events-", ".jfr");
+    }
+
+    @AfterEach
+    public void clean() throws Exception {
+        Files.deleteIfExists(dump);
+    }
+
+    @Test
+    public void testEventsAreRecorded() throws Exception {
+        try (Recording recording = new Recording()) {
+            for (String event : EVENTS) {
+                recording.enable(event);
+            }
+            recording.start();
+            roundTrip();
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(dump);
+        Set<String> names = events.stream()
+                .map(e -> e.getEventType().getName())
+                .collect(Collectors.toSet());
+        Assertions.assertTrue(names.containsAll(EVENTS), "Recorded: " + names);
+
+        RecordedEvent decrypt = events.stream()
+                .filter(e -> e.getEventType().getName().equals("com.wire.bots.cryptobox.Decrypt"))
+                .findFirst()
+                .orElseThrow(AssertionError::new);
+        Assertions.assertEquals("OK", decrypt.getString("outcome"));
+        Assertions.assertEquals("Hello Alice!".length(), decrypt.getInt("plaintextSize"));
+        Assertions.assertTrue(decrypt.getInt("ciphertextSize") > 0);
+    }
+
+    @Test
+    public void testEventsAreDisabledByDefault() throws Exception {
+        try (Recording recording = new Recording()) {
+            recording.start();
+            roundTrip();
+            recording.stop();
+            recording.dump(dump);
+        }
+
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+            Assertions.assertFalse(EVENTS.contains(event.getEventType().getName()));
+        }
+    }
+
+    private static void roundTrip() throws Exception {
+        MemStorage storage = new MemStorage();
+        String aliceId = UUID.randomUUID().toString();
+        String bobId = UUID.randomUUID().toString();
+        try (CryptoDb alice = new CryptoDb(aliceId, storage);
+             CryptoDb bob = new CryptoDb(bobId, storage)) {
+            PreKey[] aliceKeys = alice.newPreKeys(0, 1);
+
+            byte[] cipher = bob.encryptFromPreKeys(aliceId, aliceKeys[0], "Hello Alice!".getBytes());
+            alice.decrypt(bobId, cipher);
+            cipher = bob.encryptFromSession(aliceId, "Hello Alice!".getBytes());
+            alice.decrypt(bobId, cipher);
+        }
+    }
+}
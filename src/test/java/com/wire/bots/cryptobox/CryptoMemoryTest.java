@@ -6,8 +6,24 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static com.wire.bots.cryptobox.Util.assertDecrypted;
 
@@ -119,6 +135,327 @@ public class CryptoMemoryTest {
         }
     }
 
+    @Test
+    public void testMetrics() throws Exception {
+        CryptoMetrics metrics = new CryptoMetrics();
+        alice.setMetrics(metrics);
+
+        byte[] cipher = bob.encryptFromPreKeys(aliceClientId, aliceKeys[0], "Hello Alice!".getBytes());
+        alice.decrypt(bobClientId, cipher);
+        alice.encryptFromSession(bobClientId, "Hello Bob!".getBytes());
+
+        for (CryptoMetrics.Stage stage : CryptoMetrics.Stage.values()) {
+            Assertions.assertEquals(1, metrics.snapshot(CryptoMetrics.Operation.DECRYPT, stage).getCount(), stage.name());
+            Assertions.assertEquals(1, metrics.snapshot(CryptoMetrics.Operation.ENCRYPT_FROM_SESSION, stage).getCount(), stage.name());
+        }
+        // bob records into the default metrics
+        Assertions.assertEquals(0, metrics.snapshot(CryptoMetrics.Operation.ENCRYPT_FROM_PREKEYS, CryptoMetrics.Stage.TOTAL).getCount());
+    }
+
+    @Test
+    public void testObserver() throws Exception {
+        List<String> calls = new ArrayList<>();
+        alice.setObserver(new CryptoObserver() {
+            @Override
+            public void operationStarted(CryptoMetrics.Operation operation, String sid, int size) {
+                calls.add("started " + operation + " " + size);
+            }
+
+            @Override
+            public void stageEnded(CryptoMetrics.Operation operation, CryptoMetrics.Stage stage, String sid, long nanos) {
+                Assertions.assertEquals(bobClientId, sid);
+                Assertions.assertTrue(nanos >= 0);
+                calls.add(stage.name());
+            }
+
+            @Override
+            public void operationEnded(CryptoMetrics.Operation operation, String sid, int size, long nanos, Throwable error) {
+                calls.add("ended " + operation + " " + size + " " + (error == null ? "ok" : ((CryptoException) error).code));
+            }
+        });
+
+        byte[] cipher = bob.encryptFromPreKeys(aliceClientId, aliceKeys[0], "Hello Alice!".getBytes());
+        alice.decrypt(bobClientId, cipher);
+        Assertions.assertEquals(Arrays.asList("started DECRYPT " + cipher.length, "STORAGE_FETCH", "STAGING_WRITE",
+                "NATIVE_LOAD", "CRYPTO", "NATIVE_SAVE", "READ_BACK", "PERSIST", "ended DECRYPT 12 ok"), calls);
+
+        calls.clear();
+        Assertions.assertThrows(CryptoException.class, () -> alice.decrypt(bobClientId, cipher));
+        Assertions.assertEquals("ended DECRYPT -1 DUPLICATE_MESSAGE", calls.get(calls.size() - 1));
+
+        alice.setObserver(CryptoObserver.NOOP);
+        calls.clear();
+        alice.encryptFromSession(bobClientId, "Hello Bob!".getBytes());
+        Assertions.assertTrue(calls.isEmpty());
+    }
+
+    @Test
+    public void testDecryptPipeline() throws Exception {
+        CryptoDb carol = new CryptoDb(UUID.randomUUID().toString(), storage);
+        Map<String, Integer> fetches = new LinkedHashMap<>();
+        alice.setObserver(new CryptoObserver() {
+            @Override
+            public void stageEnded(CryptoMetrics.Operation operation, CryptoMetrics.Stage stage, String sid, long nanos) {
+                if (stage == CryptoMetrics.Stage.STORAGE_FETCH) {
+                    fetches.merge(sid, 1, Integer::sum);
+                }
+            }
+        });
+
+        List<Runnable> tasks = new ArrayList<>();
+        DecryptPipeline pipeline = new DecryptPipeline(alice, tasks::add, 100, 4);
+        List<String> expected = new ArrayList<>();
+        List<CompletableFuture<DecryptedMessage>> results = new ArrayList<>();
+        byte[] cipher = bob.encryptFromPreKeys(aliceClientId, aliceKeys[0], "Hello 0".getBytes());
+        results.add(pipeline.submit(new EncryptedMessage(bobClientId, cipher)));
+        expected.add("Hello 0");
+        results.add(pipeline.submit(new EncryptedMessage("carol", carol.encryptFromPreKeys(aliceClientId, aliceKeys[1], "Carol".getBytes()))));
+        expected.add("Carol");
+        for (int i = 1; i < 6; i++) {
+            cipher = bob.encryptFromSession(aliceClientId, ("Hello " + i).getBytes());
+            results.add(pipeline.submit(new EncryptedMessage(bobClientId, cipher)));
+            expected.add("Hello " + i);
+        }
+        results.add(pipeline.submit(new EncryptedMessage(bobClientId, cipher)));
+        expected.add("DUPLICATE_MESSAGE");
+
+        Assertions.assertEquals(2, tasks.size());
+        for (int i = 0; i < tasks.size(); i++) {
+            tasks.get(i).run();
+        }
+
+        List<String> actual = new ArrayList<>();
+        for (CompletableFuture<DecryptedMessage> result : results) {
+            DecryptedMessage message = result.getNow(null);
+            actual.add(message.isSuccess() ? new String(message.getPlaintext()) : message.getError().code.name());
+        }
+        Assertions.assertEquals(expected, actual);
+        Assertions.assertEquals(2, (int) fetches.get(bobClientId));
+        Assertions.assertEquals(1, (int) fetches.get("carol"));
+        carol.close();
+    }
+
+    @Test
+    public void testRemoteFingerprints() throws Exception {
+        bob.decrypt(aliceClientId, alice.encryptFromPreKeys(bobClientId, bobKeys[0], "Hello".getBytes()));
+        bob.encryptFromPreKeys("charlie", aliceKeys[1], "Hello".getBytes());
+
+        final Map<String, byte[]> fingerprints = bob.getRemoteFingerprints(Arrays.asList("charlie", aliceClientId, "unknown"));
+        Assertions.assertEquals(Arrays.asList("charlie", aliceClientId), new ArrayList<>(fingerprints.keySet()));
+        Assertions.assertArrayEquals(alice.getLocalFingerprint(), fingerprints.get(aliceClientId));
+        Assertions.assertArrayEquals(alice.getLocalFingerprint(), fingerprints.get("charlie"));
+        Assertions.assertNull(bob.getRemoteFingerprint("unknown"));
+
+        // the session is fetched again once it was used
+        bob.decrypt(aliceClientId, alice.encryptFromSession(bobClientId, "Hello again".getBytes()));
+        Assertions.assertArrayEquals(alice.getLocalFingerprint(), bob.getRemoteFingerprint(aliceClientId));
+    }
+
+    @Test
+    public void testRemoteFingerprintsReleaseRecords() throws Exception {
+        final ReleaseStorage released = new ReleaseStorage();
+        try (CryptoDb carl = new CryptoDb(UUID.randomUUID().toString(), released)) {
+            final PreKey[] carlKeys = carl.newPreKeys(0, 1);
+            assertDecrypted(carl.decrypt(bobClientId, bob.encryptFromPreKeys("carl", carlKeys[0], "Hi".getBytes())), "Hi");
+
+            final Map<String, byte[]> fingerprints = carl.getRemoteFingerprints(Arrays.asList("unknown", bobClientId));
+            Assertions.assertEquals(Collections.singleton(bobClientId), fingerprints.keySet());
+            Assertions.assertEquals(0, released.held.get());
+
+            // the missing session was released, so it is not locked for the next use
+            final long start = System.nanoTime();
+            Assertions.assertNull(carl.encryptFromSession("unknown", "Hi".getBytes()));
+            Assertions.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        }
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        String text = "Hello Alice!";
+        byte[] cipher = bob.encryptFromPreKeys(aliceClientId, aliceKeys[0], text.getBytes());
+        assertDecrypted(alice.decrypt(bobClientId, cipher), text);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        alice.snapshot(out);
+
+        MemStorage other = new MemStorage();
+        String aliceId = UUID.randomUUID().toString();
+        try (CryptoDb restored = CryptoDb.restore(aliceId, other, rootFolder, new ByteArrayInputStream(out.toByteArray()))) {
+            Assertions.assertArrayEquals(alice.getIdentity(), restored.getIdentity());
+            Assertions.assertArrayEquals(alice.getIdentity(), other.fetchIdentity(aliceId));
+            Assertions.assertEquals(8, other.fetchPrekeys(aliceId).length);
+
+            cipher = bob.encryptFromSession(aliceClientId, text.getBytes());
+            assertDecrypted(restored.decrypt(bobClientId, cipher), text);
+        }
+    }
+
+    @Test
+    public void testSnapshotReleasesRecords() throws Exception {
+        final ReleaseStorage released = new ReleaseStorage() {
+            @Override
+            public Iterator<String> listSessions(String id, String prefix) {
+                // a session that is listed, but has no data in the storage
+                return Arrays.asList(bobClientId, "gone").iterator();
+            }
+        };
+        try (CryptoDb carl = new CryptoDb(UUID.randomUUID().toString(), released)) {
+            final PreKey[] carlKeys = carl.newPreKeys(0, 1);
+            assertDecrypted(carl.decrypt(bobClientId, bob.encryptFromPreKeys("carl", carlKeys[0], "Hi".getBytes())), "Hi");
+
+            carl.snapshot(new ByteArrayOutputStream());
+            Assertions.assertEquals(0, released.held.get());
+        }
+    }
+
+    @Test
+    public void testFanOut() throws Exception {
+        List<CryptoDb> peers = new ArrayList<>();
+        List<String> sids = new ArrayList<>();
+        PreKey[] keys = alice.newPreKeys(8, 20);
+        for (PreKey key : keys) {
+            String peerId = UUID.randomUUID().toString();
+            CryptoDb peer = new CryptoDb(peerId, storage);
+            alice.decrypt(peerId, peer.encryptFromPreKeys(aliceClientId, key, "Hello Alice!".getBytes()));
+            peers.add(peer);
+            sids.add(peerId);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        alice.setExecutor(executor);
+        alice.setConcurrency(3);
+        try {
+            List<String> recipients = new ArrayList<>(sids);
+            recipients.add(2, "unknown");
+            recipients.add(sids.get(0));
+            String text = "Hello everybody!";
+            Map<String, byte[]> ciphers = alice.encryptFromSessions(recipients, text.getBytes());
+
+            Assertions.assertEquals(sids, new ArrayList<>(ciphers.keySet()));
+
+            List<String> listed = new ArrayList<>();
+            alice.listSessions().forEachRemaining(listed::add);
+            Assertions.assertEquals(new TreeSet<>(sids), new TreeSet<>(listed));
+            Iterator<String> it = alice.listSessions(sids.get(0));
+            Assertions.assertEquals(sids.get(0), it.next());
+            Assertions.assertFalse(it.hasNext());
+            for (int i = 0; i < peers.size(); i++) {
+                assertDecrypted(peers.get(i).decrypt(aliceClientId, ciphers.get(sids.get(i))), text);
+            }
+            Assertions.assertTrue(alice.encryptFromSessions(Arrays.asList("unknown", "unknown"), text.getBytes()).isEmpty());
+        } finally {
+            executor.shutdown();
+            for (CryptoDb peer : peers) {
+                peer.close();
+            }
+        }
+    }
+
+    @Test
+    public void testBulkPreKeys() throws Exception {
+        List<CryptoDb> peers = new ArrayList<>();
+        Map<String, PreKey> preKeys = new LinkedHashMap<>();
+        for (int i = 0; i < 10; i++) {
+            String peerId = UUID.randomUUID().toString();
+            CryptoDb peer = new CryptoDb(peerId, storage);
+            preKeys.put(peerId, peer.newPreKeys(0, 1)[0]);
+            peers.add(peer);
+        }
+
+        try {
+            // an invalid prekey fails the whole batch
+            Map<String, PreKey> invalid = new LinkedHashMap<>(preKeys);
+            invalid.put("invalid", new PreKey(1, new byte[]{1, 2, 3}));
+            Assertions.assertThrows(CryptoException.class, () -> alice.encryptFromPreKeys(invalid, "Hello!".getBytes()));
+            for (String sid : preKeys.keySet()) {
+                Assertions.assertNull(alice.encryptFromSession(sid, "Hello!".getBytes()));
+            }
+            invalid.put("invalid", new PreKey(1, null));
+            Assertions.assertThrows(IllegalArgumentException.class, () -> alice.encryptFromPreKeys(invalid, "Hello!".getBytes()));
+
+            String text = "Hello everybody!";
+            Map<String, byte[]> ciphers = alice.encryptFromPreKeys(preKeys, text.getBytes());
+            Assertions.assertEquals(new ArrayList<>(preKeys.keySet()), new ArrayList<>(ciphers.keySet()));
+            int i = 0;
+            for (String sid : preKeys.keySet()) {
+                assertDecrypted(peers.get(i++).decrypt(aliceClientId, ciphers.get(sid)), text);
+            }
+        } finally {
+            for (CryptoDb peer : peers) {
+                peer.close();
+            }
+        }
+    }
+
+    @Test
+    public void testReplayCache() throws Exception {
+        String text = "Hello Alice!";
+        byte[] cipher = bob.encryptFromPreKeys(aliceClientId, aliceKeys[0], text.getBytes());
+        byte[] duplicate = bob.encryptFromSession(aliceClientId, text.getBytes());
+        alice.decrypt(bobClientId, cipher);
+
+        alice.enableReplayCache(100, 1, TimeUnit.MINUTES, true);
+        CryptoMetrics metrics = new CryptoMetrics();
+        alice.setMetrics(metrics);
+
+        assertDecrypted(alice.decrypt(bobClientId, duplicate), text);
+        assertDecrypted(alice.decrypt(bobClientId, duplicate), text);
+        assertDecrypted(alice.decrypt(bobClientId, duplicate), text);
+        Assertions.assertEquals(2, alice.getReplayCacheHits());
+        Assertions.assertEquals(1, metrics.snapshot(CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Stage.TOTAL).getCount());
+
+        // without the plaintext, redeliveries are reported as duplicates
+        alice.enableReplayCache(100, 1, TimeUnit.MINUTES, false);
+        cipher = bob.encryptFromSession(aliceClientId, text.getBytes());
+        assertDecrypted(alice.decrypt(bobClientId, cipher), text);
+        for (int i = 0; i < 2; i++) {
+            byte[] redelivered = cipher;
+            CryptoException e = Assertions.assertThrows(CryptoException.class, () -> alice.decrypt(bobClientId, redelivered));
+            Assertions.assertEquals(CryptoException.Code.DUPLICATE_MESSAGE, e.code);
+        }
+        Assertions.assertEquals(2, metrics.snapshot(CryptoMetrics.Operation.DECRYPT, CryptoMetrics.Stage.TOTAL).getCount());
+    }
+
+    @Test
+    public void testReplayCacheAfterFailedPersist() throws Exception {
+        final AtomicBoolean fail = new AtomicBoolean();
+        final MemStorage failing = new MemStorage() {
+            @Override
+            public IRecord fetchSession(String id, String sid) {
+                final IRecord record = super.fetchSession(id, sid);
+                return new IRecord() {
+                    @Override
+                    public byte[] getData() {
+                        return record.getData();
+                    }
+
+                    @Override
+                    public void persist(byte[] data) {
+                        record.persist(data);
+                        if (fail.getAndSet(false)) {
+                            throw new IllegalStateException("storage down");
+                        }
+                    }
+                };
+            }
+        };
+        try (CryptoDb carl = new CryptoDb(UUID.randomUUID().toString(), failing)) {
+            final PreKey[] carlKeys = carl.newPreKeys(0, 1);
+            carl.enableReplayCache(100, 1, TimeUnit.MINUTES, true);
+            final byte[] cipher = bob.encryptFromPreKeys("carl", carlKeys[0], "Hello Carl!".getBytes());
+
+            fail.set(true);
+            Assertions.assertThrows(IllegalStateException.class, () -> carl.decrypt(bobClientId, cipher));
+            // the message was not remembered, as the storage did not take the session
+            try {
+                carl.decrypt(bobClientId, cipher);
+            } catch (CryptoException ignored) {
+                // the local copy of the session has seen the message
+            }
+            Assertions.assertEquals(0, carl.getReplayCacheHits());
+        }
+    }
+
     @Test
     public void testIdentity() throws Exception {
         final String carlId = UUID.randomUUID().toString();
@@ -162,4 +499,29 @@ public class CryptoMemoryTest {
         carl.close();
         dave.close();
     }
+
+    /**
+     * Counts the session records fetched and not persisted yet.
+     */
+    private static class ReleaseStorage extends MemStorage {
+        final AtomicInteger held = new AtomicInteger();
+
+        @Override
+        public IRecord fetchSession(String id, String sid) {
+            final IRecord record = super.fetchSession(id, sid);
+            held.incrementAndGet();
+            return new IRecord() {
+                @Override
+                public byte[] getData() {
+                    return record.getData();
+                }
+
+                @Override
+                public void persist(byte[] data) {
+                    held.decrementAndGet();
+                    record.persist(data);
+                }
+            };
+        }
+    }
 }
@@ -0,0 +1,113 @@
+package com.wire.bots.cryptobox;
+
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+
+public class CryptoStreamTest {
+    private String rootFolder;
+    private CryptoBox alice;
+    private CryptoBox bob;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        rootFolder = "cryptobox-test-data-" + UUID.randomUUID();
+        alice = CryptoBox.open(rootFolder + "/alice");
+        bob = CryptoBox.open(rootFolder + "/bob");
+
+        PreKey[] keys = bob.newPreKeys(0, 1);
+        bob.decrypt("alice", alice.encryptFromPreKeys("bob", keys[0], "Hello Bob!".getBytes()));
+    }
+
+    @AfterEach
+    public void clean() throws IOException {
+        alice.close();
+        bob.close();
+        Util.deleteDir(rootFolder);
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        byte[] payload = random(3 * CryptoStream.CHUNK_SIZE + 123);
+
+        ByteArrayOutputStream cipher = new ByteArrayOutputStream();
+        Map<String, byte[]> envelopes = CryptoStream.encrypt(alice, Arrays.asList("bob", "carl"),
+                new ByteArrayInputStream(payload), cipher);
+        Assertions.assertEquals(1, envelopes.size());
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        CryptoStream.decrypt(bob, "alice", envelopes.get("bob"), Channels.newChannel(new ByteArrayInputStream(cipher.toByteArray())),
+                Channels.newChannel(plain));
+        Assertions.assertArrayEquals(payload, plain.toByteArray());
+    }
+
+    @Test
+    public void testChunkBoundaries() throws Exception {
+        byte[] key = random(32);
+        for (int size : new int[]{0, 1, 15, 16, 17, 64}) {
+            byte[] payload = random(size);
+            ByteArrayOutputStream cipher = new ByteArrayOutputStream();
+            CryptoStream.encrypt(key, new ByteArrayInputStream(payload), cipher, 16);
+
+            ByteArrayOutputStream plain = new ByteArrayOutputStream();
+            CryptoStream.decrypt(key, new ByteArrayInputStream(cipher.toByteArray()), plain);
+            Assertions.assertArrayEquals(payload, plain.toByteArray(), "size " + size);
+        }
+    }
+
+    @Test
+    public void testRetryWithKey() throws Exception {
+        byte[] payload = random(2 * CryptoStream.CHUNK_SIZE + 7);
+        ByteArrayOutputStream cipher = new ByteArrayOutputStream();
+        byte[] envelope = CryptoStream.encrypt(alice, Arrays.asList("bob"), new ByteArrayInputStream(payload), cipher)
+                .get("bob");
+
+        // the envelope is used up, but the key survives a truncated stream
+        byte[] key = CryptoStream.openEnvelope(bob, "alice", envelope);
+        byte[] truncated = Arrays.copyOf(cipher.toByteArray(), CryptoStream.CHUNK_SIZE);
+        Assertions.assertThrows(CryptoException.class,
+                () -> CryptoStream.decrypt(key, new ByteArrayInputStream(truncated), new ByteArrayOutputStream()));
+        Assertions.assertThrows(CryptoException.class, () -> CryptoStream.openEnvelope(bob, "alice", envelope));
+
+        ByteArrayOutputStream plain = new ByteArrayOutputStream();
+        CryptoStream.decrypt(key, new ByteArrayInputStream(cipher.toByteArray()), plain);
+        Assertions.assertArrayEquals(payload, plain.toByteArray());
+    }
+
+    @Test
+    public void testTamperingIsDetected() throws Exception {
+        byte[] key = random(32);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        CryptoStream.encrypt(key, new ByteArrayInputStream(random(100)), out, 16);
+        byte[] cipher = out.toByteArray();
+
+        byte[] flipped = cipher.clone();
+        flipped[20] ^= 1;
+        CryptoException e = Assertions.assertThrows(CryptoException.class,
+                () -> CryptoStream.decrypt(key, new ByteArrayInputStream(flipped), new ByteArrayOutputStream()));
+        Assertions.assertEquals(CryptoException.Code.INVALID_SIGNATURE, e.code);
+
+        // cut off at a chunk boundary: 8 bytes header, 37 bytes per full chunk
+        byte[] truncated = Arrays.copyOf(cipher, 8 + 2 * 37);
+        e = Assertions.assertThrows(CryptoException.class,
+                () -> CryptoStream.decrypt(key, new ByteArrayInputStream(truncated), new ByteArrayOutputStream()));
+        Assertions.assertEquals(CryptoException.Code.INVALID_SIGNATURE, e.code);
+    }
+
+    private static byte[] random(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+}
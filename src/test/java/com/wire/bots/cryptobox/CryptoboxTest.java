@@ -6,11 +6,28 @@ import org.junit.jupiter.api.Assertions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
 import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
@@ -102,6 +119,29 @@ public class CryptoboxTest {
         Assertions.assertThrows(IllegalArgumentException.class, () -> CryptoBox.isPrekey(new PreKey(maxEphemeralPrekeyId + 2, keys[0].data)));
     }
 
+    @Test
+    public void testValidatePreKeys() throws Exception {
+        PreKey[] keys = bob.newPreKeys(0, 600);
+        keys[7] = new PreKey(7, new byte[]{1, 2, 3});
+        keys[300] = new PreKey(-1, keys[300].data);
+        keys[599] = null;
+
+        PreKeyValidation validation = CryptoBox.validatePreKeys(keys);
+        Assertions.assertEquals(keys.length, validation.size());
+        Assertions.assertFalse(validation.isAllValid());
+        for (int i = 0; i < keys.length; i++) {
+            if (i == 7 || i == 300 || i == 599) {
+                Assertions.assertFalse(validation.isValid(i));
+                Assertions.assertEquals(CryptoException.Code.DECODE_ERROR, validation.getError(i));
+                Assertions.assertNull(validation.getFingerprint(i));
+            } else {
+                Assertions.assertTrue(validation.isValid(i));
+                Assertions.assertNull(validation.getError(i));
+                Assertions.assertArrayEquals(CryptoBox.getFingerprintFromPrekey(keys[i]), validation.getFingerprint(i));
+            }
+        }
+    }
+
     @Test
     public void testAliceToBob() throws Exception {
         String text = "Hello Bob, This is Alice!";
@@ -153,6 +193,266 @@ public class CryptoboxTest {
         }
     }
 
+    @Test
+    public void testSessionIndex() throws Exception {
+        String text = "Hello Bob, This is Alice!";
+
+        byte[] cipher = alice.encryptFromPreKeys(bobId, bobKeys[0], text.getBytes());
+        bob.decrypt(aliceId, cipher);
+
+        // the index is rebuilt from the sessions directory
+        alice.close();
+        alice = CryptoBox.open(String.format("%s/%s", rootFolder, aliceId));
+        Assertions.assertTrue(alice.doesSessionExist(bobId));
+
+        cipher = alice.encryptFromSession(bobId, text.getBytes());
+        assertDecrypted(bob.decrypt(aliceId, cipher), text);
+
+        Assertions.assertFalse(alice.doesSessionExist(aliceId));
+        Assertions.assertNull(alice.encryptFromSession(aliceId, text.getBytes()));
+    }
+
+    @Test
+    public void testArchiveIdleSessions() throws Exception {
+        String text = "Hello Bob, This is Alice!";
+        for (int i = 0; i < 3; i++) {
+            byte[] cipher = alice.encryptFromPreKeys(bobId + i, bobKeys[i], text.getBytes());
+            bob.decrypt(aliceId + i, cipher);
+        }
+
+        SessionTiers tiers = alice.archiveIdleSessions(1, TimeUnit.DAYS);
+        Assertions.assertEquals(3, tiers.getLiveSessions());
+        Assertions.assertEquals(0, tiers.getArchivedSessions());
+
+        age(String.format("%s/%s/sessions", rootFolder, aliceId), 2);
+        tiers = alice.archiveIdleSessions(1, TimeUnit.DAYS);
+        Assertions.assertEquals(0, tiers.getLiveSessions());
+        Assertions.assertEquals(3, tiers.getArchivedSessions());
+        Assertions.assertTrue(tiers.getArchivedBytes() > 0);
+
+        // the archive survives reopening and the sessions are restored on the first use
+        alice.close();
+        alice = CryptoBox.open(String.format("%s/%s", rootFolder, aliceId));
+        Assertions.assertTrue(alice.doesSessionExist(bobId + 1));
+        byte[] cipher = alice.encryptFromSession(bobId + 1, text.getBytes());
+        assertDecrypted(bob.decrypt(aliceId + 1, cipher), text);
+
+        tiers = alice.getSessionTiers();
+        Assertions.assertEquals(1, tiers.getLiveSessions());
+        Assertions.assertEquals(2, tiers.getArchivedSessions());
+
+        tiers = alice.archiveIdleSessions(1, TimeUnit.DAYS);
+        Assertions.assertEquals(1, tiers.getLiveSessions());
+        Assertions.assertEquals(2, tiers.getArchivedSessions());
+        cipher = alice.encryptFromSession(bobId + 2, text.getBytes());
+        assertDecrypted(bob.decrypt(aliceId + 2, cipher), text);
+    }
+
+    @Test
+    public void testArchiveWhileInUse() throws Exception {
+        String text = "Hello Bob, This is Alice!";
+        byte[] first = alice.encryptFromPreKeys(bobId, bobKeys[0], text.getBytes());
+        bob.decrypt(aliceId, first);
+
+        // every file is idle at once, so the sessions are archived while they are saved
+        AtomicBoolean running = new AtomicBoolean(true);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        Future<?> archiving = executor.submit(() -> {
+            while (running.get()) {
+                alice.archiveIdleSessions(0, TimeUnit.MILLISECONDS);
+            }
+            return null;
+        });
+        try {
+            for (int i = 0; i < 500; i++) {
+                byte[] cipher = alice.encryptFromSession(bobId, (text + i).getBytes());
+                Assertions.assertNotNull(cipher);
+                assertDecrypted(bob.decrypt(aliceId, cipher), text + i);
+                cipher = bob.encryptFromSession(aliceId, (text + i).getBytes());
+                assertDecrypted(alice.decrypt(bobId, cipher), text + i);
+            }
+        } finally {
+            running.set(false);
+            executor.shutdown();
+        }
+        archiving.get();
+    }
+
+    private static void age(String dir, int days) throws IOException {
+        FileTime time = FileTime.fromMillis(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(days));
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(Paths.get(dir))) {
+            for (Path file : files) {
+                Files.setLastModifiedTime(file, time);
+            }
+        }
+    }
+
+    @Test
+    public void testListSessions() throws Exception {
+        String text = "Hello Bob, This is Alice!";
+        String[] sids = {"user2-client1", "user1-client2", "user1-client1", "user10-client1"};
+        for (int i = 0; i < sids.length; i++) {
+            alice.encryptFromPreKeys(sids[i], bobKeys[i], text.getBytes());
+        }
+
+        Assertions.assertEquals(Arrays.asList("user1-client1", "user1-client2"), toList(alice.listSessions("user1-")));
+        Assertions.assertEquals(Arrays.asList("user1-client1", "user1-client2", "user10-client1", "user2-client1"),
+                toList(alice.listSessions()));
+        Assertions.assertFalse(alice.listSessions("user3").hasNext());
+    }
+
+    private static List<String> toList(Iterator<String> it) {
+        List<String> ret = new ArrayList<>();
+        it.forEachRemaining(ret::add);
+        return ret;
+    }
+
+    @Test
+    public void testSnapshot() throws Exception {
+        String text = "Hello Bob, This is Alice!";
+        alice.encryptFromPreKeys(bobId, bobKeys[0], text.getBytes());
+        age(String.format("%s/%s/sessions", rootFolder, aliceId), 2);
+        alice.archiveIdleSessions(1, TimeUnit.DAYS);
+        alice.encryptFromPreKeys(bobId + 1, bobKeys[1], text.getBytes());
+        byte[] cipher = bob.encryptFromPreKeys(aliceId, aliceKeys[0], text.getBytes());
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        alice.snapshot(out);
+        byte[] snapshot = out.toByteArray();
+
+        String restoredPath = String.format("%s/%s-restored", rootFolder, aliceId);
+        try (CryptoBox restored = CryptoBox.restore(restoredPath, new ByteArrayInputStream(snapshot))) {
+            Assertions.assertArrayEquals(alice.getLocalFingerprint(), restored.getLocalFingerprint());
+            Assertions.assertTrue(restored.doesSessionExist(bobId));
+            Assertions.assertTrue(restored.doesSessionExist(bobId + 1));
+            assertDecrypted(restored.decrypt(bobId, cipher), text);
+        }
+
+        // a restored box is not overwritten and a corrupt snapshot is not restored
+        Assertions.assertThrows(CryptoException.class,
+                () -> CryptoBox.restore(restoredPath, new ByteArrayInputStream(snapshot)));
+        snapshot[snapshot.length / 2] ^= 1;
+        String corruptPath = String.format("%s/%s-corrupt", rootFolder, aliceId);
+        Assertions.assertThrows(CryptoException.class,
+                () -> CryptoBox.restore(corruptPath, new ByteArrayInputStream(snapshot)));
+        Assertions.assertFalse(new File(corruptPath).exists());
+    }
+
+    @Test
+    public void testSavePolicy() throws Exception {
+        bob.decrypt(aliceId, alice.encryptFromPreKeys(bobId, bobKeys[0], "Hello".getBytes()));
+        final Path file = Paths.get(rootFolder, bobId, "sessions", aliceId);
+        final byte[] saved = Files.readAllBytes(file);
+
+        final List<byte[]> ciphers = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            ciphers.add(alice.encryptFromSession(bobId, ("Hello Bob " + i).getBytes()));
+        }
+
+        bob.setSavePolicy(SavePolicy.everyOperations(10));
+        NativeStats.setEnabled(true);
+        try {
+            NativeStats.reset();
+            for (int i = 0; i < 25; i++) {
+                assertDecrypted(bob.decrypt(aliceId, ciphers.get(i)), "Hello Bob " + i);
+                if (i == 5) {
+                    // not saved yet, a crash now would lose these operations
+                    Assertions.assertArrayEquals(saved, Files.readAllBytes(file));
+                }
+            }
+            NativeStats stats = NativeStats.snapshot();
+            Assertions.assertEquals(1, stats.getCalls(NativeStats.EntryPoint.SESSION_LOAD));
+            Assertions.assertEquals(2, stats.getCalls(NativeStats.EntryPoint.SESSION_SAVE));
+
+            bob.flush();
+            Assertions.assertEquals(3, NativeStats.snapshot().getCalls(NativeStats.EntryPoint.SESSION_SAVE));
+            bob.flush();
+            Assertions.assertEquals(3, NativeStats.snapshot().getCalls(NativeStats.EntryPoint.SESSION_SAVE));
+
+            // one open session: every other session evicts and saves it
+            bob.encryptFromPreKeys("charlie", aliceKeys[1], "Hello".getBytes());
+            bob.setSavePolicy(SavePolicy.onEviction().withMaxOpenSessions(1));
+            NativeStats.reset();
+            for (int i = 0; i < 3; i++) {
+                Assertions.assertNotNull(bob.encryptFromSession(aliceId, "Hello Alice".getBytes()));
+                Assertions.assertNotNull(bob.encryptFromSession("charlie", "Hello Charlie".getBytes()));
+            }
+            stats = NativeStats.snapshot();
+            Assertions.assertEquals(6, stats.getCalls(NativeStats.EntryPoint.SESSION_LOAD));
+            Assertions.assertEquals(5, stats.getCalls(NativeStats.EntryPoint.SESSION_SAVE));
+
+            final byte[] cipher = alice.encryptFromSession(bobId, "Hello".getBytes());
+            bob.setSavePolicy(SavePolicy.after(50, TimeUnit.MILLISECONDS));
+            NativeStats.reset();
+            assertDecrypted(bob.decrypt(aliceId, cipher), "Hello");
+            Assertions.assertEquals(0, NativeStats.snapshot().getCalls(NativeStats.EntryPoint.SESSION_SAVE));
+            Thread.sleep(60);
+            bob.encryptFromSession("charlie", "Hello Charlie".getBytes());
+            Assertions.assertEquals(1, NativeStats.snapshot().getCalls(NativeStats.EntryPoint.SESSION_SAVE));
+        } finally {
+            NativeStats.setEnabled(false);
+        }
+
+        // an invalid prekey neither saves nor drops the open session
+        assertDecrypted(bob.decrypt(aliceId, alice.encryptFromSession(bobId, "Unsaved".getBytes())), "Unsaved");
+        final byte[] before = Files.readAllBytes(file);
+        final Map<String, PreKey> invalid = new LinkedHashMap<>();
+        invalid.put(aliceId, new PreKey(1, new byte[]{1, 2, 3}));
+        Assertions.assertThrows(CryptoException.class, () -> bob.encryptFromPreKeys(invalid, "Hello".getBytes()));
+        Assertions.assertArrayEquals(before, Files.readAllBytes(file));
+        bob.flush();
+        Assertions.assertFalse(Arrays.equals(before, Files.readAllBytes(file)));
+
+        // closing saves the open sessions
+        assertDecrypted(bob.decrypt(aliceId, alice.encryptFromSession(bobId, "Bye".getBytes())), "Bye");
+        bob.close();
+        bob = CryptoBox.open(String.format("%s/%s", rootFolder, bobId));
+        assertDecrypted(bob.decrypt(aliceId, alice.encryptFromSession(bobId, "Hello again".getBytes())), "Hello again");
+    }
+
+    @Test
+    public void testSavePolicyConcurrent() throws Exception {
+        bob.decrypt(aliceId, alice.encryptFromPreKeys(bobId, bobKeys[0], "Hello".getBytes()));
+        assertDecrypted(alice.decrypt("charlie", bob.encryptFromPreKeys("charlie", aliceKeys[1], "Hello".getBytes())), "Hello");
+
+        // one open session for two sessions used at once: a session in use is never evicted
+        bob.setSavePolicy(SavePolicy.onEviction().withMaxOpenSessions(1));
+        final Map<String, List<byte[]>> ciphers = new LinkedHashMap<>();
+        ciphers.put(aliceId, Collections.synchronizedList(new ArrayList<>()));
+        ciphers.put("charlie", Collections.synchronizedList(new ArrayList<>()));
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 50; i++) {
+                        final String sid = (i + thread) % 2 == 0 ? aliceId : "charlie";
+                        ciphers.get(sid).add(bob.encryptFromSession(sid, ("Hello " + i).getBytes()));
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // no session went back to an older save, which would repeat its messages
+        bob.close();
+        bob = CryptoBox.open(String.format("%s/%s", rootFolder, bobId));
+        for (Map.Entry<String, List<byte[]>> entry : ciphers.entrySet()) {
+            entry.getValue().add(bob.encryptFromSession(entry.getKey(), "Hello 50".getBytes()));
+            final String sid = entry.getKey().equals(aliceId) ? bobId : "charlie";
+            Assertions.assertEquals(101, entry.getValue().size());
+            for (byte[] cipher : entry.getValue()) {
+                Assertions.assertNotNull(alice.decrypt(sid, cipher));
+            }
+        }
+    }
+
     @Test
     public void testMassiveSessions() throws Exception {
         String text = "Hello Bob, This is Alice!";
@@ -271,5 +571,43 @@ public class CryptoboxTest {
         String hexify = hexify(localFingerprint);
 
         System.out.println(hexify);
+
+        Assertions.assertArrayEquals(localFingerprint, alice.getLocalFingerprint());
+        Assertions.assertArrayEquals(identity, alice.getIdentity());
+        // cached values are copied, so the cache cannot be modified
+        localFingerprint[0] = 0;
+        Assertions.assertNotEquals(0, alice.getLocalFingerprint()[0]);
+    }
+
+    @Test
+    public void testRemoteFingerprints() throws Exception {
+        bob.decrypt(aliceId, alice.encryptFromPreKeys(bobId, bobKeys[0], "Hello".getBytes()));
+        final PreKey[] charlieKeys;
+        try (CryptoBox charlie = CryptoBox.open(String.format("%s/charlie", rootFolder))) {
+            charlieKeys = charlie.newPreKeys(0, 1);
+            bob.encryptFromPreKeys("charlie", charlieKeys[0], "Hello".getBytes());
+
+            NativeStats.setEnabled(true);
+            try {
+                NativeStats.reset();
+                Map<String, byte[]> fingerprints = bob.getRemoteFingerprints(Arrays.asList(aliceId, "charlie", "unknown", aliceId));
+                Assertions.assertEquals(Arrays.asList(aliceId, "charlie"), new ArrayList<>(fingerprints.keySet()));
+                Assertions.assertArrayEquals(alice.getLocalFingerprint(), fingerprints.get(aliceId));
+                Assertions.assertArrayEquals(charlie.getLocalFingerprint(), fingerprints.get("charlie"));
+                Assertions.assertEquals(2, NativeStats.snapshot().getCalls(NativeStats.EntryPoint.REMOTE_FINGERPRINT));
+
+                // cached until the session changes
+                bob.decrypt(aliceId, alice.encryptFromSession(bobId, "Hello again".getBytes()));
+                fingerprints = bob.getRemoteFingerprints(Arrays.asList(aliceId, "charlie"));
+                Assertions.assertArrayEquals(alice.getLocalFingerprint(), fingerprints.get(aliceId));
+                Assertions.assertEquals(2, NativeStats.snapshot().getCalls(NativeStats.EntryPoint.REMOTE_FINGERPRINT));
+
+                bob.encryptFromPreKeys("charlie", aliceKeys[1], "Hello".getBytes());
+                Assertions.assertArrayEquals(alice.getLocalFingerprint(), bob.getRemoteFingerprint("charlie"));
+                Assertions.assertEquals(3, NativeStats.snapshot().getCalls(NativeStats.EntryPoint.REMOTE_FINGERPRINT));
+            } finally {
+                NativeStats.setEnabled(false);
+            }
+        }
     }
 }
@@ -0,0 +1,89 @@
+package com.wire.bots.cryptobox;
+
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.UUID;
+
+public class FileJournalTest {
+    private String rootFolder;
+    private Path dir;
+
+    @BeforeEach
+    public void setUp() {
+        rootFolder = "cryptobox-test-data-" + UUID.randomUUID();
+        dir = Paths.get(rootFolder, "journal");
+    }
+
+    @AfterEach
+    public void clean() throws Exception {
+        Util.deleteDir(rootFolder);
+    }
+
+    @Test
+    public void testCursor() throws Exception {
+        try (FileJournal journal = new FileJournal(dir, false)) {
+            Assertions.assertEquals(1, journal.append(Change.Type.IDENTITY, "bot", "local", new byte[]{1}));
+            Assertions.assertEquals(2, journal.append(Change.Type.SESSION, "bot", "peer", new byte[]{2, 3}));
+            Assertions.assertEquals(3, journal.append(Change.Type.PURGE, "bot", null, null));
+
+            List<Change> changes = journal.read("replica", 2);
+            Assertions.assertEquals(2, changes.size());
+            Assertions.assertEquals("peer", changes.get(1).getKey());
+            Assertions.assertArrayEquals(new byte[]{2, 3}, changes.get(1).getData());
+            journal.commit("replica", changes.get(1));
+        }
+
+        // a torn record at the end is cut off when the journal is opened again
+        try (RandomAccessFile file = new RandomAccessFile(dir.resolve("journal.log").toFile(), "rw")) {
+            file.setLength(file.length() - 3);
+        }
+        try (FileJournal journal = new FileJournal(dir, false)) {
+            Assertions.assertEquals(2, journal.getSequence());
+            Assertions.assertEquals(2, journal.getPosition("replica"));
+            Assertions.assertTrue(journal.read("replica", 10).isEmpty());
+
+            Assertions.assertEquals(3, journal.append(Change.Type.PREKEY, "bot", "7", new byte[]{4}));
+            List<Change> changes = journal.read("replica", 10);
+            Assertions.assertEquals(1, changes.size());
+            Assertions.assertEquals(Change.Type.PREKEY, changes.get(0).getType());
+            Assertions.assertEquals(3, journal.read("other", 10).size());
+        }
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        String aliceId = UUID.randomUUID().toString();
+        String bobId = UUID.randomUUID().toString();
+        Path replica = Paths.get(rootFolder, "replica");
+        try (FileJournal journal = new FileJournal(dir, true);
+             CryptoDb alice = new CryptoDb(aliceId, new MemStorage(), rootFolder, journal);
+             CryptoDb bob = new CryptoDb(bobId, new MemStorage(), rootFolder)) {
+            PreKey[] keys = alice.newPreKeys(0, 2);
+            byte[] cipher = bob.encryptFromPreKeys(aliceId, keys[0], "Hello Alice!".getBytes());
+            Util.assertDecrypted(alice.decrypt(bobId, cipher), "Hello Alice!");
+            Assertions.assertEquals(4, JournalReplay.replay(journal, "replica", replica));
+
+            cipher = bob.encryptFromSession(aliceId, "Hello again!".getBytes());
+            Util.assertDecrypted(alice.decrypt(bobId, cipher), "Hello again!");
+            Assertions.assertEquals(1, JournalReplay.replay(journal, "replica", replica));
+            Assertions.assertEquals(0, JournalReplay.replay(journal, "replica", replica));
+
+            Assertions.assertArrayEquals(Files.readAllBytes(Paths.get(rootFolder, aliceId, "sessions", bobId)),
+                    Files.readAllBytes(replica.resolve(aliceId).resolve("sessions").resolve(bobId)));
+            try (CryptoBox standby = CryptoBox.open(replica.resolve(aliceId).toString())) {
+                Assertions.assertArrayEquals(alice.getIdentity(), standby.getIdentity());
+                cipher = bob.encryptFromSession(aliceId, "Hello standby!".getBytes());
+                Util.assertDecrypted(standby.decrypt(bobId, cipher), "Hello standby!");
+            }
+        }
+    }
+}
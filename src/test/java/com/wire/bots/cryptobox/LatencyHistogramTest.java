@@ -0,0 +1,95 @@
+package com.wire.bots.cryptobox;
+
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testEmpty() {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+
+        Assertions.assertEquals(0, snapshot.getCount());
+        Assertions.assertEquals(0, snapshot.getMax());
+        Assertions.assertEquals(0, snapshot.getValueAtPercentile(99.9));
+    }
+
+    @Test
+    public void testBucketsCoverAllValues() {
+        // every value must fall into a bucket whose upper bound is >= the value and within the precision
+        for (long value = 0; value < 1L << 40; value = value * 3 / 2 + 1) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            long highest = LatencyHistogram.highestValueIn(bucket);
+            if (value < 1L << 38) {
+                Assertions.assertTrue(highest >= value, "value " + value);
+                Assertions.assertTrue(highest - value <= value / 16 + 1, "value " + value);
+            }
+            if (bucket > 0) {
+                Assertions.assertTrue(LatencyHistogram.highestValueIn(bucket - 1) < value, "value " + value);
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assertions.assertEquals(1000, snapshot.getCount());
+        Assertions.assertEquals(1_000_000, snapshot.getMax());
+        Assertions.assertEquals(500_500, snapshot.getMean(), 0.1);
+        assertWithinPrecision(500_000, snapshot.getValueAtPercentile(50));
+        assertWithinPrecision(990_000, snapshot.getValueAtPercentile(99));
+        Assertions.assertEquals(1_000_000, snapshot.getValueAtPercentile(100));
+    }
+
+    @Test
+    public void testMergesThreads() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final int threads = 8;
+        final int count = 10_000;
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                for (int i = 0; i < count; i++) {
+                    histogram.record(i);
+                }
+            });
+        }
+        executor.shutdown();
+        Assertions.assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assertions.assertEquals(threads * count, snapshot.getCount());
+        Assertions.assertEquals(count - 1, snapshot.getMax());
+    }
+
+    @Test
+    public void testShortLivedThreads() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        for (int t = 0; t < 200; t++) {
+            Thread thread = new Thread(() -> histogram.record(1_000));
+            thread.start();
+            thread.join();
+        }
+
+        // every thread is counted, in a fixed number of stripes
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assertions.assertEquals(200, snapshot.getCount());
+        Assertions.assertEquals(1_000, snapshot.getMax());
+    }
+
+    private static void assertWithinPrecision(long expected, long actual) {
+        Assertions.assertTrue(actual >= expected && actual - expected <= expected / 16,
+                "expected ~" + expected + " got " + actual);
+    }
+}
@@ -0,0 +1,296 @@
+package com.wire.bots.cryptobox;
+
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Standalone soak and load tool. Simulates a number of bots, each talking to
+ * its own set of peers in conversations, and reports throughput, latency
+ * percentiles, open native handles and RSS while it runs.
+ * <p>
+ * Configured with {@code key=value} arguments, see {@link #DEFAULTS}:
+ * <pre>
+ * java -Djava.library.path=build/lib -cp target/classes:target/test-classes \
+ *     com.wire.bots.cryptobox.LoadGenerator bots=50 peers=20 conversation=5 messageSize=64-4096 writes=0.3 duration=600
+ * </pre>
+ * <ul>
+ * <li>{@code bots}: number of bots, each one a {@link CryptoDb}</li>
+ * <li>{@code peers}: number of peers per bot, each one a {@link CryptoDb} with a session to the bot</li>
+ * <li>{@code conversation}: number of peers a bot sends a message to</li>
+ * <li>{@code messageSize}: message size in bytes, either fixed {@code N} or uniform {@code MIN-MAX}</li>
+ * <li>{@code writes}: fraction of operations where the bot sends a message to a conversation,
+ * the others are messages from a single peer to the bot</li>
+ * <li>{@code threads}: number of worker threads</li>
+ * <li>{@code threadModel}: {@code pool} to pick a random bot for every operation,
+ * {@code bot} to pin every bot to a worker thread</li>
+ * <li>{@code duration}, {@code interval}: run time and report interval in seconds</li>
+ * <li>{@code storage}: class name of the {@link IStorage} to use, with a public no-arg constructor</li>
+ * <li>{@code dir}: directory of the staged boxes, deleted at the end</li>
+ * </ul>
+ * Operations of the same bot are serialized, as a bot and its peers share their sessions.
+ * Run with {@code -Dcryptobox.trackHandles=true} to dump the handles still open
+ * after the run, other than the boxes of the bots and peers themselves.
+ */
+public class LoadGenerator {
+    static final Map<String, String> DEFAULTS = new LinkedHashMap<>();
+
+    static {
+        DEFAULTS.put("bots", "10");
+        DEFAULTS.put("peers", "10");
+        DEFAULTS.put("conversation", "3");
+        DEFAULTS.put("messageSize", "64-1024");
+        DEFAULTS.put("writes", "0.5");
+        DEFAULTS.put("threads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        DEFAULTS.put("threadModel", "pool");
+        DEFAULTS.put("duration", "60");
+        DEFAULTS.put("interval", "5");
+        DEFAULTS.put("storage", MemStorage.class.getName());
+        DEFAULTS.put("dir", "cryptobox-load-" + UUID.randomUUID());
+    }
+
+    private final Map<String, String> config;
+    private final List<Bot> bots = new ArrayList<>();
+    private final LatencyHistogram encrypt = new LatencyHistogram();
+    private final LatencyHistogram decrypt = new LatencyHistogram();
+    private final AtomicLong messages = new AtomicLong();
+    private final AtomicLong errors = new AtomicLong();
+    private final int conversation;
+    private final int minSize;
+    private final int maxSize;
+    private final double writes;
+
+    private volatile boolean running = true;
+
+    LoadGenerator(Map<String, String> config) {
+        this.config = config;
+        this.conversation = Math.min(getInt("conversation"), getInt("peers"));
+        this.writes = Double.parseDouble(config.get("writes"));
+        String[] size = config.get("messageSize").split("-");
+        this.minSize = Integer.parseInt(size[0]);
+        this.maxSize = Integer.parseInt(size[size.length - 1]);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> config = new LinkedHashMap<>(DEFAULTS);
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            if (i < 0 || !DEFAULTS.containsKey(arg.substring(0, i))) {
+                System.err.printf("Unknown argument: %s%nArguments (with defaults): %s%n", arg, DEFAULTS);
+                System.exit(1);
+            }
+            config.put(arg.substring(0, i), arg.substring(i + 1));
+        }
+        System.out.println(config);
+
+        LoadGenerator generator = new LoadGenerator(config);
+        try {
+            generator.setUp();
+            generator.run();
+        } finally {
+            generator.tearDown();
+        }
+    }
+
+    private int getInt(String key) {
+        return Integer.parseInt(config.get(key));
+    }
+
+    void setUp() throws Exception {
+        NativeStats.setEnabled(true);
+        IStorage storage = (IStorage) Class.forName(config.get("storage")).getConstructor().newInstance();
+        String dir = config.get("dir");
+        int peers = getInt("peers");
+
+        long start = System.nanoTime();
+        for (int i = 0; i < getInt("bots"); i++) {
+            Bot bot = new Bot(UUID.randomUUID().toString(), storage, dir);
+            PreKey[] preKeys = bot.box.newPreKeys(0, peers);
+            for (int j = 0; j < peers; j++) {
+                Peer peer = new Peer(UUID.randomUUID().toString(), storage, dir);
+                byte[] cipher = peer.box.encryptFromPreKeys(bot.id, preKeys[j], message());
+                bot.box.decrypt(peer.id, cipher);
+                bot.peers.add(peer);
+            }
+            bots.add(bot);
+        }
+        System.out.printf("Set up %,d bots with %,d peers each in %,d ms%n",
+                bots.size(), peers, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    void run() throws Exception {
+        int threads = getInt("threads");
+        boolean pinned = "bot".equals(config.get("threadModel"));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int t = 0; t < threads; t++) {
+            final List<Bot> own = new ArrayList<>();
+            for (int i = t; i < bots.size(); i += threads) {
+                own.add(bots.get(i));
+            }
+            if (pinned && own.isEmpty()) {
+                break;
+            }
+            executor.execute(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                while (running) {
+                    List<Bot> candidates = pinned ? own : bots;
+                    Bot bot = candidates.get(random.nextInt(candidates.size()));
+                    try {
+                        if (random.nextDouble() < writes) {
+                            bot.send(random);
+                        } else {
+                            bot.receive(random);
+                        }
+                    } catch (Exception e) {
+                        if (errors.getAndIncrement() == 0) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            });
+        }
+
+        long start = System.nanoTime();
+        long end = start + TimeUnit.SECONDS.toNanos(getInt("duration"));
+        long interval = TimeUnit.SECONDS.toMillis(getInt("interval"));
+        long last = start;
+        long lastMessages = 0;
+        while (System.nanoTime() < end) {
+            Thread.sleep(Math.min(interval, TimeUnit.NANOSECONDS.toMillis(end - System.nanoTime()) + 1));
+            long now = System.nanoTime();
+            long count = messages.get();
+            report(now - start, (count - lastMessages) * 1e9 / (now - last));
+            last = now;
+            lastMessages = count;
+        }
+        running = false;
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.MINUTES);
+        for (HandleTracker.Handle handle : HandleTracker.getOpenHandles(getInt("interval"), TimeUnit.SECONDS)) {
+            if (handle.getKind().equals("CryptoSession")) {
+                System.out.println("Leaked: " + handle);
+                for (StackTraceElement element : handle.getStackTrace()) {
+                    System.out.println("\tat " + element);
+                }
+            }
+        }
+
+        System.out.printf("Total: %,d messages, %,d errors%nencrypt: %s%ndecrypt: %s%n%s",
+                messages.get(), errors.get(), encrypt.snapshot(), decrypt.snapshot(), NativeStats.snapshot());
+    }
+
+    private void report(long elapsed, double throughput) {
+        LatencyHistogram.Snapshot enc = encrypt.snapshot();
+        LatencyHistogram.Snapshot dec = decrypt.snapshot();
+        NativeStats stats = NativeStats.snapshot();
+        System.out.printf("%6ds %,10.0f msg/s | encrypt p50=%,dus p99=%,dus p99.9=%,dus | " +
+                        "decrypt p50=%,dus p99=%,dus p99.9=%,dus | boxes=%,d sessions=%,d vecBytes=%,d | " +
+                        "rss=%,d kB | errors=%,d%n",
+                TimeUnit.NANOSECONDS.toSeconds(elapsed), throughput,
+                micros(enc.getValueAtPercentile(50)), micros(enc.getValueAtPercentile(99)), micros(enc.getValueAtPercentile(99.9)),
+                micros(dec.getValueAtPercentile(50)), micros(dec.getValueAtPercentile(99)), micros(dec.getValueAtPercentile(99.9)),
+                stats.getOpenBoxes(), stats.getOpenSessions(), stats.getVecBytes(), rss(), errors.get());
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * The resident set size of this process in kB, or -1 if unknown.
+     */
+    static long rss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+                }
+            }
+        } catch (IOException | NumberFormatException ignored) {
+        }
+        return -1;
+    }
+
+    private byte[] message() {
+        byte[] message = new byte[ThreadLocalRandom.current().nextInt(minSize, maxSize + 1)];
+        ThreadLocalRandom.current().nextBytes(message);
+        return message;
+    }
+
+    void tearDown() throws IOException {
+        running = false;
+        for (Bot bot : bots) {
+            bot.box.close();
+            for (Peer peer : bot.peers) {
+                peer.box.close();
+            }
+        }
+        Path dir = Paths.get(config.get("dir"));
+        if (Files.exists(dir)) {
+            Util.deleteDir(dir.toString());
+        }
+        NativeStats.setEnabled(false);
+    }
+
+    private class Peer {
+        final String id;
+        final CryptoDb box;
+
+        Peer(String id, IStorage storage, String dir) throws IOException, CryptoException {
+            this.id = id;
+            this.box = new CryptoDb(id, storage, dir);
+        }
+    }
+
+    private class Bot {
+        final String id;
+        final CryptoDb box;
+        final List<Peer> peers = new ArrayList<>();
+
+        Bot(String id, IStorage storage, String dir) throws IOException, CryptoException {
+            this.id = id;
+            this.box = new CryptoDb(id, storage, dir);
+        }
+
+        synchronized void send(ThreadLocalRandom random) throws CryptoException {
+            byte[] message = message();
+            int first = random.nextInt(peers.size());
+            for (int i = 0; i < conversation; i++) {
+                Peer peer = peers.get((first + i) % peers.size());
+                long start = System.nanoTime();
+                byte[] cipher = box.encryptFromSession(peer.id, message);
+                encrypt.record(System.nanoTime() - start);
+
+                start = System.nanoTime();
+                peer.box.decrypt(id, cipher);
+                decrypt.record(System.nanoTime() - start);
+                messages.incrementAndGet();
+            }
+        }
+
+        synchronized void receive(ThreadLocalRandom random) throws CryptoException {
+            Peer peer = peers.get(random.nextInt(peers.size()));
+            long start = System.nanoTime();
+            byte[] cipher = peer.box.encryptFromSession(id, message());
+            encrypt.record(System.nanoTime() - start);
+
+            start = System.nanoTime();
+            box.decrypt(peer.id, cipher);
+            decrypt.record(System.nanoTime() - start);
+            messages.incrementAndGet();
+        }
+    }
+}
@@ -2,27 +2,27 @@ package com.wire.bots.cryptobox;
 
 
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.NavigableSet;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 
-public class MemStorage implements IStorage {
+public class MemStorage implements ISessionListing, ILeaseStorage {
     private final ConcurrentHashMap<String, Record> sessions = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, byte[]> identities = new ConcurrentHashMap<>();
     private final ConcurrentHashMap<String, ArrayList<PreKey>> prekeys = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, NavigableSet<String>> index = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, Lease> leases = new ConcurrentHashMap<>();
 
     @Override
     public IRecord fetchSession(String id, String sid) {
         String key = key(id, sid);
-        Record record = sessions.computeIfAbsent(key, k -> null);
-        if (record == null)
-            return new Record(key, null);
-
-        for (int i = 0; i < 1000 && record.locked; i++) {
+        // missing sessions are locked too, until they are persisted
+        Record record = sessions.computeIfAbsent(key, k -> new Record(id, sid, null));
+        for (int i = 0; i < 1000 && !record.lock(); i++) {
             sleep(1);
-            record = sessions.get(key);
         }
-        record.locked = true;
-        //sessions.put(key, record);
-        return new Record(key, record.data);
+        return record;
     }
 
     @Override
@@ -50,9 +50,30 @@ public class MemStorage implements IStorage {
 
     @Override
     public void purge(String id) {
-        sessions.remove(id);
+        sessions.keySet().removeIf(key -> key.startsWith(id + "-"));
         prekeys.remove(id);
         identities.remove(id);
+        index.remove(id);
+    }
+
+    @Override
+    public Iterator<String> listSessions(String id, String prefix) {
+        NavigableSet<String> sids = index.get(id);
+        if (sids == null)
+            return new ArrayList<String>().iterator();
+        return sids.subSet(prefix, prefix + Character.MAX_VALUE).iterator();
+    }
+
+    @Override
+    public boolean acquireLease(String id, String node, long now, long expires) {
+        Lease lease = leases.compute(id, (k, v) -> v == null || v.node.equals(node) || v.expires <= now
+                ? new Lease(node, expires) : v);
+        return lease.node.equals(node);
+    }
+
+    @Override
+    public void releaseLease(String id, String node) {
+        leases.computeIfPresent(id, (k, v) -> v.node.equals(node) ? null : v);
     }
 
     private void sleep(int millis) {
@@ -66,25 +87,46 @@ public class MemStorage implements IStorage {
         return String.format("%s-%s", id, sid);
     }
 
-    private static class Record implements IRecord {
+    private static class Lease {
+        final String node;
+        final long expires;
+
+        Lease(String node, long expires) {
+            this.node = node;
+            this.expires = expires;
+        }
+    }
+
+    private class Record implements IRecord {
         boolean locked;
-        //private final String key;
+        private final String id;
+        private final String sid;
         private byte[] data;
 
-        Record(String key, byte[] data) {
-            //this.key = key;
+        Record(String id, String sid, byte[] data) {
+            this.id = id;
+            this.sid = sid;
             this.data = data;
         }
 
         @Override
-        public byte[] getData() {
+        public synchronized byte[] getData() {
             return data;
         }
 
+        synchronized boolean lock() {
+            if (locked)
+                return false;
+            locked = true;
+            return true;
+        }
+
         @Override
-        public void persist(byte[] data) {
+        public synchronized void persist(byte[] data) {
             this.data = data;
-            //sessions.put(key, this);
+            locked = false;
+            if (data != null)
+                index.computeIfAbsent(id, k -> new ConcurrentSkipListSet<>()).add(sid);
         }
     }
 }
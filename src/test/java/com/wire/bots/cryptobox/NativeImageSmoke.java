@@ -0,0 +1,53 @@
+package com.wire.bots.cryptobox;
+
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encrypt/decrypt round trip to compare a native image with the JVM, see
+ * {@code make native-smoke}. Prints the time to the first decrypted message,
+ * the time for the following messages and the RSS, and exits with 1 if a
+ * message does not survive the round trip.
+ */
+public class NativeImageSmoke {
+    public static void main(String[] args) throws Exception {
+        final int messages = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        final long start = System.nanoTime();
+        final Path dir = Files.createTempDirectory("cryptobox-native-smoke");
+        try (CryptoBox alice = CryptoBox.open(dir.resolve("alice").toString());
+             CryptoBox bob = CryptoBox.open(dir.resolve("bob").toString())) {
+            final PreKey[] keys = bob.newPreKeys(0, 1);
+            check(bob.decrypt("alice", alice.encryptFromPreKeys("bob", keys[0], message(0))), 0);
+            final long first = System.nanoTime();
+
+            for (int i = 1; i <= messages; i++) {
+                check(bob.decrypt("alice", alice.encryptFromSession("bob", message(i))), i);
+                check(alice.decrypt("bob", bob.encryptFromSession("alice", message(-i))), -i);
+            }
+            final long end = System.nanoTime();
+
+            System.out.printf("load=%dms first=%dms messages=%d in %dms rss=%dkB%n",
+                    NativeLoader.getLoadTime(TimeUnit.MILLISECONDS),
+                    TimeUnit.NANOSECONDS.toMillis(first - start),
+                    2 * messages,
+                    TimeUnit.NANOSECONDS.toMillis(end - first),
+                    LoadGenerator.rss());
+        } finally {
+            Util.deleteDir(dir.toString());
+        }
+    }
+
+    private static byte[] message(int i) {
+        return ("Hello " + i).getBytes();
+    }
+
+    private static void check(byte[] decrypted, int i) {
+        if (!Arrays.equals(decrypted, message(i))) {
+            System.err.println("Round trip failed for message " + i);
+            System.exit(1);
+        }
+    }
+}
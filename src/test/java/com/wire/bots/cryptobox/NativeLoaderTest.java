@@ -0,0 +1,132 @@
+package com.wire.bots.cryptobox;
+
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+public class NativeLoaderTest {
+    private String rootFolder;
+    private URLClassLoader loader;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        rootFolder = "cryptobox-test-data-" + UUID.randomUUID();
+        Files.createDirectories(Paths.get(rootFolder, "jar"));
+        loader = new URLClassLoader(new URL[]{Paths.get(rootFolder, "jar").toUri().toURL()}, null);
+    }
+
+    @AfterEach
+    public void clean() throws IOException {
+        loader.close();
+        Util.deleteDir(rootFolder);
+    }
+
+    @Test
+    public void testLoaded() throws Exception {
+        CryptoBox box = CryptoBox.open(rootFolder + "/box");
+        box.close();
+        Assertions.assertTrue(NativeLoader.getLoadTime(TimeUnit.NANOSECONDS) > 0);
+        Assertions.assertTrue(NativeLoader.platform().matches("[a-z0-9]+-[a-z0-9_]+"));
+    }
+
+    @Test
+    public void testExtract() throws Exception {
+        bundle("v1", true);
+        Path cache = Paths.get(rootFolder, "cache");
+
+        Path first = NativeLoader.extract(loader, "native/test/", cache);
+        for (String library : NativeLoader.LIBRARIES) {
+            Path file = first.resolve(System.mapLibraryName(library.equals("sodium") && isWindows() ? "libsodium" : library));
+            Assertions.assertEquals(library + "v1", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        }
+
+        // the second start reuses the directory
+        long modified = Files.getLastModifiedTime(first).toMillis();
+        Assertions.assertEquals(first, NativeLoader.extract(loader, "native/test/", cache));
+        Assertions.assertEquals(modified, Files.getLastModifiedTime(first).toMillis());
+
+        // other libraries go into another directory, with or without the SHA256 file
+        bundle("v2", false);
+        Path second = NativeLoader.extract(loader, "native/test/", cache);
+        Assertions.assertNotEquals(first, second);
+        Assertions.assertEquals(64, second.getFileName().toString().length());
+        Assertions.assertEquals(2, cache.toFile().list().length);
+    }
+
+    @Test
+    public void testModified() throws Exception {
+        bundle("v1", true);
+        Path cache = Paths.get(rootFolder, "cache");
+        Path target = NativeLoader.extract(loader, "native/test/", cache);
+        Path file = target.resolve(System.mapLibraryName("cryptobox"));
+
+        // a modified or missing library is extracted again
+        Files.write(file, "evil".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertEquals(target, NativeLoader.extract(loader, "native/test/", cache));
+        Assertions.assertEquals("cryptoboxv1", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+        Files.delete(file);
+        Assertions.assertEquals(target, NativeLoader.extract(loader, "native/test/", cache));
+        Assertions.assertEquals("cryptoboxv1", new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+
+        // libraries that do not match the bundled SHA256 are not extracted
+        Util.deleteDir(target.toString());
+        Files.write(Paths.get(rootFolder, "jar", "native", "test", System.mapLibraryName("cryptobox")),
+                "evil".getBytes(StandardCharsets.UTF_8));
+        Assertions.assertThrows(IOException.class, () -> NativeLoader.extract(loader, "native/test/", cache));
+    }
+
+    @Test
+    public void testCachePermissions() throws Exception {
+        Assumptions.assumeTrue(FileSystems.getDefault().supportedFileAttributeViews().contains("posix"));
+        bundle("v1", true);
+        Path cache = Paths.get(rootFolder, "cache");
+
+        NativeLoader.extract(loader, "native/test/", cache);
+        Assertions.assertEquals(PosixFilePermissions.fromString("rwx------"), Files.getPosixFilePermissions(cache));
+
+        Files.setPosixFilePermissions(cache, PosixFilePermissions.fromString("rwxrwxrwx"));
+        Assertions.assertThrows(IOException.class, () -> NativeLoader.extract(loader, "native/test/", cache));
+    }
+
+    private void bundle(String version, boolean hash) throws Exception {
+        Path dir = Paths.get(rootFolder, "jar", "native", "test");
+        Files.createDirectories(dir);
+        for (String library : NativeLoader.LIBRARIES) {
+            String name = System.mapLibraryName(library.equals("sodium") && isWindows() ? "libsodium" : library);
+            Files.write(dir.resolve(name), (library + version).getBytes(StandardCharsets.UTF_8));
+        }
+        Files.deleteIfExists(dir.resolve("SHA256"));
+        if (hash) {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String library : NativeLoader.LIBRARIES) {
+                digest.update((library + version).getBytes(StandardCharsets.UTF_8));
+            }
+            StringBuilder sb = new StringBuilder();
+            for (byte b : digest.digest()) {
+                sb.append(String.format("%02x", b));
+            }
+            Files.write(dir.resolve("SHA256"), (sb + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    private static boolean isWindows() {
+        return System.getProperty("os.name").toLowerCase().contains("win");
+    }
+}
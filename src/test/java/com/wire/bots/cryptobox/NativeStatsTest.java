@@ -0,0 +1,104 @@
+package com.wire.bots.cryptobox;
+
+
+import com.wire.bots.cryptobox.NativeStats.EntryPoint;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+public class NativeStatsTest {
+    private String rootFolder;
+    private CryptoBox alice;
+    private CryptoBox bob;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        rootFolder = "cryptobox-test-data-" + UUID.randomUUID();
+        alice = CryptoBox.open(rootFolder + "/alice");
+        bob = CryptoBox.open(rootFolder + "/bob");
+    }
+
+    @AfterEach
+    public void clean() throws IOException {
+        NativeStats.setEnabled(false);
+        HandleTracker.setEnabled(false);
+        alice.close();
+        bob.close();
+        Util.deleteDir(rootFolder);
+    }
+
+    @Test
+    public void testCountsCalls() throws Exception {
+        NativeStats.setEnabled(true);
+        NativeStats.reset();
+
+        PreKey[] keys = bob.newPreKeys(0, 1);
+        byte[] cipher = alice.encryptFromPreKeys("bob", keys[0], "Hello Bob!".getBytes());
+        bob.decrypt("alice", cipher);
+        for (int i = 0; i < 10; i++) {
+            cipher = alice.encryptFromSession("bob", "Hello Bob!".getBytes());
+            bob.decrypt("alice", cipher);
+        }
+
+        NativeStats stats = NativeStats.snapshot();
+        Assertions.assertEquals(1, stats.getCalls(EntryPoint.NEW_PREKEYS));
+        Assertions.assertEquals(1, stats.getCalls(EntryPoint.INIT_FROM_PREKEY));
+        Assertions.assertEquals(1, stats.getCalls(EntryPoint.INIT_FROM_MESSAGE));
+        Assertions.assertEquals(11, stats.getCalls(EntryPoint.ENCRYPT));
+        Assertions.assertEquals(10, stats.getCalls(EntryPoint.DECRYPT));
+        for (EntryPoint entryPoint : EntryPoint.values()) {
+            Assertions.assertTrue(stats.getCboxNanos(entryPoint) <= stats.getTotalNanos(entryPoint), entryPoint.name());
+            Assertions.assertTrue(stats.getMarshalingNanos(entryPoint) >= 0, entryPoint.name());
+        }
+        Assertions.assertTrue(stats.getCboxNanos(EntryPoint.ENCRYPT) > 0);
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        NativeStats.setEnabled(false);
+        NativeStats.reset();
+
+        bob.newPreKeys(0, 1);
+
+        Assertions.assertFalse(NativeStats.isEnabled());
+        Assertions.assertEquals(0, NativeStats.snapshot().getCalls(EntryPoint.NEW_PREKEYS));
+    }
+
+    @Test
+    public void testHandles() throws Exception {
+        NativeStats before = NativeStats.snapshot();
+
+        CryptoBox carl = CryptoBox.open(rootFolder + "/carl");
+        PreKey[] keys = bob.newPreKeys(0, 1);
+        alice.encryptFromPreKeys("bob", keys[0], "Hello Bob!".getBytes());
+
+        NativeStats stats = NativeStats.snapshot();
+        Assertions.assertEquals(before.getOpenBoxes() + 1, stats.getOpenBoxes());
+        Assertions.assertEquals(before.getOpenSessions(), stats.getOpenSessions());
+        Assertions.assertEquals(0, stats.getVecBytes());
+
+        carl.close();
+        Assertions.assertEquals(before.getOpenBoxes(), NativeStats.snapshot().getOpenBoxes());
+    }
+
+    @Test
+    public void testHandleTracker() throws Exception {
+        HandleTracker.setEnabled(true);
+
+        CryptoBox carl = CryptoBox.open(rootFolder + "/carl");
+        List<HandleTracker.Handle> handles = HandleTracker.getOpenHandles(0, TimeUnit.MILLISECONDS);
+        Assertions.assertEquals(1, handles.size());
+        Assertions.assertEquals("CryptoBox", handles.get(0).getKind());
+        Assertions.assertTrue(handles.get(0).getStackTrace().length > 0);
+        Assertions.assertTrue(HandleTracker.getOpenHandles(1, TimeUnit.HOURS).isEmpty());
+
+        carl.close();
+        Assertions.assertTrue(HandleTracker.getOpenHandles(0, TimeUnit.MILLISECONDS).isEmpty());
+    }
+}
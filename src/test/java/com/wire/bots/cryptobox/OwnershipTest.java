@@ -0,0 +1,169 @@
+package com.wire.bots.cryptobox;
+
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class OwnershipTest {
+    private final AtomicLong now = new AtomicLong(1_000_000);
+    private final AtomicInteger fetches = new AtomicInteger();
+    private final MemStorage storage = new MemStorage() {
+        @Override
+        public byte[] fetchIdentity(String id) {
+            fetches.incrementAndGet();
+            return super.fetchIdentity(id);
+        }
+    };
+    private final HashRing ring = new HashRing(Arrays.asList("a", "b", "c"));
+    private final Map<String, Ownership> nodes = new LinkedHashMap<>();
+    private final List<String> bots = new ArrayList<>();
+
+    @BeforeEach
+    public void setUp() {
+        for (String node : ring.getNodes()) {
+            nodes.put(node, ownership(node, ring));
+        }
+        for (int i = 0; i < 100; i++) {
+            bots.add("bot-" + i);
+        }
+    }
+
+    private Ownership ownership(String node, HashRing ring) {
+        return new Ownership(node, ring, storage, CachingStorage.of(storage, 100, 1, TimeUnit.HOURS),
+                30, TimeUnit.SECONDS, now::get);
+    }
+
+    @Test
+    public void testOneOwnerPerBot() throws Exception {
+        for (String bot : bots) {
+            List<String> owners = new ArrayList<>();
+            for (Ownership node : nodes.values()) {
+                if (node.acquire(bot)) {
+                    owners.add(node.getNode());
+                }
+            }
+            Assertions.assertEquals(Arrays.asList(ring.nodeFor(bot)), owners);
+        }
+        for (Ownership node : nodes.values()) {
+            Assertions.assertFalse(node.getOwned().isEmpty());
+        }
+    }
+
+    @Test
+    public void testHandOff() throws Exception {
+        for (String bot : bots) {
+            nodes.get(ring.nodeFor(bot)).acquire(bot);
+        }
+        List<String> flushed = new ArrayList<>();
+        Ownership c = nodes.get("c");
+        c.addListener(new Ownership.Listener() {
+            @Override
+            public void releasing(String id) {
+                flushed.add(id);
+            }
+        });
+        List<String> moving = new ArrayList<>(c.getOwned());
+
+        HashRing smaller = new HashRing(Arrays.asList("a", "b"));
+        for (String bot : bots) {
+            if (!moving.contains(bot)) {
+                Assertions.assertEquals(ring.nodeFor(bot), smaller.nodeFor(bot));
+            }
+        }
+        Ownership a = nodes.get("a");
+        Ownership b = nodes.get("b");
+        a.setRing(smaller);
+        b.setRing(smaller);
+        for (String bot : moving) {
+            Assertions.assertFalse(nodes.get(smaller.nodeFor(bot)).acquire(bot));
+        }
+
+        c.setRing(smaller);
+        Assertions.assertEquals(moving, flushed);
+        Assertions.assertTrue(c.getOwned().isEmpty());
+        for (String bot : moving) {
+            Assertions.assertTrue(nodes.get(smaller.nodeFor(bot)).acquire(bot));
+        }
+        Assertions.assertEquals(bots.size(), a.getOwned().size() + b.getOwned().size());
+    }
+
+    @Test
+    public void testExpiry() throws Exception {
+        String bot = bots.get(0);
+        Ownership owner = nodes.get(ring.nodeFor(bot));
+        Assertions.assertTrue(owner.acquire(bot));
+        List<String> lost = new ArrayList<>();
+        owner.addListener(new Ownership.Listener() {
+            @Override
+            public void lost(String id) {
+                lost.add(id);
+            }
+        });
+
+        List<String> others = new ArrayList<>(ring.getNodes());
+        others.remove(owner.getNode());
+        HashRing without = new HashRing(others);
+        Ownership next = ownership(without.nodeFor(bot), without);
+        Assertions.assertFalse(next.acquire(bot));
+
+        now.addAndGet(TimeUnit.SECONDS.toMillis(30));
+        Assertions.assertFalse(owner.isOwner(bot));
+        Assertions.assertTrue(next.acquire(bot));
+        owner.renew();
+        Assertions.assertEquals(Arrays.asList(bot), lost);
+        Assertions.assertTrue(owner.getOwned().isEmpty());
+    }
+
+    @Test
+    public void testCachedWhileOwned() throws Exception {
+        String bot = bots.get(0);
+        Ownership owner = nodes.get(ring.nodeFor(bot));
+        storage.insertIdentity(bot, new byte[]{1});
+
+        owner.getStorage().fetchIdentity(bot);
+        owner.getStorage().fetchIdentity(bot);
+        Assertions.assertEquals(2, fetches.get());
+
+        owner.acquire(bot);
+        owner.getStorage().fetchIdentity(bot);
+        owner.getStorage().fetchIdentity(bot);
+        Assertions.assertEquals(3, fetches.get());
+
+        owner.release(bot);
+        Assertions.assertFalse(owner.isOwner(bot));
+        owner.getStorage().fetchIdentity(bot);
+        Assertions.assertEquals(4, fetches.get());
+    }
+
+    @Test
+    public void testExpiryBeforePersist() throws Exception {
+        String bot = bots.get(0);
+        Ownership owner = nodes.get(ring.nodeFor(bot));
+        Assertions.assertTrue(owner.acquire(bot));
+        owner.getStorage().fetchSession(bot, "sid").persist(new byte[]{1});
+        IRecord stale = owner.getStorage().fetchSession(bot, "sid");
+        Assertions.assertArrayEquals(new byte[]{1}, stale.getData());
+
+        // the lease expires while the record is used, and the box moves on
+        now.addAndGet(TimeUnit.SECONDS.toMillis(30));
+        List<String> others = new ArrayList<>(ring.getNodes());
+        others.remove(owner.getNode());
+        HashRing without = new HashRing(others);
+        Ownership next = ownership(without.nodeFor(bot), without);
+        Assertions.assertTrue(next.acquire(bot));
+        next.getStorage().fetchSession(bot, "sid").persist(new byte[]{2});
+
+        Assertions.assertThrows(IllegalStateException.class, () -> stale.persist(new byte[]{3}));
+        Assertions.assertArrayEquals(new byte[]{2}, storage.fetchSession(bot, "sid").getData());
+    }
+}
@@ -0,0 +1,156 @@
+package com.wire.bots.cryptobox;
+
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import static com.wire.bots.cryptobox.Util.assertDecrypted;
+
+public class SessionDeltaTest {
+
+    @Test
+    public void testEncodeApply() {
+        final Random random = new Random(42);
+        final byte[] old = new byte[4096];
+        random.nextBytes(old);
+
+        final byte[] data = Arrays.copyOf(old, old.length + 100);
+        for (int i = 0; i < 32; i++)
+            data[random.nextInt(data.length)] = (byte) random.nextInt();
+
+        final byte[] delta = SessionDelta.encode(old, data);
+        Assertions.assertTrue(delta.length < data.length / 4, "delta: " + delta.length);
+        Assertions.assertArrayEquals(data, SessionDelta.apply(old, delta));
+
+        Assertions.assertArrayEquals(data, SessionDelta.apply(new byte[0], SessionDelta.encode(new byte[0], data)));
+        Assertions.assertArrayEquals(new byte[0], SessionDelta.apply(old, SessionDelta.encode(old, new byte[0])));
+    }
+
+    @Test
+    public void testDeltaCheckpoint() throws Exception {
+        final DeltaStorage storage = new DeltaStorage();
+        final String aliceId = UUID.randomUUID().toString();
+        final String bobId = UUID.randomUUID().toString();
+
+        try (CryptoDb alice = new CryptoDb(aliceId, storage);
+             CryptoDb bob = new CryptoDb(bobId, storage)) {
+            alice.setDeltaCheckpoint(4);
+            bob.setDeltaCheckpoint(4);
+
+            final PreKey[] keys = bob.newPreKeys(0, 1);
+            assertDecrypted(bob.decrypt("alice", alice.encryptFromPreKeys("bob", keys[0], "Hello".getBytes())), "Hello");
+
+            for (int i = 0; i < 20; i++) {
+                final String text = "Hello Bob " + i;
+                assertDecrypted(bob.decrypt("alice", alice.encryptFromSession("bob", text.getBytes())), text);
+                final String reply = "Hello Alice " + i;
+                assertDecrypted(alice.decrypt("bob", bob.encryptFromSession("alice", reply.getBytes())), reply);
+
+                Assertions.assertTrue(storage.deltas(bobId, "alice") <= 4);
+            }
+
+            Assertions.assertTrue(bob.getPersists() >= 41);
+            Assertions.assertTrue(bob.getPersistedBytes() <= bob.getSessionBytes());
+
+            // a session persisted as deltas is reconstructed from its checkpoint
+            final byte[] reconstructed = storage.reconstruct(bobId, "alice");
+            Assertions.assertNotNull(reconstructed);
+            Assertions.assertArrayEquals(storage.latest.get(bobId + "-alice"), reconstructed);
+        }
+    }
+
+    @Test
+    public void testDeltaThroughCache() throws Exception {
+        final DeltaStorage storage = new DeltaStorage();
+        final CachingStorage cache = CachingStorage.of(storage, 10, 1, TimeUnit.MINUTES);
+        final String aliceId = UUID.randomUUID().toString();
+        final String bobId = UUID.randomUUID().toString();
+
+        try (CryptoDb alice = new CryptoDb(aliceId, storage);
+             CryptoDb bob = new CryptoDb(bobId, cache)) {
+            bob.setDeltaCheckpoint(4);
+
+            final PreKey[] keys = bob.newPreKeys(0, 1);
+            assertDecrypted(bob.decrypt("alice", alice.encryptFromPreKeys("bob", keys[0], "Hello".getBytes())), "Hello");
+
+            int deltas = 0;
+            for (int i = 0; i < 10; i++) {
+                final String text = "Hello Bob " + i;
+                assertDecrypted(bob.decrypt("alice", alice.encryptFromSession("bob", text.getBytes())), text);
+                final String reply = "Hello Alice " + i;
+                assertDecrypted(alice.decrypt("bob", bob.encryptFromSession("alice", reply.getBytes())), reply);
+
+                Assertions.assertTrue(storage.deltas(bobId, "alice") <= 4);
+                deltas = Math.max(deltas, storage.deltas(bobId, "alice"));
+            }
+
+            // the deltas went through the cache to the storage
+            Assertions.assertEquals(4, deltas);
+            Assertions.assertTrue(bob.getPersistedBytes() < bob.getSessionBytes());
+            Assertions.assertArrayEquals(storage.latest.get(bobId + "-alice"), storage.reconstruct(bobId, "alice"));
+            Assertions.assertTrue(cache.getHits() > 0);
+        }
+    }
+
+    private static class DeltaStorage extends MemStorage {
+        private final ConcurrentHashMap<String, byte[]> checkpoints = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, List<byte[]>> deltas = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, byte[]> latest = new ConcurrentHashMap<>();
+
+        @Override
+        public IRecord fetchSession(String id, String sid) {
+            return new Record(id + "-" + sid);
+        }
+
+        int deltas(String id, String sid) {
+            final List<byte[]> list = deltas.get(id + "-" + sid);
+            return list == null ? 0 : list.size();
+        }
+
+        byte[] reconstruct(String id, String sid) {
+            final String key = id + "-" + sid;
+            return SessionDelta.apply(checkpoints.get(key), deltas.getOrDefault(key, new ArrayList<>()));
+        }
+
+        private class Record implements IDeltaRecord {
+            private final String key;
+
+            Record(String key) {
+                this.key = key;
+            }
+
+            @Override
+            public byte[] getData() {
+                return checkpoints.get(key);
+            }
+
+            @Override
+            public List<byte[]> getDeltas() {
+                return new ArrayList<>(deltas.getOrDefault(key, new ArrayList<>()));
+            }
+
+            @Override
+            public void persist(byte[] data) {
+                if (data == null)
+                    return;
+                checkpoints.put(key, data);
+                deltas.remove(key);
+                latest.put(key, data);
+            }
+
+            @Override
+            public void persistDelta(byte[] delta) {
+                latest.put(key, SessionDelta.apply(latest.get(key), delta));
+                deltas.computeIfAbsent(key, k -> new ArrayList<>()).add(delta);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package com.wire.bots.cryptobox;
+
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+
+public class DecryptProcessorTest {
+    private MemStorage storage;
+    private CryptoDb alice;
+    private String aliceId;
+    private ExecutorService executor;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        storage = new MemStorage();
+        aliceId = UUID.randomUUID().toString();
+        alice = new CryptoDb(aliceId, storage);
+        executor = Executors.newFixedThreadPool(4);
+    }
+
+    @AfterEach
+    public void clean() {
+        executor.shutdown();
+        alice.close();
+    }
+
+    @Test
+    public void testOrderPerSession() throws Exception {
+        final int peers = 5;
+        final int messages = 50;
+        PreKey[] keys = alice.newPreKeys(0, peers);
+        List<CryptoDb> senders = new ArrayList<>();
+        List<EncryptedMessage> inbound = new ArrayList<>();
+        for (int p = 0; p < peers; p++) {
+            CryptoDb sender = new CryptoDb(UUID.randomUUID().toString(), storage);
+            String sid = "peer-" + p;
+            inbound.add(new EncryptedMessage(sid, sender.encryptFromPreKeys(aliceId, keys[p], (sid + " 0").getBytes())));
+            senders.add(sender);
+        }
+        for (int i = 1; i < messages; i++) {
+            for (int p = 0; p < peers; p++) {
+                String sid = "peer-" + p;
+                inbound.add(new EncryptedMessage(sid, senders.get(p).encryptFromSession(aliceId, (sid + " " + i).getBytes())));
+            }
+        }
+
+        Map<String, List<String>> received = Collections.synchronizedMap(new LinkedHashMap<>());
+        CountDownLatch done = new CountDownLatch(1);
+        DecryptProcessor processor = new DecryptProcessor(alice, executor, 8, 4);
+        processor.subscribe(new Flow.Subscriber<DecryptedMessage>() {
+            private Flow.Subscription subscription;
+
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                this.subscription = subscription;
+                subscription.request(1);
+            }
+
+            @Override
+            public void onNext(DecryptedMessage item) {
+                Assertions.assertTrue(item.isSuccess());
+                received.computeIfAbsent(item.getSid(), sid -> new ArrayList<>()).add(new String(item.getPlaintext()));
+                subscription.request(1);
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throwable.printStackTrace();
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+
+        try (SubmissionPublisher<EncryptedMessage> upstream = new SubmissionPublisher<>(executor, 16)) {
+            upstream.subscribe(processor);
+            for (EncryptedMessage message : inbound) {
+                upstream.submit(message);
+            }
+        }
+
+        Assertions.assertTrue(done.await(20, TimeUnit.SECONDS));
+        Assertions.assertEquals(peers, received.size());
+        for (int p = 0; p < peers; p++) {
+            List<String> expected = new ArrayList<>();
+            for (int i = 0; i < messages; i++) {
+                expected.add("peer-" + p + " " + i);
+            }
+            Assertions.assertEquals(expected, received.get("peer-" + p));
+        }
+        for (CryptoDb sender : senders) {
+            sender.close();
+        }
+    }
+
+    @Test
+    public void testSlowSubscriberOnOneThread() throws Exception {
+        final int messages = 2 * Flow.defaultBufferSize();
+        PreKey[] keys = alice.newPreKeys(0, 1);
+        CryptoDb bob = new CryptoDb(UUID.randomUUID().toString(), storage);
+        List<EncryptedMessage> inbound = new ArrayList<>();
+        inbound.add(new EncryptedMessage("bob", bob.encryptFromPreKeys(aliceId, keys[0], "0".getBytes())));
+        for (int i = 1; i < messages; i++) {
+            inbound.add(new EncryptedMessage("bob", bob.encryptFromSession(aliceId, String.valueOf(i).getBytes())));
+        }
+
+        // decrypting and publishing share the only thread, which must never wait for the subscriber
+        ExecutorService single = Executors.newSingleThreadExecutor();
+        List<String> received = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch subscribed = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(1);
+        Flow.Subscription[] downstream = new Flow.Subscription[1];
+        DecryptProcessor processor = new DecryptProcessor(alice, single, 8, 4);
+        processor.subscribe(new Flow.Subscriber<DecryptedMessage>() {
+            @Override
+            public void onSubscribe(Flow.Subscription subscription) {
+                downstream[0] = subscription;
+                subscribed.countDown();
+            }
+
+            @Override
+            public void onNext(DecryptedMessage item) {
+                received.add(item.isSuccess() ? new String(item.getPlaintext()) : item.getError().toString());
+            }
+
+            @Override
+            public void onError(Throwable throwable) {
+                throwable.printStackTrace();
+            }
+
+            @Override
+            public void onComplete() {
+                done.countDown();
+            }
+        });
+        Assertions.assertTrue(subscribed.await(5, TimeUnit.SECONDS));
+
+        try (SubmissionPublisher<EncryptedMessage> upstream = new SubmissionPublisher<>(executor, messages)) {
+            upstream.subscribe(processor);
+            for (EncryptedMessage message : inbound) {
+                upstream.submit(message);
+            }
+
+            // the upstream is held back while nothing is consumed
+            Thread.sleep(500);
+            Assertions.assertTrue(processor.estimateMaximumLag() <= processor.getMaxBufferCapacity());
+            Assertions.assertTrue(received.isEmpty());
+            downstream[0].request(Long.MAX_VALUE);
+        }
+
+        Assertions.assertTrue(done.await(20, TimeUnit.SECONDS));
+        List<String> expected = new ArrayList<>();
+        for (int i = 0; i < messages; i++) {
+            expected.add(String.valueOf(i));
+        }
+        Assertions.assertEquals(expected, received);
+        single.shutdown();
+        bob.close();
+    }
+}